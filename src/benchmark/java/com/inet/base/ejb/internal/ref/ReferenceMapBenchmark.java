@@ -0,0 +1,264 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * ReferenceMapBenchmark.
+ * <pre>
+ *  Compares the reference maps against the JDK maps on get, put and mixed (one put out of 16)
+ *  workloads, at several map sizes and thread counts:
+ *
+ *    $mvn -P benchmark verify
+ *
+ *  The maps which are not thread-safe are wrapped by {@link Collections#synchronizedMap(Map)},
+ *  the way they are shared in the application. The GC pressure is injected by every operation
+ *  allocating the given number of bytes into a ring of retained buffers, which makes the
+ *  collector run and process the map references while measuring. With the "held" retention
+ *  the benchmark holds the map keys strongly, so the reference maps never lose mappings; with
+ *  the "released" retention the map keys are only equal to the looked up ones, so the collector
+ *  clears them (the soft references too, the fork runs with a zero soft reference LRU policy)
+ *  and the maps expunge and refill their mappings while measuring.
+ *
+ *  The key sequences are seeded by the "seed" parameter and the thread index, so every run
+ *  walks the same keys.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: ReferenceMapBenchmark.java 2010-01-25 09:31:44z nguyen_dv $
+ *
+ * @since 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-XX:SoftRefLRUPolicyMSPerMB=0")
+public class ReferenceMapBenchmark {
+  /**
+   * The mask selecting one put out of 16 operations of the mixed workload.
+   */
+  private static final int MIXED_PUT_MASK = 15;
+
+  /**
+   * MapState.
+   * <pre>
+   *  The shared map, filled with the keys before measuring.
+   * </pre>
+   */
+  @State(Scope.Benchmark)
+  public static class MapState {
+    @Param({ "SoftHashMap", "WeakHashMap", "SoftHashMap-expiring", "java.util.WeakHashMap",
+        "ConcurrentHashMap" })
+    public String map;
+
+    @Param({ "1024", "131072" })
+    public int size;
+
+    @Param({ "held", "released" })
+    public String retention;
+
+    Integer[] keys;
+    boolean released;
+    Map<Integer, Object> target;
+
+    /**
+     * Creates and fills the map.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+      keys = new Integer[size];
+      for (int index = 0; index < size; index++) {
+        keys[index] = new Integer(index);
+      }
+
+      released = "released".equals(retention);
+      target = createMap(map, size);
+      for (int index = 0; index < size; index++) {
+        target.put(keyOf(index), new Object());
+      }
+    }
+
+    /**
+     * Returns the key to put at the given index: the held key, or an equal key referenced by
+     * the map only.
+     *
+     * @param index the given key index.
+     * @return the key to put.
+     */
+    Integer keyOf(final int index) {
+      return (released ? new Integer(index) : keys[index]);
+    }
+  }
+
+  /**
+   * ThreadState.
+   * <pre>
+   *  The per-thread key sequence and garbage ring.
+   * </pre>
+   */
+  @State(Scope.Thread)
+  public static class ThreadState {
+    /** the number of retained garbage buffers -- MUST be a power of two. */
+    private static final int RING_SIZE = 4096;
+
+    /** the odd multiplier spreading the thread indexes over the seeds. */
+    private static final int SEED_SPREAD = 0x9E3779B9;
+
+    @Param({ "0", "256" })
+    public int garbage;
+
+    @Param({ "42" })
+    public int seed;
+
+    private final byte[][] ring = new byte[RING_SIZE][];
+    private int position;
+    private int state;
+
+    /**
+     * Seeds the key sequence from the seed parameter and the thread index.
+     *
+     * @param params the given thread parameters.
+     */
+    @Setup(Level.Trial)
+    public void setUp(final ThreadParams params) {
+      state = (seed + params.getThreadIndex() * SEED_SPREAD) | 1;
+    }
+
+    /**
+     * Returns the next pseudo random number (xorshift), and allocates the garbage.
+     *
+     * @return the next pseudo random number.
+     */
+    int next() {
+      if (garbage > 0) {
+        ring[position++ & (RING_SIZE - 1)] = new byte[garbage];
+      }
+
+      int x = state;
+      x ^= x << 13;
+      x ^= x >>> 17;
+      x ^= x << 5;
+      state = x;
+      return x & Integer.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Creates the map of the given kind.
+   *
+   * @param kind the given map kind.
+   * @param size the given number of mappings.
+   * @return the map.
+   */
+  static Map<Integer, Object> createMap(final String kind, final int size) {
+    if ("SoftHashMap".equals(kind)) {
+      return Collections.synchronizedMap(new SoftHashMap<Integer, Object>(size));
+    } else if ("WeakHashMap".equals(kind)) {
+      return Collections.synchronizedMap(new WeakHashMap<Integer, Object>(size));
+    } else if ("SoftHashMap-expiring".equals(kind)) {
+      final SoftHashMap<Integer, Object> expiring = new SoftHashMap<Integer, Object>(size);
+      expiring.setExpireAfterAccess(1, TimeUnit.HOURS);
+      return Collections.synchronizedMap(expiring);
+    } else if ("java.util.WeakHashMap".equals(kind)) {
+      return Collections.synchronizedMap(new java.util.WeakHashMap<Integer, Object>(size));
+    } else if ("ConcurrentHashMap".equals(kind)) {
+      return new ConcurrentHashMap<Integer, Object>(size);
+    }
+    throw new IllegalArgumentException("Unknown map kind {" + kind + "}.");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object get(final MapState state, final ThreadState thread) {
+    return doGet(state, thread);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object put(final MapState state, final ThreadState thread) {
+    return doPut(state, thread);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Object mixed(final MapState state, final ThreadState thread) {
+    return doMixed(state, thread);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object getContended(final MapState state, final ThreadState thread) {
+    return doGet(state, thread);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object putContended(final MapState state, final ThreadState thread) {
+    return doPut(state, thread);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object mixedContended(final MapState state, final ThreadState thread) {
+    return doMixed(state, thread);
+  }
+
+  /**
+   * Looks up a random key.
+   */
+  private static Object doGet(final MapState state, final ThreadState thread) {
+    return state.target.get(state.keys[thread.next() % state.size]);
+  }
+
+  /**
+   * Replaces the value of a random key.
+   */
+  private static Object doPut(final MapState state, final ThreadState thread) {
+    return state.target.put(state.keyOf(thread.next() % state.size), thread);
+  }
+
+  /**
+   * Looks up or, one time out of 16, replaces the value of a random key.
+   */
+  private static Object doMixed(final MapState state, final ThreadState thread) {
+    final int random = thread.next();
+    final int index = (random >>> 4) % state.size;
+    if ((random & MIXED_PUT_MASK) == 0) {
+      return state.target.put(state.keyOf(index), thread);
+    }
+    return state.target.get(state.keys[index]);
+  }
+}
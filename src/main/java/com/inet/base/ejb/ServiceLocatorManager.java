@@ -15,6 +15,8 @@
  *****************************************************************/
 package com.inet.base.ejb;
 
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.naming.Context;
@@ -59,7 +61,8 @@ public final class ServiceLocatorManager {
    * Create ServiceLocatorManager instance.
    */
   private ServiceLocatorManager() {
-    // do nothing as of yet
+    // dispose walks a snapshot of the locators while the others are being registered.
+    serviceLocators.setWeaklyConsistent(true);
   }
 
   /**
@@ -353,15 +356,30 @@ public final class ServiceLocatorManager {
    * Dispose service locator manager.
    */
   public void dispose() {
+    // take the snapshot of the service locators under the lock, then walk it without blocking
+    // the registration.
+    final Iterator<Map.Entry<Properties, ServiceLocator>> iterator;
     synchronized (this.serviceLocators) {
-      for (final ServiceLocator serviceLocator : this.serviceLocators.values()) {
-        if (serviceLocator != null) {
-          serviceLocator.dispose();
+      iterator = this.serviceLocators.entrySet().iterator();
+    }
+    while (iterator.hasNext()) {
+      final Map.Entry<Properties, ServiceLocator> entry = iterator.next();
+      final ServiceLocator serviceLocator = entry.getValue();
+
+      // remove the service locator unless it was replaced meanwhile.
+      synchronized (this.serviceLocators) {
+        if (this.serviceLocators.get(entry.getKey()) == serviceLocator) {
+          this.serviceLocators.remove(entry.getKey());
         }
       }
 
-      // clear all service locator.
-      this.serviceLocators.clear();
+      if (serviceLocator != null) {
+        serviceLocator.dispose();
+      }
+    }
+
+    // clear all cached environments.
+    synchronized (this.properties) {
       this.properties.clear();
     }
   }
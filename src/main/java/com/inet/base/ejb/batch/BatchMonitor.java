@@ -0,0 +1,47 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.batch;
+
+/**
+ * BatchMonitor.
+ * <pre>
+ *  Receives the progress of a batch operation. The callbacks run inside the transaction of the
+ *  batch operation, so they should return quickly.
+ * </pre>
+ * @param <T> the item type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: BatchMonitor.java 2010-01-26 14:12:47z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface BatchMonitor<T> {
+  /**
+   * Called when the item at the given index could not be processed.
+   *
+   * @param index the given item index.
+   * @param item the given item.
+   * @param cause the given failure cause.
+   */
+  void onFailure(int index, T item, Throwable cause);
+
+  /**
+   * Called after every batch has been written to the database.
+   *
+   * @param result the given {@link BatchResult result} so far.
+   */
+  void onBatch(BatchResult result);
+}
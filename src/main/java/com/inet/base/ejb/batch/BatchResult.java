@@ -0,0 +1,116 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.batch;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * BatchResult.
+ * <pre>
+ *  The outcome of a batch operation: the number of processed items and the failure of every
+ *  item that could not be processed, by its index in the given collection.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: BatchResult.java 2010-01-26 14:20:05z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class BatchResult implements Serializable {
+  /**
+   * serialVersionUID.
+   */
+  private static final long serialVersionUID = 4385617002933645217L;
+
+  /* the number of processed items. */
+  private int processed;
+
+  /* the item failures by item index. */
+  private final Map<Integer, Throwable> failures = new LinkedHashMap<Integer, Throwable>();
+
+  /**
+   * BatchResult constructor.
+   */
+  public BatchResult() {
+    super();
+  }
+
+  /**
+   * Counts one more processed item.
+   */
+  public void addProcessed() {
+    processed++;
+  }
+
+  /**
+   * Records the failure of the item at the given index.
+   *
+   * @param index the given item index.
+   * @param cause the given failure cause.
+   */
+  public void addFailure(final int index, final Throwable cause) {
+    failures.put(Integer.valueOf(index), cause);
+  }
+
+  /**
+   * Returns the number of processed items.
+   *
+   * @return the number of processed items.
+   */
+  public int getProcessed() {
+    return processed;
+  }
+
+  /**
+   * Returns the number of failed items.
+   *
+   * @return the number of failed items.
+   */
+  public int getFailed() {
+    return failures.size();
+  }
+
+  /**
+   * Returns the item failures by item index, in the order of the items.
+   *
+   * @return the item failures; never {@code null}.
+   */
+  public Map<Integer, Throwable> getFailures() {
+    return Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * Returns whether any item failed.
+   *
+   * @return {@code true} if any item failed.
+   */
+  public boolean hasFailures() {
+    return !failures.isEmpty();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "BatchResult[processed=" + processed + ", failed=" + failures.size() + "]";
+  }
+}
@@ -15,9 +15,18 @@
 *****************************************************************/
 package com.inet.base.ejb.business;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 import javax.ejb.EJBException;
@@ -34,18 +43,56 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.persistence.TransactionRequiredException;
+import javax.transaction.TransactionManager;
 
+import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.NonUniqueResultException;
+import org.hibernate.ScrollMode;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.DetachedCriteria;
+import org.hibernate.criterion.Projection;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.metadata.ClassMetadata;
 import org.jboss.ejb3.entity.HibernateSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.inet.base.ejb.batch.BatchMonitor;
+import com.inet.base.ejb.batch.BatchResult;
+import com.inet.base.ejb.cache.CountCache;
+import com.inet.base.ejb.cache.CriteriaSignature;
+import com.inet.base.ejb.cache.EntityCache;
+import com.inet.base.ejb.cache.NaturalKeyCache;
+import com.inet.base.ejb.cache.PendingInvalidation;
+import com.inet.base.ejb.cache.QueryCache;
 import com.inet.base.ejb.conf.ConfigBean;
 import com.inet.base.ejb.exception.EjbException;
+import com.inet.base.ejb.internal.Preconditions;
 import com.inet.base.ejb.internal.StringUtils;
+import com.inet.base.ejb.query.FetchPlan;
+import com.inet.base.ejb.query.QueryExecutor;
+import com.inet.base.ejb.query.QueryMetrics;
+import com.inet.base.ejb.query.QueryTemplate;
+import com.inet.base.ejb.query.RowMapper;
+import com.inet.base.ejb.query.RowMapperTransformer;
+import com.inet.base.ejb.query.RowVisitor;
+import com.inet.base.ejb.query.ScrollIterator;
+import com.inet.base.ejb.query.SessionWork;
+import com.inet.base.ejb.query.StatelessWork;
+import com.inet.base.ejb.search.BaseSearchBean;
+import com.inet.base.ejb.search.CountResult;
+import com.inet.base.ejb.search.DetachedSearch;
+import com.inet.base.ejb.search.KeysetPage;
+import com.inet.base.ejb.search.KeysetToken;
+import com.inet.base.ejb.search.Search;
+import com.inet.base.ejb.search.SearchWrapper;
 
 /**
  * BaseSessionBean.
@@ -198,14 +245,32 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public List<T> query(final T search) throws EjbException {
+    final long start = System.nanoTime();
     try {
       return buildQuery(search).list();
     } catch (final HibernateException hex) {
       final String msg = "Could not execute the query to retrieve the data from container.";
       throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(search), start);
     }
   }
 
+  /**
+   * Query and result the data that match the given search persistence object, with the given
+   * fetch plan.
+   *
+   * @param search the given persistence object used to build the criteria.
+   * @param plan the given {@link FetchPlan fetch plan}.
+   * @return the list of data that match the given search criteria.
+   *
+   * @throws EjbException if we could not execute the query to retrieve the data from container.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public List<T> query(final T search, final FetchPlan plan) throws EjbException {
+    return query(buildQuery(search), plan);
+  }
+
   /**
    * Query and result the data from the given criteria.
    *
@@ -218,6 +283,7 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public List<T> query(final Criteria criteria) throws EjbException {
+    final long start = System.nanoTime();
     try {
       if (criteria == null) {
         return null;
@@ -228,6 +294,123 @@ public abstract class BaseSessionBean<K, T> {
     } catch (final HibernateException hex) {
       final String msg = "Could not execute query to retrieve the matching the data.";
       throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(criteria), start);
+    }
+  }
+
+  /**
+   * Query and result the data from the given criteria, with the given fetch plan. A paged
+   * criteria can not fetch a collection by join, see {@link FetchPlan}.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param plan the given {@link FetchPlan fetch plan}.
+   * @return the list of data that match the given criteria.
+   *
+   * @throws EjbException if we could not execute query to retrieve the matching data in the
+   * container, or if the paged criteria fetches a collection by join.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public List<T> query(final Criteria criteria, final FetchPlan plan) throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      final List<T> result = plan.apply(criteria).list();
+
+      return plan.apply(HibernateSupport.getSession(entityManager), result);
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to retrieve the matching the data.";
+      throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(criteria), start);
+    }
+  }
+
+  /**
+   * Query and result the data from the given criteria through the Hibernate query cache: the
+   * result is cached in the given query cache region, whose expiration is configured with the
+   * second-level cache.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param region the given query cache region.
+   * @return the list of data that match the given criteria.
+   *
+   * @throws EjbException if we could not execute query to retrieve the matching data in the
+   * container.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public List<T> query(final Criteria criteria, final String region) throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      return (List<T>) criteria.setCacheable(true).setCacheRegion(region).list();
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to retrieve the matching the data.";
+      throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(criteria), start);
+    }
+  }
+
+  /**
+   * Query and result the data from the given criteria through the {@link #getQueryCache() query
+   * cache} of the bean: the result is cached in the given region for the given time, or until
+   * a transaction writing one of the persistence classes the criteria reads (its root and
+   * joined entities) completes. The criteria with a subquery or a SQL restriction are not
+   * cached. Without query cache, the Hibernate query cache is used.
+   * <p>
+   * The cache holds the primary keys of the entities: a cached result is loaded by primary key
+   * into the current session, so the caller always gets managed objects. The cache is bypassed
+   * while the current transaction has pending writes to one of these persistence classes.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param region the given cache region.
+   * @param ttl the given time the result is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   * @return the list of data that match the given criteria.
+   *
+   * @throws EjbException if we could not execute query to retrieve the matching data in the
+   * container.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public List<T> query(final Criteria criteria, final String region, final long ttl,
+      final TimeUnit unit) throws EjbException {
+    final QueryCache cache = getQueryCache();
+    if (cache == null || !(criteria instanceof CriteriaImpl)) {
+      return query(criteria, region);
+    }
+
+    final long start = System.nanoTime();
+    try {
+      final Session session = HibernateSupport.getSession(entityManager);
+      final String[] entityNames = CriteriaSignature.entityNamesOf(criteria);
+      final String signature = QueryCache.signatureOf(criteria);
+      if (signature == null || entityNames == null || isWritten(entityNames)) {
+        return criteria.list();
+      }
+
+      final List<?> cached = cache.get(region, signature);
+      final List<T> resolved =
+        (cached != null ? (List<T>) HibernateSupport.fromCacheForm(session, cached) : null);
+      if (resolved != null) {
+        return resolved;
+      }
+
+      final long stamp = cache.stamp(entityNames);
+      final List<T> result = criteria.list();
+      final List<Object> form = HibernateSupport.toCacheForm(session, result);
+      if (form != null) {
+        cache.put(region, signature, entityNames, stamp, form, ttl, unit);
+      }
+      return result;
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to retrieve the matching the data.";
+      throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(criteria), start);
     }
   }
 
@@ -245,6 +428,7 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public List<T> query(final T search, final int startAt, final int maxItems) throws EjbException {
+    final long start = System.nanoTime();
     try {
       // create criteria from the given persistence object.
       final Criteria criteria = buildQuery(search);
@@ -257,9 +441,347 @@ public abstract class BaseSessionBean<K, T> {
     } catch (final HibernateException hex) {
       final String msg = "Could not execute query to retrieve the matching data in container.";
       throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(search), start);
+    }
+  }
+
+  /**
+   * Query the page of the data that match the given search persistence object, with the given
+   * fetch plan; the fetch plan must not fetch a collection by join, see {@link FetchPlan}.
+   *
+   * @param search the given persistence object used to build the criteria.
+   * @param startAt the given start position.
+   * @param maxItems the max items the user want to retrieve.
+   * @param plan the given {@link FetchPlan fetch plan}.
+   * @return the list of data that match the given search criteria.
+   *
+   * @throws EjbException if we could not execute query to retrieve the matching data in
+   * container.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public List<T> query(final T search, final int startAt, final int maxItems,
+      final FetchPlan plan) throws EjbException {
+    final Criteria criteria = buildQuery(search);
+    criteria.setFirstResult(startAt);
+    criteria.setMaxResults(maxItems);
+
+    return query(criteria, plan);
+  }
+
+  /**
+   * Query the given projection of the data that match the given criteria, mapped onto DTOs: only
+   * the projected columns are selected and no persistence object is hydrated.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param projection the given {@link Projection projection} selecting the columns.
+   * @param mapper the given {@link RowMapper mapper} creating the DTOs from the projected rows.
+   * @return the list of DTOs that match the given criteria.
+   *
+   * @throws EjbException if we could not execute query to retrieve the matching data in the
+   * container.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> List<V> project(final Criteria criteria, final Projection projection,
+      final RowMapper<V> mapper) throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      // the projection resets the result transformer, so set it first.
+      criteria.setProjection(projection);
+      criteria.setResultTransformer(new RowMapperTransformer<V>(mapper));
+
+      return (List<V>) criteria.list();
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to retrieve the matching the data.";
+      throw new EjbException(msg, hex);
+    } finally {
+      record("query", HibernateSupport.labelOf(criteria), start);
+    }
+  }
+
+  /**
+   * Query the rows of the given JPQL query selecting scalar values (not a constructor expression,
+   * which returns the DTOs itself), mapped onto DTOs.
+   *
+   * @param query the given {@link Query query} selecting the columns.
+   * @param mapper the given {@link RowMapper mapper} creating the DTOs from the selected rows.
+   * @return the list of DTOs; never {@code null}.
+   *
+   * @throws EjbException if we could not execute the query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> List<V> project(final Query query, final RowMapper<V> mapper)
+    throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      final List<Object> rows = query.getResultList();
+      final List<V> result = new ArrayList<V>(rows.size());
+      for (final Object row : rows) {
+        // a single selected value is not wrapped into an array.
+        result.add(mapper.map(row instanceof Object[] ? (Object[]) row : new Object[] { row }));
+      }
+
+      return result;
+    } catch (final IllegalStateException isex) {
+      throw new EjbException(isex);
+    } catch (final Throwable throwable) {
+      throw new EjbException(throwable);
+    } finally {
+      record("query", HibernateSupport.labelOf(query), start);
+    }
+  }
+
+  /**
+   * Streams the data that match the given search persistence object to the given visitor.
+   *
+   * @param search the given persistence object used to build the criteria.
+   * @param fetchSize the given number of rows fetched per database round-trip.
+   * @param visitor the given {@link RowVisitor visitor} receiving the rows.
+   *
+   * @return the number of visited rows.
+   *
+   * @throws EjbException if we could not execute query to stream the matching data.
+   * @see #scroll(Criteria, int, RowVisitor)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected int scroll(final T search, final int fetchSize, final RowVisitor<? super T> visitor)
+    throws EjbException {
+    return scroll(buildQuery(search), fetchSize, visitor);
+  }
+
+  /**
+   * Streams the rows of the given criteria to the given visitor, one row at a time: every row is
+   * evicted from the persistence context once visited, so the memory stays constant whatever
+   * the result size.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param fetchSize the given number of rows fetched per database round-trip.
+   * @param visitor the given {@link RowVisitor visitor} receiving the rows.
+   *
+   * @return the number of visited rows.
+   *
+   * @throws EjbException if we could not execute query to stream the matching data.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected int scroll(final Criteria criteria, final int fetchSize,
+      final RowVisitor<? super T> visitor) throws EjbException {
+    final ScrollIterator<T> rows = iterate(criteria, fetchSize);
+    try {
+      int count = 0;
+      while (rows.hasNext()) {
+        count++;
+        if (!visitor.visit(rows.next())) {
+          break;
+        }
+      }
+
+      return count;
+    } finally {
+      rows.close();
+    }
+  }
+
+  /**
+   * Opens a forward-only cursor on the rows of the given criteria. The returned
+   * {@link ScrollIterator iterator} holds a single row at a time; it must be consumed and closed
+   * inside the calling business method.
+   *
+   * @param criteria the given criteria to be query data.
+   * @param fetchSize the given number of rows fetched per database round-trip.
+   *
+   * @return the {@link ScrollIterator iterator} of the rows.
+   *
+   * @throws EjbException if we could not execute query to stream the matching data.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected ScrollIterator<T> iterate(final Criteria criteria, final int fetchSize)
+    throws EjbException {
+    try {
+      criteria.setFetchSize(fetchSize);
+
+      // do not fill the second-level cache with the streamed rows.
+      criteria.setCacheMode(CacheMode.IGNORE);
+
+      return new ScrollIterator<T>(HibernateSupport.getSession(entityManager),
+          criteria.scroll(ScrollMode.FORWARD_ONLY));
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to stream the matching data.";
+      throw new EjbException(msg, hex);
+    }
+  }
+
+  /**
+   * Executes the given reporting work on a {@link StatelessSession stateless session} sharing
+   * the connection of the bean: the loaded objects are neither tracked nor snapshotted for the
+   * dirty checking, so the read-heavy exports run with a constant heap. The pending changes of
+   * the persistence context are not visible to the work until they are flushed.
+   *
+   * @param work the given {@link StatelessWork work} to execute.
+   * @return the result of the work.
+   *
+   * @throws EjbException if we could not execute the work.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> V report(final StatelessWork<V> work) throws EjbException {
+    StatelessSession session = null;
+    try {
+      session = HibernateSupport.openStatelessSession(HibernateSupport.getSession(entityManager));
+      return work.execute(session);
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not execute the report query.", hex);
+    } finally {
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
+  /**
+   * Streams the rows of the criteria built by the given work to the given visitor, through a
+   * {@link StatelessSession stateless session}.
+   *
+   * @param criteria the given {@link StatelessWork work} building the criteria on the stateless
+   * session.
+   * @param fetchSize the given number of rows fetched per database round-trip.
+   * @param visitor the given {@link RowVisitor visitor} receiving the detached rows.
+   *
+   * @return the number of visited rows.
+   *
+   * @throws EjbException if we could not execute query to stream the matching data.
+   * @see #report(StatelessWork)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> int report(final StatelessWork<Criteria> criteria, final int fetchSize,
+      final RowVisitor<? super V> visitor) throws EjbException {
+    return report(new StatelessWork<Integer>() {
+      public Integer execute(final StatelessSession session) {
+        final Criteria executable = criteria.execute(session).setFetchSize(fetchSize);
+        return Integer.valueOf(HibernateSupport.<V>stream(
+            executable.scroll(ScrollMode.FORWARD_ONLY), visitor));
+      }
+    }).intValue();
+  }
+
+  /**
+   * Streams the rows of the given HQL query to the given visitor, through a
+   * {@link StatelessSession stateless session}.
+   *
+   * @param hql the given HQL query.
+   * @param params the given list of pairs (parameter, value); a collection value is bound as a
+   * parameter list.
+   * @param fetchSize the given number of rows fetched per database round-trip.
+   * @param visitor the given {@link RowVisitor visitor} receiving the detached rows.
+   *
+   * @return the number of visited rows.
+   *
+   * @throws EjbException if we could not execute query to stream the matching data.
+   * @see #report(StatelessWork)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> int report(final String hql, final Map<String, Object> params,
+      final int fetchSize, final RowVisitor<? super V> visitor) throws EjbException {
+    return report(new StatelessWork<Integer>() {
+      public Integer execute(final StatelessSession session) {
+        final org.hibernate.Query query =
+          HibernateSupport.bind(session.createQuery(hql), params);
+        return Integer.valueOf(HibernateSupport.<V>stream(
+            query.setFetchSize(fetchSize).scroll(ScrollMode.FORWARD_ONLY), visitor));
+      }
+    }).intValue();
+  }
+
+  /**
+   * Query one page of the data that match the given search persistence object with the keyset
+   * (seek) pagination: instead of skipping an offset, the page starts right after the last row
+   * of the previous page, given by its continuation token. The rows are sorted by the given
+   * property of the persistence class, then by primary key, so the search criteria must not add
+   * its own sort order. The sort property must not be null: a null value has no position to
+   * resume from, and fails with an <tt>EjbException</tt>.
+   *
+   * @param search the given persistence object used to build the criteria.
+   * @param sortProperty the given sort property.
+   * @param ascending whether the rows are sorted in ascending order.
+   * @param token the given continuation token returned with the previous page; {@code null} for
+   * the first page.
+   * @param maxItems the max items the user want to retrieve.
+   *
+   * @return the {@link KeysetPage page} of the matching data.
+   *
+   * @throws EjbException if the token does not match the sort order, or we could not execute
+   * query to retrieve the matching data in container.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected KeysetPage<T> seek(final T search, final String sortProperty, final boolean ascending,
+      final String token, final int maxItems) throws EjbException {
+    try {
+      Preconditions.checkArgument(maxItems > 0 && maxItems < Integer.MAX_VALUE,
+          "The page size must be positive.");
+
+      final Criteria criteria = buildQuery(search);
+      final ClassMetadata metadata =
+        HibernateSupport.getMetadata(HibernateSupport.getSession(entityManager), criteria);
+
+      // start after the last row of the previous page.
+      if (token != null) {
+        final KeysetToken position = KeysetToken.decode(token);
+        if (!position.getProperty().equals(sortProperty) || position.isAscending() != ascending) {
+          throw new EjbException("The keyset token does not match the sort order {" + sortProperty
+                                 + (ascending ? " asc" : " desc") + "}.");
+        }
+        criteria.add(HibernateSupport.after(metadata, position));
+      }
+      HibernateSupport.addKeysetOrder(criteria, metadata, sortProperty, ascending);
+
+      // fetch one more row to know whether there is a next page.
+      criteria.setMaxResults(maxItems + 1);
+      final List<T> rows = criteria.list();
+
+      final KeysetPage<T> page = new KeysetPage<T>();
+      if (rows.size() > maxItems) {
+        rows.subList(maxItems, rows.size()).clear();
+        page.setToken(HibernateSupport.positionOf(metadata, rows.get(maxItems - 1), sortProperty,
+            ascending).encode());
+      }
+      page.setList(rows);
+
+      return page;
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute query to retrieve the matching data in container.";
+      throw new EjbException(msg, hex);
     }
   }
 
+  /**
+   * Query the page of the data that match the given search persistence object with the keyset
+   * pagination, like {@link #seek(Object, String, boolean, String, int)}: the page position is
+   * the continuation token of the given search bean, and the page size is its limit (which must
+   * be set). The token of the next page is stored back into the bean, {@code null} after the
+   * last page.
+   *
+   * @param search the given persistence object used to build the criteria.
+   * @param sortProperty the given sort property.
+   * @param ascending whether the rows are sorted in ascending order.
+   * @param bean the given {@link BaseSearchBean search bean} holding the page position.
+   *
+   * @return the {@link KeysetPage page} of the matching data.
+   *
+   * @throws EjbException if the token does not match the sort order, or we could not execute
+   * query to retrieve the matching data in container.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected KeysetPage<T> seek(final T search, final String sortProperty, final boolean ascending,
+      final BaseSearchBean bean) throws EjbException {
+    final KeysetPage<T> page = seek(search, sortProperty, ascending, bean.getToken(),
+        bean.getLimit());
+    bean.setToken(page.getToken());
+    return page;
+  }
+
   /**
    * Persist the transient object to container.
    *
@@ -273,6 +795,7 @@ public abstract class BaseSessionBean<K, T> {
   protected T insert(final T obj) throws EjbException {
     try {
       entityManager.persist(obj);
+      invalidateCaches(obj);
 
       // return object.
       return obj;
@@ -291,6 +814,70 @@ public abstract class BaseSessionBean<K, T> {
     }
   }
 
+  /**
+   * Persists the given transient objects in batches. The persistence context is flushed and
+   * cleared at every batch boundary, so it never holds more than one batch of objects; set the
+   * <tt>hibernate.jdbc.batch_size</tt> property to the same batch size (and
+   * <tt>hibernate.order_inserts</tt> for mixed object types) to send every flush as JDBC batches.
+   * Note that the objects loaded before in the same persistence context are detached, and the
+   * identity generated objects are always inserted one by one.
+   *
+   * @param objs the given transient objects to persist.
+   * @param batchSize the given number of objects per batch.
+   *
+   * @return the number of persisted objects.
+   *
+   * @throws EjbException if we could not persist the transient objects to container.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected int insertAll(final Collection<T> objs, final int batchSize) throws EjbException {
+    if (objs == null || objs.isEmpty()) {
+      return 0;
+    }
+
+    final FlushModeType flushMode = entityManager.getFlushMode();
+    try {
+      Preconditions.checkArgument(batchSize > 0, "The batch size must be positive.");
+
+      // flush at the batch boundaries only.
+      entityManager.setFlushMode(FlushModeType.COMMIT);
+
+      int count = 0;
+      for (final T obj : objs) {
+        entityManager.persist(obj);
+        invalidateCaches(obj);
+
+        if (++count % batchSize == 0) {
+          entityManager.flush();
+          entityManager.clear();
+        }
+      }
+
+      // flush the last batch.
+      entityManager.flush();
+      entityManager.clear();
+
+      return count;
+    } catch (final EntityExistsException eeex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(eeex);
+    } catch (final IllegalArgumentException iaex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(iaex);
+    } catch (final TransactionRequiredException trex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(trex);
+    } catch (final PersistenceException pex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(pex);
+    } catch (final Throwable throwable) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(throwable);
+    } finally {
+      entityManager.setFlushMode(flushMode);
+    }
+  }
+
   /**
    * Merger the persistence object.
    *
@@ -303,6 +890,7 @@ public abstract class BaseSessionBean<K, T> {
   protected T update(final T obj) throws EjbException {
     try {
       entityManager.merge(obj);
+      invalidateCaches(obj);
 
       // return merge object.
       return obj;
@@ -330,12 +918,123 @@ public abstract class BaseSessionBean<K, T> {
   protected void remove(final T obj) throws EjbException {
     try {
       entityManager.remove(obj);
+      invalidateCaches(obj);
+    } catch (final IllegalArgumentException iaex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(iaex);
+    } catch (final TransactionRequiredException trex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(trex);
+    } catch (final Throwable throwable) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(throwable);
+    }
+  }
+
+  /**
+   * Remove persistence object by primary key.
+   *
+   * @param key the given primary key to find the persistence object to remove.
+   * @param clazz the given persistence object type.
+   *
+   * @throws EjbException if we could not remove the persistence object from the given primary
+   * key out of the container.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected void remove(final K key, final Class<T> clazz) throws EjbException {
+    try {
+      final T obj = (T) entityManager.find(clazz, key);
+      if (obj != null) {
+        entityManager.remove(obj);
+        invalidateCaches(obj);
+      }
+    } catch (final IllegalArgumentException iaex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(iaex);
+    } catch (final TransactionRequiredException trex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(trex);
+    } catch (final Throwable throwable) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(throwable);
+    }
+  }
+
+  /**
+   * Removes the persistence objects of the given primary keys, and evicts them from the
+   * persistence context and the second-level cache.
+   *
+   * @param keys the given primary keys of the objects to be removed.
+   * @param clazz the given persistence object type.
+   *
+   * @return the number of removed objects.
+   *
+   * @throws EjbException if we could not remove the objects out of the container.
+   * @see #removeAll(Collection, Class, int, boolean)
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected int removeAll(final Collection<K> keys, final Class<T> clazz) throws EjbException {
+    return removeAll(keys, clazz, HibernateSupport.DEFAULT_CHUNK_SIZE, true);
+  }
+
+  /**
+   * Removes the persistence objects of the given primary keys with one bulk
+   * <tt>DELETE ... WHERE id IN (...)</tt> statement per chunk of keys, instead of loading and
+   * removing every object. The bulk statement bypasses the cascades and the entity callbacks,
+   * and only supports the persistence classes having a simple primary key property.
+   *
+   * @param keys the given primary keys of the objects to be removed.
+   * @param clazz the given persistence object type.
+   * @param chunkSize the given number of keys per statement.
+   * @param evict whether the removed objects are evicted from the persistence context and the
+   * second-level cache, so they are not flushed or read afterwards.
+   *
+   * @return the number of removed objects.
+   *
+   * @throws EjbException if we could not remove the objects out of the container.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected int removeAll(final Collection<K> keys, final Class<T> clazz, final int chunkSize,
+      final boolean evict) throws EjbException {
+    if (keys == null || keys.isEmpty()) {
+      return 0;
+    }
+
+    try {
+      Preconditions.checkArgument(chunkSize > 0, "The chunk size must be positive.");
+
+      final Session session = HibernateSupport.getSession(entityManager);
+      final ClassMetadata metadata = HibernateSupport.getMetadata(session, clazz);
+      if (metadata.getIdentifierPropertyName() == null) {
+        throw new EjbException("The class {" + clazz.getName() + "} has no primary key property.");
+      }
+
+      // build the bulk statement.
+      final String hql = "delete from " + metadata.getEntityName()
+                         + " where " + metadata.getIdentifierPropertyName() + " in (:keys)";
+
+      int count = 0;
+      for (final List<K> chunk : HibernateSupport.chunk(keys, chunkSize)) {
+        // evict first, the pending changes of the removed objects must not be flushed.
+        if (evict) {
+          HibernateSupport.evict(session, metadata, clazz, chunk);
+        }
+
+        count += session.createQuery(hql).setParameterList("keys", chunk).executeUpdate();
+      }
+
+      invalidateCaches(clazz);
+
+      return count;
+    } catch (final EjbException ejbex) {
+      sessionContext.setRollbackOnly();
+      throw ejbex;
     } catch (final IllegalArgumentException iaex) {
       sessionContext.setRollbackOnly();
       throw new EjbException(iaex);
-    } catch (final TransactionRequiredException trex) {
+    } catch (final HibernateException hex) {
       sessionContext.setRollbackOnly();
-      throw new EjbException(trex);
+      throw new EjbException(hex);
     } catch (final Throwable throwable) {
       sessionContext.setRollbackOnly();
       throw new EjbException(throwable);
@@ -343,51 +1042,224 @@ public abstract class BaseSessionBean<K, T> {
   }
 
   /**
-   * Remove persistence object by primary key.
+   * Load persistence object by primary key.
    *
-   * @param key the given primary key to find the persistence object to remove.
+   * @param key the given primary key to load persistence object.
    * @param clazz the given persistence object type.
    *
-   * @throws EjbException if we could not remove the persistence object from the given primary
-   * key out of the container.
+   * @return the given persistence object instance.
+   * @throws EjbException if we could not load the persistence object from the given
+   * primary key.
+   * @see #loadReadOnly(Object, Class)
    */
-  @TransactionAttribute(TransactionAttributeType.REQUIRED)
-  protected void remove(final K key, final Class<T> clazz) throws EjbException {
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected T load(final K key, final Class<T> clazz) throws EjbException {
+    final long start = System.nanoTime();
     try {
-      final T obj = (T) entityManager.find(clazz, key);
-      if (obj != null) {
-        entityManager.remove(obj);
-      }
+      return (T) entityManager.find(clazz, key);
     } catch (final IllegalArgumentException iaex) {
-      sessionContext.setRollbackOnly();
       throw new EjbException(iaex);
-    } catch (final TransactionRequiredException trex) {
-      sessionContext.setRollbackOnly();
-      throw new EjbException(trex);
     } catch (final Throwable throwable) {
-      sessionContext.setRollbackOnly();
       throw new EjbException(throwable);
+    } finally {
+      record("load", clazz.getName(), start);
     }
   }
 
   /**
-   * Load persistence object by primary key.
+   * Load persistence object by primary key, for reading only. The objects of the classes cached
+   * by the {@link #getEntityCache() entity cache} are served from it when they are not managed
+   * by the persistence context: such an object is a detached copy, its changes are not saved.
+   * Without entity cache, or while the current transaction has pending writes to the class, the
+   * object is loaded as by {@link #load(Object, Class)}.
    *
    * @param key the given primary key to load persistence object.
    * @param clazz the given persistence object type.
    *
-   * @return the given persistence object instance.
+   * @return the managed object, the detached copy or {@code null}.
    * @throws EjbException if we could not load the persistence object from the given
    * primary key.
    */
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
-  protected T load(final K key, final Class<T> clazz) throws EjbException {
+  protected T loadReadOnly(final K key, final Class<T> clazz) throws EjbException {
+    final EntityCache cache = getEntityCache();
+    if (cache != null && key != null && cache.isCached(clazz) && !isWritten(clazz.getName())) {
+      final long start = System.nanoTime();
+      try {
+        return loadCached(cache, key, clazz);
+      } finally {
+        record("load", clazz.getName(), start);
+      }
+    }
+    return load(key, clazz);
+  }
+
+  /**
+   * Load the persistence objects of the given primary keys.
+   *
+   * @param keys the given primary keys to load persistence objects.
+   * @param clazz the given persistence object type.
+   *
+   * @return the persistence objects by primary key, in the order of the given keys.
+   * @throws EjbException if we could not load the persistence objects.
+   * @see #loadAll(Collection, Class, int)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Map<K, T> loadAll(final Collection<K> keys, final Class<T> clazz) throws EjbException {
+    return loadAll(keys, clazz, HibernateSupport.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Load the persistence objects of the given primary keys: the objects already managed by the
+   * persistence context are served without hitting the database, the others are fetched by one
+   * <tt>IN</tt> query per chunk of keys, instead of one query per key. The objects deleted by the
+   * current transaction are left out, even before the deletion is flushed.
+   * <p>
+   * The <tt>IN</tt> query does not read the Hibernate second-level cache, unlike
+   * {@link #load(Object, Class)}: for a class held in that cache and mostly read by key, the
+   * per key loads may be cheaper than the query.
+   *
+   * @param keys the given primary keys to load persistence objects.
+   * @param clazz the given persistence object type.
+   * @param chunkSize the given number of keys per query.
+   *
+   * @return the persistence objects by primary key, in the order of the given keys; the keys
+   * having no persistence object are left out.
+   * @throws EjbException if we could not load the persistence objects.
+   * @see #loadAllReadOnly(Collection, Class)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Map<K, T> loadAll(final Collection<K> keys, final Class<T> clazz,
+      final int chunkSize) throws EjbException {
+    return loadAll(keys, clazz, chunkSize, false);
+  }
+
+  /**
+   * Load the persistence objects of the given primary keys for reading only, as by
+   * {@link #loadAll(Collection, Class)}; the objects cached by the {@link #getEntityCache()
+   * entity cache} are also served without hitting the database, as detached copies whose changes
+   * are not saved.
+   *
+   * @param keys the given primary keys to load persistence objects.
+   * @param clazz the given persistence object type.
+   *
+   * @return the persistence objects by primary key, in the order of the given keys; the keys
+   * having no persistence object are left out.
+   * @throws EjbException if we could not load the persistence objects.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Map<K, T> loadAllReadOnly(final Collection<K> keys, final Class<T> clazz)
+    throws EjbException {
+    return loadAll(keys, clazz, HibernateSupport.DEFAULT_CHUNK_SIZE, true);
+  }
+
+  /**
+   * Load the persistence objects of the given primary keys.
+   *
+   * @param keys the given primary keys to load persistence objects.
+   * @param clazz the given persistence object type.
+   * @param chunkSize the given number of keys per query.
+   * @param readOnly whether the objects may be served by the entity cache.
+   *
+   * @return the persistence objects by primary key, in the order of the given keys.
+   * @throws EjbException if we could not load the persistence objects.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private Map<K, T> loadAll(final Collection<K> keys, final Class<T> clazz,
+      final int chunkSize, final boolean readOnly) throws EjbException {
+    final Map<K, T> result = new LinkedHashMap<K, T>();
+    if (keys == null || keys.isEmpty()) {
+      return result;
+    }
+
     try {
-      return (T) entityManager.find(clazz, key);
+      Preconditions.checkArgument(chunkSize > 0, "The chunk size must be positive.");
+
+      final Session session = HibernateSupport.getSession(entityManager);
+      final ClassMetadata metadata = HibernateSupport.getMetadata(session, clazz);
+
+      // keep the order of the keys, serve the managed and cached objects first.
+      final EntityCache cache = (readOnly ? getEntityCache() : null);
+      final boolean cached =
+        cache != null && cache.isCached(clazz) && !isWritten(clazz.getName());
+      final long stamp = cached ? cache.stamp(clazz) : 0;
+      final List<K> missing = new ArrayList<K>();
+      for (final K key : keys) {
+        if (key == null || result.containsKey(key)) {
+          continue;
+        }
+
+        if (HibernateSupport.isRemoved(session, metadata, key)) {
+          continue;
+        }
+
+        T obj = (T) HibernateSupport.getManaged(session, metadata, key);
+        if (obj == null && cached) {
+          obj = (T) cache.get(clazz, key);
+        }
+        result.put(key, obj);
+        if (obj == null) {
+          missing.add(key);
+        }
+      }
+      if (missing.isEmpty()) {
+        return result;
+      }
+
+      // fetch the other objects.
+      final String identifier = metadata.getIdentifierPropertyName();
+      for (final List<K> chunk : HibernateSupport.chunk(missing, chunkSize)) {
+        final List<T> objs =
+          session.createCriteria(clazz).add(Restrictions.in(identifier, chunk)).list();
+        for (final T obj : objs) {
+          final K key = (K) session.getIdentifier(obj);
+          result.put(key, obj);
+          if (cached && HibernateSupport.isInitialized(session, obj)) {
+            cache.put(clazz, key, stamp, obj);
+          }
+        }
+      }
+
+      // remove the keys having no persistence object.
+      result.values().removeAll(Collections.singleton(null));
+
+      return result;
     } catch (final IllegalArgumentException iaex) {
       throw new EjbException(iaex);
-    } catch (final Throwable throwable) {
-      throw new EjbException(throwable);
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not load the persistence objects.", hex);
+    }
+  }
+
+  /**
+   * Initializes the given lazy association paths of the given managed persistence objects with a
+   * few fetch join queries (one per path and chunk of objects), instead of one query per object
+   * and association on first access. The objects not managed by the persistence context, e.g.
+   * the detached copies of {@link #loadAllReadOnly(Collection, Class)}, are left as they are.
+   * It returns the given list, so it wraps the list helpers:
+   *
+   *   return initialize(query(search), "lines", "lines.product", "customer");
+   *
+   * @param objs the given persistence objects managed by the persistence context.
+   * @param paths the given association paths.
+   * @return the given persistence objects.
+   *
+   * @throws EjbException if we could not initialize the associations.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected List<T> initialize(final List<T> objs, final String... paths) throws EjbException {
+    if (objs == null || objs.isEmpty() || paths == null || paths.length == 0) {
+      return objs;
+    }
+
+    try {
+      HibernateSupport.initialize(HibernateSupport.getSession(entityManager), objs, paths,
+          HibernateSupport.DEFAULT_CHUNK_SIZE);
+
+      return objs;
+    } catch (final HibernateException hex) {
+      final String msg = "Could not initialize the associations " + Arrays.toString(paths) + ".";
+      throw new EjbException(msg, hex);
     }
   }
 
@@ -403,6 +1275,7 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   protected T loadSingle(final Query query) throws EjbException {
+    final long start = System.nanoTime();
     try {
       return (T) query.getSingleResult();
     } catch (final NoResultException nrex) {
@@ -413,6 +1286,8 @@ public abstract class BaseSessionBean<K, T> {
       throw new EjbException(isex);
     } catch (final Throwable throwable) {
       throw new EjbException(throwable);
+    } finally {
+      record("load", HibernateSupport.labelOf(query), start);
     }
   }
 
@@ -427,17 +1302,68 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   protected List<T> load(final Query query) throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      return (List<T>) query.getResultList();
+    } catch (final IllegalStateException isex) {
+      throw new EjbException(isex);
+    } catch (final Throwable throwable) {
+      throw new EjbException(throwable);
+    } finally {
+      record("load", HibernateSupport.labelOf(query), start);
+    }
+  }
+
+  /**
+   * Load all persistence object that match criteria in query, through the Hibernate query
+   * cache region.
+   *
+   * @param query the given {@link Query query} to search data.
+   * @param region the given query cache region.
+   * @return the list of persistence objects.
+   *
+   * @throws EjbException if we could not search data in container.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected List<T> load(final Query query, final String region) throws EjbException {
+    final long start = System.nanoTime();
     try {
+      query.setHint("org.hibernate.cacheable", Boolean.TRUE);
+      query.setHint("org.hibernate.cacheRegion", region);
+
       return (List<T>) query.getResultList();
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
     } catch (final IllegalStateException isex) {
       throw new EjbException(isex);
     } catch (final Throwable throwable) {
       throw new EjbException(throwable);
+    } finally {
+      record("load", HibernateSupport.labelOf(query), start);
     }
   }
 
+  /**
+   * Load all persistence object that match criteria in query, with the given fetch plan.
+   *
+   * @param query the given {@link Query query} to search data.
+   * @param plan the given {@link FetchPlan fetch plan}.
+   * @return the list of persistence objects.
+   *
+   * @throws EjbException if we could not search data in container.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected List<T> load(final Query query, final FetchPlan plan) throws EjbException {
+    return load(plan.apply(query));
+  }
+
   /**
    * Load persistence object from the given name query and persistence primary key.
+   * With the {@link #getNaturalKeyCache() natural key cache}, the primary key of the object
+   * found by the given value is cached, and the next lookups resolve it through find instead of
+   * running the query. While the current transaction has pending writes to the cached class,
+   * the natural key may have changed: the query is run and its result is not cached.
    *
    * @param namedQuery the given name query to build the query.
    * @param param the given query parameter.
@@ -451,7 +1377,21 @@ public abstract class BaseSessionBean<K, T> {
   @SuppressWarnings({ "unchecked" })
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   protected T load(final String namedQuery, final String param, final K key) throws EjbException {
+    final NaturalKeyCache cache = getNaturalKeyCache();
+    final long start = System.nanoTime();
     try {
+      long stamp = 0;
+      if (cache != null && key != null) {
+        final NaturalKeyCache.Reference reference = cache.get(namedQuery, param, key);
+        if (reference != null && !isWritten(reference.getEntityClass().getName())) {
+          final Object obj = entityManager.find(reference.getEntityClass(), reference.getKey());
+          if (obj != null) {
+            return (T) obj;
+          }
+        }
+        stamp = cache.stamp();
+      }
+
       // create query.
       final Query query = getEntityManager().createNamedQuery(namedQuery);
       query.setParameter(param, key);
@@ -459,14 +1399,24 @@ public abstract class BaseSessionBean<K, T> {
 
       // execute and return the value.
       final List results = query.getResultList();
+      final T result = (T) (results != null && results.size() > 0 ? results.get(0) : null);
+
+      if (cache != null && key != null && result != null
+          && !isWritten(Hibernate.getClass(result).getName())) {
+        final Session session = HibernateSupport.getSession(entityManager);
+        cache.put(namedQuery, param, key, Hibernate.getClass(result),
+            (Serializable) HibernateSupport.getIdentifier(session, result), stamp);
+      }
 
-      return (T) (results != null && results.size() > 0 ? results.get(0) : null);
+      return result;
     } catch (final NoResultException nrex) {
       return null;
     } catch (final IllegalStateException isex) {
       throw new EjbException(isex);
     } catch (final Throwable throwable) {
       throw new EjbException(throwable);
+    } finally {
+      record("load", namedQuery, start, new String[] { param }, new Object[] { key });
     }
   }
 
@@ -483,6 +1433,7 @@ public abstract class BaseSessionBean<K, T> {
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   protected <V> List<V> load(final String namedQuery, final Map<String, Object> params)
     throws EjbException {
+    final long start = System.nanoTime();
     try {
       // create query.
       final Query query = getEntityManager().createNamedQuery(namedQuery);
@@ -507,6 +1458,93 @@ public abstract class BaseSessionBean<K, T> {
       throw new EjbException(isex);
     } catch (final Throwable throwable) {
       throw new EjbException(throwable);
+    } finally {
+      record("load", namedQuery, start, params);
+    }
+  }
+
+  /**
+   * Load all persistence objects that match the criteria given by the query template.
+   *
+   * @param template the given {@link QueryTemplate query template} to execute.
+   * @param values the given parameter values, in the template parameter order.
+   * @return all persistence objects; never {@code null}.
+   *
+   * @throws EjbException if we could not execute the query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> List<V> load(final QueryTemplate template, final Object... values)
+    throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      final Query query = template.bind(entityManager.createNamedQuery(template.getName()), values);
+
+      // execute and return the value.
+      final List result = query.getResultList();
+
+      // return result.
+      return (List<V>) (result == null ? Collections.emptyList() : result);
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
+    } catch (final IllegalStateException isex) {
+      throw new EjbException(isex);
+    } catch (final Throwable throwable) {
+      throw new EjbException(throwable);
+    } finally {
+      record("load", template.getName(), start, template.getParameters(), values);
+      template.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Load all persistence objects of the given query template through the {@link #getQueryCache()
+   * query cache} of the bean: the result is cached in the given region for the given time, or
+   * until a transaction writing the given persistence class completes. Without query cache, the
+   * query is executed. As with {@link #query(Criteria, String, long, TimeUnit)}, the cache holds
+   * the primary keys of the entities and copies of the other values.
+   *
+   * @param template the given {@link QueryTemplate query template} to execute.
+   * @param clazz the given persistence class the query reads.
+   * @param region the given cache region.
+   * @param ttl the given time the result is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   * @param values the given parameter values, in the template parameter order.
+   * @return the list of persistence objects; never {@code null}.
+   *
+   * @throws EjbException if we could not execute the query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> List<V> loadCached(final QueryTemplate template, final Class<?> clazz,
+      final String region, final long ttl, final TimeUnit unit, final Object... values)
+    throws EjbException {
+    final QueryCache cache = getQueryCache();
+    if (cache == null || isWritten(clazz.getName())) {
+      return load(template, values);
+    }
+
+    try {
+      final Session session = HibernateSupport.getSession(entityManager);
+      final String signature =
+        CriteriaSignature.of(session.getSessionFactory(), template.getName(), values);
+      final List<?> cached = cache.get(region, signature);
+      final List<V> resolved =
+        (cached != null ? (List<V>) HibernateSupport.fromCacheForm(session, cached) : null);
+      if (resolved != null) {
+        return resolved;
+      }
+
+      final long stamp = cache.stamp(clazz.getName());
+      final List<V> result = load(template, values);
+      final List<Object> form = HibernateSupport.toCacheForm(session, result);
+      if (form != null) {
+        cache.put(region, signature, new String[] { clazz.getName() }, stamp, form, ttl,
+            unit);
+      }
+      return result;
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not execute the query {" + template.getName() + "}.", hex);
     }
   }
 
@@ -525,6 +1563,7 @@ public abstract class BaseSessionBean<K, T> {
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   protected List<T> pagination(final Query query, final int startAt, final int maxItems)
     throws EjbException {
+    final long start = System.nanoTime();
     try {
       query.setFirstResult(startAt);
       query.setMaxResults(maxItems);
@@ -536,9 +1575,29 @@ public abstract class BaseSessionBean<K, T> {
       throw new EjbException(isex);
     } catch (final Throwable throwable) {
       throw new EjbException(throwable);
+    } finally {
+      record("pagination", HibernateSupport.labelOf(query), start);
     }
   }
 
+  /**
+   * Load list of persistence objects dependence on start position and page items, with the
+   * given fetch plan.
+   *
+   * @param query the given {@link Query query} to query data.
+   * @param startAt the given start position to retrieve the data.
+   * @param maxItems the given max elements to fetch.
+   * @param plan the given {@link FetchPlan fetch plan}.
+   *
+   * @return the list of matching objects.
+   * @throws EjbException if we could not execute query to fetch matching object.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected List<T> pagination(final Query query, final int startAt, final int maxItems,
+      final FetchPlan plan) throws EjbException {
+    return pagination(plan.apply(query), startAt, maxItems);
+  }
+
   /**
    * Execute the query and return the number of rows is changed.
    *
@@ -548,8 +1607,12 @@ public abstract class BaseSessionBean<K, T> {
    */
   @TransactionAttribute(TransactionAttributeType.REQUIRED)
   protected int executeUpdate(final Query query) throws EjbException {
+    final long start = System.nanoTime();
     try {
-      return query.executeUpdate();
+      final int rows = query.executeUpdate();
+      invalidateAllCaches();
+
+      return rows;
     } catch (final IllegalArgumentException iaex) {
       sessionContext.setRollbackOnly();
       throw new EjbException(iaex);
@@ -562,6 +1625,8 @@ public abstract class BaseSessionBean<K, T> {
     } catch (final Throwable th) {
       sessionContext.setRollbackOnly();
       throw new EjbException(th);
+    } finally {
+      record("executeUpdate", HibernateSupport.labelOf(query), start);
     }
   }
 
@@ -576,6 +1641,7 @@ public abstract class BaseSessionBean<K, T> {
   @TransactionAttribute(TransactionAttributeType.REQUIRED)
   protected int executeUpdate(final String namedQuery, final Map<String, Object> params)
     throws EjbException {
+    final long start = System.nanoTime();
     try {
       // create query.
       final Query query = getEntityManager().createNamedQuery(namedQuery);
@@ -589,7 +1655,45 @@ public abstract class BaseSessionBean<K, T> {
         }
       }
 
-      return query.executeUpdate();
+      final int rows = query.executeUpdate();
+      invalidateAllCaches();
+
+      return rows;
+    } catch (final IllegalArgumentException iaex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(iaex);
+    } catch (final IllegalStateException isex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(isex);
+    } catch (final EJBException eex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(eex);
+    } catch (final Throwable th) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(th);
+    } finally {
+      record("executeUpdate", namedQuery, start, params);
+    }
+  }
+
+  /**
+   * Execute the query template and return the number of rows is changed.
+   *
+   * @param template the given {@link QueryTemplate query template} to execute.
+   * @param values the given parameter values, in the template parameter order.
+   * @return the number of rows is changed.
+   * @throws EjbException if an error occurs during executing update query.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected int executeUpdate(final QueryTemplate template, final Object... values)
+    throws EjbException {
+    final long start = System.nanoTime();
+    try {
+      final int rows =
+        template.bind(entityManager.createNamedQuery(template.getName()), values).executeUpdate();
+      invalidateAllCaches();
+
+      return rows;
     } catch (final IllegalArgumentException iaex) {
       sessionContext.setRollbackOnly();
       throw new EjbException(iaex);
@@ -602,6 +1706,9 @@ public abstract class BaseSessionBean<K, T> {
     } catch (final Throwable th) {
       sessionContext.setRollbackOnly();
       throw new EjbException(th);
+    } finally {
+      record("executeUpdate", template.getName(), start, template.getParameters(), values);
+      template.record(System.nanoTime() - start);
     }
   }
 
@@ -648,7 +1755,10 @@ public abstract class BaseSessionBean<K, T> {
   @TransactionAttribute(TransactionAttributeType.REQUIRED)
   protected T merge(final T obj) throws EjbException {
     try {
-      return entityManager.merge(obj);
+      final T result = entityManager.merge(obj);
+      invalidateCaches(obj);
+
+      return result;
     } catch (final EntityExistsException eeex) {
       sessionContext.setRollbackOnly();
       throw new EjbException(eeex);
@@ -664,6 +1774,106 @@ public abstract class BaseSessionBean<K, T> {
     }
   }
 
+  /**
+   * Merges the given detached objects in batches, inside the container transaction. The persistence
+   * context is flushed and cleared at every batch boundary, so it never holds more than one
+   * batch of objects. An object which could not be merged is reported to the monitor and in the
+   * result, and the next objects are still merged unless the failure marked the transaction for
+   * roll-back; a failure while flushing a batch can not be attributed to a single object and
+   * rolls back the whole transaction.
+   *
+   * @param objs the given detached objects to merge.
+   * @param batchSize the given number of objects per batch.
+   * @param monitor the given {@link BatchMonitor monitor} receiving the progress; may be
+   * {@code null}.
+   *
+   * @return the {@link BatchResult result} of the batch merge.
+   *
+   * @throws EjbException if we could not merge the objects.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected BatchResult mergeAll(final Collection<T> objs, final int batchSize,
+      final BatchMonitor<? super T> monitor) throws EjbException {
+    final BatchResult result = new BatchResult();
+    if (objs == null || objs.isEmpty()) {
+      return result;
+    }
+
+    final FlushModeType flushMode = entityManager.getFlushMode();
+    try {
+      Preconditions.checkArgument(batchSize > 0, "The batch size must be positive.");
+
+      // flush at the batch boundaries only.
+      entityManager.setFlushMode(FlushModeType.COMMIT);
+
+      int index = 0;
+      for (final T obj : objs) {
+        try {
+          entityManager.merge(obj);
+          invalidateCaches(obj);
+          result.addProcessed();
+        } catch (final RuntimeException rex) {
+          result.addFailure(index, rex);
+          if (monitor != null) {
+            monitor.onFailure(index, obj, rex);
+          }
+
+          // the transaction is lost, no other object can be merged.
+          if (sessionContext.getRollbackOnly()) {
+            throw new EjbException("Could not merge the object at index {" + index + "}.", rex);
+          }
+        }
+
+        if (++index % batchSize == 0 || index == objs.size()) {
+          entityManager.flush();
+          entityManager.clear();
+
+          if (monitor != null) {
+            monitor.onBatch(result);
+          }
+        }
+      }
+
+      return result;
+    } catch (final EjbException ejbex) {
+      sessionContext.setRollbackOnly();
+      throw ejbex;
+    } catch (final IllegalArgumentException iaex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(iaex);
+    } catch (final TransactionRequiredException trex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(trex);
+    } catch (final PersistenceException pex) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(pex);
+    } catch (final Throwable throwable) {
+      sessionContext.setRollbackOnly();
+      throw new EjbException(throwable);
+    } finally {
+      entityManager.setFlushMode(flushMode);
+    }
+  }
+
+  /**
+   * Updates the given detached objects in batches; see
+   * {@link #mergeAll(Collection, int, BatchMonitor)}.
+   *
+   * @param objs the given detached objects to update.
+   * @param batchSize the given number of objects per batch.
+   * @param monitor the given {@link BatchMonitor monitor} receiving the progress; may be
+   * {@code null}.
+   *
+   * @return the {@link BatchResult result} of the batch update.
+   *
+   * @throws EjbException if we could not update the objects.
+   */
+  @TransactionAttribute(TransactionAttributeType.REQUIRED)
+  protected BatchResult updateAll(final Collection<T> objs, final int batchSize,
+      final BatchMonitor<? super T> monitor) throws EjbException {
+    return mergeAll(objs, batchSize, monitor);
+  }
+
   /**
    * Looks up the remote bean from the bean name and the type of bean.
    * @param <V> the given remote bean type.
@@ -731,6 +1941,7 @@ public abstract class BaseSessionBean<K, T> {
    */
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public int count(final Criteria criteria) {
+    final long start = System.nanoTime();
     try {
       // execute the criteria and get single result.
       final Object result = criteria.uniqueResult();
@@ -741,10 +1952,12 @@ public abstract class BaseSessionBean<K, T> {
       }
 
       if (result instanceof Long) {
-        return ((Long) result).intValue();
+        return (int) Math.min(((Long) result).longValue(), Integer.MAX_VALUE);
       }
     } catch (final Exception ex) {
       LOG.warn("Could not execute the query or convert value.");
+    } finally {
+      record("count", HibernateSupport.labelOf(criteria), start);
     }
 
     return 0;
@@ -758,13 +1971,14 @@ public abstract class BaseSessionBean<K, T> {
    */
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public int count(final Query query) {
+    final long start = System.nanoTime();
     try {
       // execute the criteria and get single result.
       final Object result = query.getSingleResult();
 
       // return all items that match criteria.
       if (result instanceof Long) {
-        return ((Long) result).intValue();
+        return (int) Math.min(((Long) result).longValue(), Integer.MAX_VALUE);
       }
 
       if (result instanceof Integer) {
@@ -772,11 +1986,422 @@ public abstract class BaseSessionBean<K, T> {
       }
     } catch (final Exception ex) {
       LOG.warn("Could not execute the query or convert value", ex);
+    } finally {
+      record("count", HibernateSupport.labelOf(query), start);
     }
 
     return 0;
   }
 
+  /**
+   * Counts the items that match the given search criteria, up to the given cap: the count is
+   * exact when there are no more items than the cap, otherwise it is the cap as a lower bound
+   * ("more than N"). Only the primary keys of at most <tt>cap + 1</tt> items are fetched, so the
+   * cap should stay small.
+   * <p>
+   * The criteria is consumed: its projection and max results are replaced by the count, so it
+   * must not be listed afterwards. Create a new criteria for the page query.
+   *
+   * @param criteria the given search {@link Criteria criteria} (without projection), consumed by
+   * the count.
+   * @param cap the given maximum number of items to count.
+   *
+   * @return the {@link CountResult count}.
+   *
+   * @throws EjbException if we could not execute the count query.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public CountResult countAtMost(final Criteria criteria, final int cap) throws EjbException {
+    try {
+      Preconditions.checkArgument(cap >= 0 && cap < Integer.MAX_VALUE, "Illegal count cap.");
+
+      criteria.setProjection(Projections.id());
+      criteria.setMaxResults(cap + 1);
+
+      final int items = criteria.list().size();
+      return (items > cap ? new CountResult(cap, false) : new CountResult(items, true));
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not execute the count query.", hex);
+    }
+  }
+
+  /**
+   * Counts all items of the given persistence class, estimated from the database statistics
+   * without scanning the table. The table is never counted exactly: the count is
+   * {@link CountResult#UNKNOWN unknown} when the database has no statistics for the table, or
+   * they can not be read.
+   *
+   * @param clazz the given persistence class.
+   *
+   * @return the {@link CountResult count}; {@link CountResult#UNKNOWN} if it can not be
+   * estimated.
+   *
+   * @throws EjbException if we could not execute the count query.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public CountResult estimateCount(final Class<?> clazz) throws EjbException {
+    try {
+      final Session session = HibernateSupport.getSession(entityManager);
+      final Long estimate =
+        HibernateSupport.estimateRows(session, HibernateSupport.getMetadata(session, clazz));
+      return (estimate != null ? new CountResult(estimate.longValue(), false)
+                               : CountResult.UNKNOWN);
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not execute the count query.", hex);
+    }
+  }
+
+  /**
+   * Searches one page of the data and fills the {@link SearchWrapper search result}. The count
+   * criteria is only executed for the first page, the later pages reuse the total carried by the
+   * search bean; the totals are also shared between the searches when the bean has a
+   * {@link #getCountCache() count cache}.
+   *
+   * @param search the given {@link Search search} creating the count and search criteria.
+   * @param bean the given {@link BaseSearchBean search bean} holding the page position, its
+   * total is set by the first page.
+   *
+   * @return the {@link SearchWrapper search result}.
+   *
+   * @throws EjbException if we could not execute the count or search query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public SearchWrapper<T> search(final Search search, final BaseSearchBean bean)
+    throws EjbException {
+    try {
+      // count the matching data on the first page only.
+      if (bean.isFirstTimes()) {
+        bean.setTotal(countTotal(search.createCriteria(true)));
+        bean.setFirstTimes(false);
+      }
+
+      // query the page.
+      final Criteria criteria = search.createCriteria(false);
+      criteria.setFirstResult(bean.getOffset());
+      criteria.setMaxResults(bean.getLimit());
+
+      final SearchWrapper<T> result = new SearchWrapper<T>();
+      result.setList(criteria.list());
+      result.setTotal(bean.getTotal());
+
+      return result;
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute the search query to retrieve the matching data.";
+      throw new EjbException(msg, hex);
+    }
+  }
+
+  /**
+   * Searches one page of the given projection of the data like
+   * {@link #search(Search, BaseSearchBean)}, mapped onto DTOs: the page selects the projected
+   * columns only, and the remote client receives the lightweight DTOs instead of the persistence
+   * objects.
+   *
+   * @param search the given {@link Search search} creating the count and search criteria.
+   * @param bean the given {@link BaseSearchBean search bean} holding the page position, its total
+   * is set by the first page.
+   * @param projection the given {@link Projection projection} selecting the columns.
+   * @param mapper the given {@link RowMapper mapper} creating the serializable DTOs.
+   *
+   * @return the {@link SearchWrapper search result} of the DTOs.
+   *
+   * @throws EjbException if we could not execute the count or search query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public <V> SearchWrapper<V> search(final Search search, final BaseSearchBean bean,
+      final Projection projection, final RowMapper<V> mapper) throws EjbException {
+    try {
+      // count the matching data on the first page only.
+      if (bean.isFirstTimes()) {
+        bean.setTotal(countTotal(search.createCriteria(true)));
+        bean.setFirstTimes(false);
+      }
+
+      // query the projected page.
+      final Criteria criteria = search.createCriteria(false);
+      criteria.setProjection(projection);
+      criteria.setResultTransformer(new RowMapperTransformer<V>(mapper));
+      criteria.setFirstResult(bean.getOffset());
+      criteria.setMaxResults(bean.getLimit());
+
+      final SearchWrapper<V> result = new SearchWrapper<V>();
+      result.setList(criteria.list());
+      result.setTotal(bean.getTotal());
+
+      return result;
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute the search query to retrieve the matching data.";
+      throw new EjbException(msg, hex);
+    }
+  }
+
+  /**
+   * Returns the {@link CountCache count cache} sharing the search totals.
+   *
+   * The caches are opt-in: this accessor, {@link #getQueryCache()}, {@link #getEntityCache()}
+   * and {@link #getNaturalKeyCache()} return {@code null}, and a session bean overrides the ones
+   * it needs to return an instance shared by all its instances (a static field).
+   *
+   * @return the {@link CountCache count cache}; {@code null} if the totals are not cached.
+   */
+  protected CountCache getCountCache() {
+    return null;
+  }
+
+  /**
+   * Returns the {@link QueryCache query cache} of the cacheable queries, which fits the hot
+   * lookup data read far more often than written.
+   *
+   * @return the {@link QueryCache query cache}; {@code null} if the results are not cached.
+   */
+  protected QueryCache getQueryCache() {
+    return null;
+  }
+
+  /**
+   * Returns the {@link EntityCache entity cache} of the objects loaded by primary key for
+   * reading only, see {@link #loadReadOnly(Object, Class)}.
+   *
+   * @return the {@link EntityCache entity cache}; {@code null} if the objects are not cached.
+   */
+  protected EntityCache getEntityCache() {
+    return null;
+  }
+
+  /**
+   * Returns the {@link NaturalKeyCache natural key cache} of the single-row lookups by unique
+   * attribute.
+   *
+   * @return the {@link NaturalKeyCache natural key cache}; {@code null} if the natural keys are
+   * not cached.
+   */
+  protected NaturalKeyCache getNaturalKeyCache() {
+    return null;
+  }
+
+  /**
+   * Searches one page of the data like {@link #search(Search, BaseSearchBean)}, but on the first
+   * page the count runs on a separate read-only session of the {@link QueryExecutor query
+   * executor}, while the page is queried on the current session. The count does not see the
+   * pending changes of the current transaction. When there is no executor or it is saturated,
+   * the count runs on the current session after the page query.
+   *
+   * @param search the given {@link DetachedSearch search} creating the count and search criteria.
+   * @param bean the given {@link BaseSearchBean search bean} holding the page position, its
+   * total is set by the first page.
+   *
+   * @return the {@link SearchWrapper search result}.
+   *
+   * @throws EjbException if we could not execute the count or search query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  public SearchWrapper<T> searchConcurrent(final DetachedSearch search, final BaseSearchBean bean)
+    throws EjbException {
+    final Session session = HibernateSupport.getSession(entityManager);
+    Future<Integer> counting = null;
+    DetachedCriteria countAfter = null;
+    try {
+      // count the matching data on the first page only, concurrently with the page query.
+      if (bean.isFirstTimes()) {
+        final CountCache cache = getCountCache();
+        final DetachedCriteria count = search.createDetachedCriteria(true);
+        final String signature = CountCache.signatureOf(count, session);
+        final Integer total = (cache != null ? cache.get(signature) : null);
+        if (total != null) {
+          bean.setTotal(total.intValue());
+          bean.setFirstTimes(false);
+        } else {
+          final QueryExecutor executor = QueryExecutor.getInstance();
+          try {
+            counting = (executor == null ? null : executor.submit(session.getSessionFactory(),
+                new SessionWork<Integer>() {
+                  public Integer execute(final Session countSession) {
+                    final Object result = count.getExecutableCriteria(countSession)
+                      .uniqueResult();
+                    final int value = HibernateSupport.toCount(result);
+                    if (cache != null) {
+                      cache.put(signature, value);
+                    }
+                    return Integer.valueOf(value);
+                  }
+                }));
+          } catch (final RejectedExecutionException rex) {
+            LOG.debug("The query executor is saturated, counting on the current session.");
+          }
+          if (counting == null) {
+            countAfter = count;
+          }
+        }
+      }
+
+      // query the page.
+      final Criteria criteria = search.createDetachedCriteria(false).getExecutableCriteria(session);
+      criteria.setFirstResult(bean.getOffset());
+      criteria.setMaxResults(bean.getLimit());
+      final List<T> list = criteria.list();
+
+      if (counting != null) {
+        bean.setTotal(counting.get().intValue());
+        bean.setFirstTimes(false);
+        counting = null;
+      } else if (countAfter != null) {
+        bean.setTotal(countTotal(countAfter.getExecutableCriteria(session)));
+        bean.setFirstTimes(false);
+      }
+
+      final SearchWrapper<T> result = new SearchWrapper<T>();
+      result.setList(list);
+      result.setTotal(bean.getTotal());
+
+      return result;
+    } catch (final HibernateException hex) {
+      final String msg = "Could not execute the search query to retrieve the matching data.";
+      throw new EjbException(msg, hex);
+    } catch (final ExecutionException eex) {
+      final String msg = "Could not execute the count query to retrieve the total.";
+      throw new EjbException(msg, eex.getCause());
+    } catch (final InterruptedException iex) {
+      Thread.currentThread().interrupt();
+      throw new EjbException("Interrupted while counting the matching data.", iex);
+    } finally {
+      if (counting != null) {
+        counting.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Query the data that match the given detached criteria on a separate read-only session of the
+   * {@link QueryExecutor query executor}, so several independent queries of a business method
+   * run concurrently. The query does not see the pending changes of the current transaction,
+   * and returns detached objects. The criteria must not be used by another query meanwhile.
+   * The query is never run on the calling thread: it is rejected when the executor is
+   * saturated, and the caller decides whether to run it synchronously instead.
+   *
+   * @param criteria the given {@link DetachedCriteria detached criteria} to be query data.
+   * @return the {@link Future future} list of data; see {@link #await(Future)}.
+   * @throws EjbException if there is no query executor or it rejected the query.
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Future<List<T>> queryAsync(final DetachedCriteria criteria) {
+    return submit(new SessionWork<List<T>>() {
+      public List<T> execute(final Session session) {
+        final long start = System.nanoTime();
+        final Criteria executable = criteria.getExecutableCriteria(session);
+        try {
+          return (List<T>) executable.list();
+        } finally {
+          record("query", HibernateSupport.labelOf(executable), start);
+        }
+      }
+    });
+  }
+
+  /**
+   * Load persistence object by primary key on a separate read-only session of the
+   * {@link QueryExecutor query executor}.
+   *
+   * @param key the given primary key to load persistence object.
+   * @param clazz the given persistence object type.
+   * @return the {@link Future future} detached object; see {@link #await(Future)}.
+   * @throws EjbException if there is no query executor or it rejected the query.
+   * @see #queryAsync(DetachedCriteria)
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Future<T> loadAsync(final K key, final Class<T> clazz) {
+    return submit(new SessionWork<T>() {
+      public T execute(final Session session) {
+        final long start = System.nanoTime();
+        try {
+          return (T) session.get(clazz, (Serializable) key);
+        } finally {
+          record("load", clazz.getName(), start);
+        }
+      }
+    });
+  }
+
+  /**
+   * Load all persistence objects that match the criteria given by the named query on a separate
+   * read-only session of the {@link QueryExecutor query executor}.
+   *
+   * @param namedQuery the given name query to be load to execute.
+   * @param params the given list of pairs (parameter, value); a collection value is bound as a
+   * parameter list.
+   * @return the {@link Future future} list of detached objects; see {@link #await(Future)}.
+   * @throws EjbException if there is no query executor or it rejected the query.
+   * @see #queryAsync(DetachedCriteria)
+   */
+  @SuppressWarnings({ "unchecked" })
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> Future<List<V>> loadAsync(final String namedQuery,
+      final Map<String, Object> params) {
+    return submit(new SessionWork<List<V>>() {
+      public List<V> execute(final Session session) {
+        final long start = System.nanoTime();
+        try {
+          return (List<V>) HibernateSupport.bind(session.getNamedQuery(namedQuery), params).list();
+        } finally {
+          record("load", namedQuery, start, params);
+        }
+      }
+    });
+  }
+
+  /**
+   * Count all items that match the given detached criteria on a separate read-only session of
+   * the {@link QueryExecutor query executor}; the row count projection is set on the criteria.
+   *
+   * @param criteria the given {@link DetachedCriteria detached criteria} to count.
+   * @return the {@link Future future} number of items; see {@link #await(Future)}.
+   * @throws EjbException if there is no query executor or it rejected the query.
+   * @see #queryAsync(DetachedCriteria)
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected Future<Integer> countAsync(final DetachedCriteria criteria) {
+    return submit(new SessionWork<Integer>() {
+      public Integer execute(final Session session) {
+        final long start = System.nanoTime();
+        final Criteria executable = criteria.getExecutableCriteria(session);
+        try {
+          executable.setProjection(Projections.rowCount());
+          return Integer.valueOf(HibernateSupport.toCount(executable.uniqueResult()));
+        } finally {
+          record("count", HibernateSupport.labelOf(executable), start);
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for the result of the given asynchronous query.
+   * @param <V> the result type.
+   *
+   * @param future the given {@link Future future} result of an asynchronous query.
+   * @return the result.
+   *
+   * @throws EjbException if the query failed or the current thread was interrupted.
+   */
+  @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+  protected <V> V await(final Future<V> future) throws EjbException {
+    try {
+      return future.get();
+    } catch (final ExecutionException eex) {
+      throw new EjbException("Could not execute the asynchronous query.", eex.getCause());
+    } catch (final InterruptedException iex) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new EjbException("Interrupted while waiting for the asynchronous query.", iex);
+    }
+  }
+
   /**
    * Calculate the value of criteria.
    *
@@ -785,6 +2410,7 @@ public abstract class BaseSessionBean<K, T> {
    */
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public long calculate(final Criteria criteria) {
+    final long start = System.nanoTime();
     try {
       // execute the criteria and get single result.
       final Object result = criteria.uniqueResult();
@@ -801,6 +2427,8 @@ public abstract class BaseSessionBean<K, T> {
 
     } catch (final Exception ex) {
       LOG.warn("Could not execute the query or convert value.");
+    } finally {
+      record("calculate", HibernateSupport.labelOf(criteria), start);
     }
 
     return 0;
@@ -814,6 +2442,7 @@ public abstract class BaseSessionBean<K, T> {
    */
   @TransactionAttribute(TransactionAttributeType.SUPPORTS)
   public long calculate(final Query query) {
+    final long start = System.nanoTime();
     try {
       // execute the criteria and get single result.
       Object result = query.getSingleResult();
@@ -828,6 +2457,8 @@ public abstract class BaseSessionBean<K, T> {
       }
     } catch (final Exception ex) {
       LOG.warn("Could not execute the query or convert value", ex);
+    } finally {
+      record("calculate", HibernateSupport.labelOf(query), start);
     }
 
     return 0;
@@ -851,6 +2482,223 @@ public abstract class BaseSessionBean<K, T> {
     return (appPath.endsWith("/") ? (appPath + beanPath) : (appPath + '/' + beanPath));
   }
 
+  /**
+   * Returns the total of the given count criteria, from the count cache when there is one.
+   *
+   * @param criteria the given count {@link Criteria criteria}.
+   * @return the total.
+   * @throws HibernateException if we could not execute the count criteria.
+   */
+  private int countTotal(final Criteria criteria) throws HibernateException {
+    final CountCache cache = getCountCache();
+    final String signature = (cache != null ? CountCache.signatureOf(criteria) : null);
+    if (cache != null) {
+      final Integer total = cache.get(signature);
+      if (total != null) {
+        return total.intValue();
+      }
+    }
+
+    final Object result = criteria.uniqueResult();
+    final int total = HibernateSupport.toCount(result);
+    if (cache != null) {
+      cache.put(signature, total);
+    }
+    return total;
+  }
+
+  /**
+   * Returns the Hibernate session factory of the bean.
+   *
+   * @return the {@link SessionFactory session factory}.
+   */
+  private SessionFactory getSessionFactory() {
+    return HibernateSupport.getSession(entityManager).getSessionFactory();
+  }
+
+  /**
+   * Submits the given work to the {@link QueryExecutor query executor}, on the session factory
+   * of the bean.
+   *
+   * @param work the given {@link SessionWork work}.
+   * @return the {@link Future future} result.
+   * @throws EjbException if there is no query executor or it rejected the work.
+   */
+  private <V> Future<V> submit(final SessionWork<V> work) throws EjbException {
+    final QueryExecutor executor = QueryExecutor.getInstance();
+    if (executor == null) {
+      throw new EjbException("There is no query executor, the configuration is not started.");
+    }
+
+    try {
+      return executor.submit(getSessionFactory(), work);
+    } catch (final RejectedExecutionException rex) {
+      throw new EjbException("The query executor is saturated, the query was rejected.", rex);
+    }
+  }
+
+  /**
+   * Load persistence object by primary key through the given entity cache.
+   *
+   * @param cache the given {@link EntityCache entity cache}.
+   * @param key the given primary key to load persistence object.
+   * @param clazz the given cached persistence object type.
+   *
+   * @return the managed object, the cached copy or the loaded object.
+   * @throws EjbException if we could not load the persistence object.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private T loadCached(final EntityCache cache, final K key, final Class<T> clazz)
+    throws EjbException {
+    try {
+      // the managed object holds the changes of the current transaction.
+      final Session session = HibernateSupport.getSession(entityManager);
+      final ClassMetadata metadata = HibernateSupport.getMetadata(session, clazz);
+      if (HibernateSupport.isRemoved(session, metadata, key)) {
+        return null;
+      }
+
+      final T managed = (T) HibernateSupport.getManaged(session, metadata, key);
+      if (managed != null) {
+        return managed;
+      }
+
+      final T cached = (T) cache.get(clazz, key);
+      if (cached != null) {
+        return cached;
+      }
+
+      final long stamp = cache.stamp(clazz);
+      final T obj = entityManager.find(clazz, key);
+      if (obj != null && HibernateSupport.isInitialized(session, obj)) {
+        cache.put(clazz, key, stamp, obj);
+      }
+
+      return obj;
+    } catch (final IllegalArgumentException iaex) {
+      throw new EjbException(iaex);
+    } catch (final HibernateException hex) {
+      throw new EjbException(hex);
+    }
+  }
+
+  /**
+   * Invalidates the cached data of the given written persistence object, after the current
+   * transaction completes.
+   *
+   * @param obj the given written persistence object.
+   */
+  private void invalidateCaches(final Object obj) {
+    if (obj == null) {
+      return;
+    }
+
+    final Class<?> clazz = Hibernate.getClass(obj);
+    final QueryCache queryCache = getQueryCache();
+    final EntityCache entityCache = getEntityCache();
+    final NaturalKeyCache naturalKeyCache = getNaturalKeyCache();
+    if (queryCache == null && entityCache == null && naturalKeyCache == null) {
+      return;
+    }
+
+    final Session session = HibernateSupport.getSession(entityManager);
+    final Object key = (entityCache != null || naturalKeyCache != null
+                        ? HibernateSupport.getIdentifier(session, obj) : null);
+    PendingInvalidation.schedule(HibernateSupport.getTransactionManager(session), clazz, key,
+        queryCache, entityCache, naturalKeyCache);
+  }
+
+  /**
+   * Invalidates the cached data of the given written persistence class, after the current
+   * transaction completes.
+   *
+   * @param clazz the given written persistence class.
+   */
+  private void invalidateCaches(final Class<?> clazz) {
+    final QueryCache queryCache = getQueryCache();
+    final EntityCache entityCache = getEntityCache();
+    final NaturalKeyCache naturalKeyCache = getNaturalKeyCache();
+    if (queryCache == null && entityCache == null && naturalKeyCache == null) {
+      return;
+    }
+
+    PendingInvalidation.schedule(
+        HibernateSupport.getTransactionManager(HibernateSupport.getSession(entityManager)), clazz,
+        null, queryCache, entityCache, naturalKeyCache);
+  }
+
+  /**
+   * Invalidates all cached data after a bulk update, after the current transaction completes.
+   */
+  private void invalidateAllCaches() {
+    final QueryCache queryCache = getQueryCache();
+    final EntityCache entityCache = getEntityCache();
+    final NaturalKeyCache naturalKeyCache = getNaturalKeyCache();
+    if (queryCache == null && entityCache == null && naturalKeyCache == null) {
+      return;
+    }
+
+    PendingInvalidation.schedule(
+        HibernateSupport.getTransactionManager(HibernateSupport.getSession(entityManager)), null,
+        null, queryCache, entityCache, naturalKeyCache);
+  }
+
+  /**
+   * Returns if the current transaction has pending writes to one of the given persistence
+   * classes; the caches do not hold these writes and must be bypassed.
+   *
+   * @param entityNames the given persistence class names.
+   * @return {@code true} if one of the classes has pending writes.
+   */
+  private boolean isWritten(final String... entityNames) {
+    final TransactionManager manager =
+      HibernateSupport.getTransactionManager(HibernateSupport.getSession(entityManager));
+    for (final String entityName : entityNames) {
+      if (PendingInvalidation.isWritten(manager, entityName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records the execution of the given query operation started at the given time.
+   *
+   * @param operation the given operation.
+   * @param label the given named query name or criteria root entity.
+   * @param start the given start time (in nanoseconds).
+   */
+  private static void record(final String operation, final String label, final long start) {
+    QueryMetrics.getInstance().record(operation, label, System.nanoTime() - start);
+  }
+
+  /**
+   * Records the execution of the given query operation started at the given time.
+   *
+   * @param operation the given operation.
+   * @param label the given named query name.
+   * @param start the given start time (in nanoseconds).
+   * @param params the given list of pairs (parameter, value).
+   */
+  private static void record(final String operation, final String label, final long start,
+      final Map<String, Object> params) {
+    QueryMetrics.getInstance().record(operation, label, System.nanoTime() - start, params);
+  }
+
+  /**
+   * Records the execution of the given query operation started at the given time.
+   *
+   * @param operation the given operation.
+   * @param label the given named query name.
+   * @param start the given start time (in nanoseconds).
+   * @param names the given parameter names.
+   * @param values the given parameter values, in the name order.
+   */
+  private static void record(final String operation, final String label, final long start,
+      final String[] names, final Object[] values) {
+    QueryMetrics.getInstance().record(operation, label, System.nanoTime() - start, names, values);
+  }
+
   /**
    * Returns the current login user name.
    *
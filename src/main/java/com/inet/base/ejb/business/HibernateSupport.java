@@ -0,0 +1,824 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.business;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.transaction.TransactionManager;
+
+import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.ejb.HibernateQuery;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.Status;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.jboss.ejb3.entity.HibernateSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.exception.EjbException;
+import com.inet.base.ejb.internal.Preconditions;
+import com.inet.base.ejb.internal.ref.Codec;
+import com.inet.base.ejb.internal.ref.Codecs;
+import com.inet.base.ejb.query.QueryMetrics;
+import com.inet.base.ejb.query.RowVisitor;
+import com.inet.base.ejb.search.KeysetToken;
+
+/**
+ * HibernateSupport.
+ * <pre>
+ *  The Hibernate helpers shared by the session beans.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: HibernateSupport.java 2010-01-27 10:05:18z nguyen_dv $
+ *
+ * @since 1.0
+ */
+final class HibernateSupport {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(HibernateSupport.class);
+
+  /**
+   * The default number of keys per statement, below the IN-list limit of every database.
+   */
+  static final int DEFAULT_CHUNK_SIZE = 500;
+
+  /**
+   * Create <tt>HibernateSupport</tt> instance.
+   */
+  private HibernateSupport() {
+    // utility class.
+  }
+
+  /**
+   * Returns the Hibernate session of the given {@link EntityManager entity manager}.
+   *
+   * @param entityManager the given {@link EntityManager entity manager}.
+   * @return the Hibernate {@link Session session}.
+   */
+  static Session getSession(final EntityManager entityManager) {
+    return ((HibernateSession) entityManager).getHibernateSession();
+  }
+
+  /**
+   * Returns the mapping metadata of the given persistence class.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param clazz the given persistence class.
+   * @return the {@link ClassMetadata metadata}.
+   * @throws EjbException if the given class is not a persistence class.
+   */
+  static ClassMetadata getMetadata(final Session session, final Class<?> clazz)
+    throws EjbException {
+    final ClassMetadata metadata = session.getSessionFactory().getClassMetadata(clazz);
+    if (metadata == null) {
+      throw new EjbException("The class {" + clazz.getName() + "} is not a persistence class.");
+    }
+    return metadata;
+  }
+
+  /**
+   * Returns the mapping metadata of the root persistence class of the given criteria.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param criteria the given root {@link Criteria criteria}.
+   * @return the {@link ClassMetadata metadata}.
+   * @throws EjbException if the given criteria is not a root criteria of a persistence class.
+   */
+  static ClassMetadata getMetadata(final Session session, final Criteria criteria)
+    throws EjbException {
+    if (!(criteria instanceof CriteriaImpl)) {
+      throw new EjbException("The criteria {" + criteria + "} is not a root criteria.");
+    }
+
+    final String entityName = ((CriteriaImpl) criteria).getEntityOrClassName();
+    final ClassMetadata metadata = session.getSessionFactory().getClassMetadata(entityName);
+    if (metadata == null) {
+      throw new EjbException("The entity {" + entityName + "} is not a persistence class.");
+    }
+    return metadata;
+  }
+
+  /**
+   * Returns the object of the given primary key when it is already managed by the persistence
+   * context, without hitting the database. An object scheduled for deletion is not returned,
+   * see {@link #isRemoved(Session, ClassMetadata, Object)}.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param key the given primary key.
+   * @return the managed object or {@code null}.
+   */
+  static Object getManaged(final Session session, final ClassMetadata metadata, final Object key) {
+    final Object entity = getEntity(session, metadata, key);
+    return (entity == null || isRemoved(session, entity) ? null : entity);
+  }
+
+  /**
+   * Returns if the object of the given primary key is deleted by the current session: it is
+   * scheduled for deletion, or already deleted but still in the persistence context. Such an
+   * object does not exist for the session, as {@link Session#get(Class, Serializable)} returns
+   * {@code null} for it, even if its row is not deleted yet.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param key the given primary key.
+   * @return {@code true} if the object is deleted.
+   */
+  static boolean isRemoved(final Session session, final ClassMetadata metadata, final Object key) {
+    final Object entity = getEntity(session, metadata, key);
+    return entity != null && isRemoved(session, entity);
+  }
+
+  /**
+   * Returns the entity of the given primary key in the persistence context, whatever its status.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param key the given primary key.
+   * @return the entity or {@code null}.
+   */
+  private static Object getEntity(final Session session, final ClassMetadata metadata,
+      final Object key) {
+    final SessionImplementor implementor = (SessionImplementor) session;
+    final EntityPersister persister =
+      implementor.getFactory().getEntityPersister(metadata.getEntityName());
+
+    return implementor.getPersistenceContext()
+      .getEntity(new EntityKey((Serializable) key, persister, EntityMode.POJO));
+  }
+
+  /**
+   * Returns if the given entity of the persistence context is deleted.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param entity the given entity of the persistence context.
+   * @return {@code true} if the entity is deleted.
+   */
+  private static boolean isRemoved(final Session session, final Object entity) {
+    final EntityEntry entry =
+      ((SessionImplementor) session).getPersistenceContext().getEntry(entity);
+    return entry != null
+           && (entry.getStatus() == Status.DELETED || entry.getStatus() == Status.GONE);
+  }
+
+  /**
+   * Returns the primary key of the given persistence object, managed or detached.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param obj the given persistence object.
+   * @return the primary key; may be {@code null} if the object is not saved yet.
+   */
+  static Object getIdentifier(final Session session, final Object obj) {
+    return getMetadata(session, Hibernate.getClass(obj)).getIdentifier(obj, EntityMode.POJO);
+  }
+
+  /**
+   * Evicts the objects of the given primary keys from the persistence context and from the
+   * second-level cache.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param clazz the given persistence class.
+   * @param keys the given primary keys.
+   */
+  static void evict(final Session session, final ClassMetadata metadata, final Class<?> clazz,
+      final Collection<?> keys) {
+    for (final Object key : keys) {
+      final Object entity = getEntity(session, metadata, key);
+      if (entity != null) {
+        session.evict(entity);
+      }
+      session.getSessionFactory().evict(clazz, (Serializable) key);
+    }
+  }
+
+  /**
+   * Returns the number of rows of the table of the given persistence class, estimated from the
+   * database statistics (PostgreSQL, MySQL, Oracle and SQL Server). The statistics views are
+   * readable by any user allowed to read the table; a failing statistics query is logged and
+   * the number of rows is unknown.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @return the estimated number of rows; {@code null} if the database has no statistics.
+   */
+  static Long estimateRows(final Session session, final ClassMetadata metadata) {
+    final SessionFactoryImplementor factory = ((SessionImplementor) session).getFactory();
+    final EntityPersister persister = factory.getEntityPersister(metadata.getEntityName());
+    if (!(persister instanceof AbstractEntityPersister)) {
+      return null;
+    }
+
+    final String table = ((AbstractEntityPersister) persister).getTableName();
+    final String name = table.substring(table.lastIndexOf('.') + 1);
+
+    // find the statistics query of the dialect, or of the dialect it extends.
+    String sql = null;
+    String param = null;
+    for (Class<?> clazz = factory.getDialect().getClass(); clazz != null && sql == null;
+         clazz = clazz.getSuperclass()) {
+      final String dialect = clazz.getSimpleName();
+      if (dialect.startsWith("PostgreSQL")) {
+        sql = "select reltuples from pg_class where oid = cast(? as regclass)";
+        param = table;
+      } else if (dialect.startsWith("MySQL")) {
+        sql = "select table_rows from information_schema.tables"
+              + " where table_schema = database() and table_name = ?";
+        param = name;
+      } else if (dialect.startsWith("Oracle")) {
+        sql = "select num_rows from user_tables where table_name = upper(?)";
+        param = name;
+      } else if (dialect.startsWith("SQLServer")) {
+        // sys.partitions, unlike the DMVs, does not need the VIEW DATABASE STATE permission.
+        sql = "select sum(rows) from sys.partitions"
+              + " where object_id = object_id(?) and index_id < 2";
+        param = table;
+      }
+    }
+    if (sql == null) {
+      return null;
+    }
+
+    // the tables which were never analyzed have no (or negative) statistics.
+    final Object rows;
+    try {
+      rows = session.createSQLQuery(sql).setParameter(0, param).uniqueResult();
+    } catch (final HibernateException hex) {
+      LOG.warn("Could not read the statistics of the table [{}].", table, hex);
+      return null;
+    }
+    if (!(rows instanceof Number) || ((Number) rows).longValue() < 0) {
+      return null;
+    }
+    return Long.valueOf(((Number) rows).longValue());
+  }
+
+  /**
+   * Returns the restriction selecting the rows after the given keyset position, the primary key
+   * breaking the ties of the sort value.
+   *
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param token the given keyset position.
+   * @return the keyset {@link Criterion restriction}.
+   */
+  static Criterion after(final ClassMetadata metadata, final KeysetToken token) {
+    final String property = token.getProperty();
+    final String keyProperty = metadata.getIdentifierPropertyName();
+    if (property.equals(keyProperty)) {
+      return token.isAscending() ? Restrictions.gt(property, token.getValue())
+                                 : Restrictions.lt(property, token.getValue());
+    }
+
+    if (token.isAscending()) {
+      return Restrictions.or(Restrictions.gt(property, token.getValue()),
+          Restrictions.and(Restrictions.eq(property, token.getValue()),
+              Restrictions.gt(keyProperty, token.getKey())));
+    }
+    return Restrictions.or(Restrictions.lt(property, token.getValue()),
+        Restrictions.and(Restrictions.eq(property, token.getValue()),
+            Restrictions.lt(keyProperty, token.getKey())));
+  }
+
+  /**
+   * Adds the keyset sort order, the sort property then the primary key, to the given criteria.
+   *
+   * @param criteria the given {@link Criteria criteria}.
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param property the given sort property.
+   * @param ascending whether the rows are sorted in ascending order.
+   */
+  static void addKeysetOrder(final Criteria criteria, final ClassMetadata metadata,
+      final String property, final boolean ascending) {
+    final String keyProperty = metadata.getIdentifierPropertyName();
+    criteria.addOrder(ascending ? Order.asc(property) : Order.desc(property));
+    if (!property.equals(keyProperty)) {
+      criteria.addOrder(ascending ? Order.asc(keyProperty) : Order.desc(keyProperty));
+    }
+  }
+
+  /**
+   * Returns the keyset position of the given row.
+   *
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param row the given row.
+   * @param property the given sort property.
+   * @param ascending whether the rows are sorted in ascending order.
+   * @return the keyset position.
+   * @throws IllegalArgumentException if the sort value of the row is {@code null}.
+   */
+  static KeysetToken positionOf(final ClassMetadata metadata, final Object row,
+      final String property, final boolean ascending) {
+    final Object key = metadata.getIdentifier(row, EntityMode.POJO);
+    final Object value = (property.equals(metadata.getIdentifierPropertyName())
+                            ? key
+                            : metadata.getPropertyValue(row, property, EntityMode.POJO));
+    // a null value has no position in the sort order, the token can not resume after it.
+    Preconditions.checkArgument(value != null, "The keyset sort property {%s} must not be null,"
+        + " but it is null on the row {%s}.", property, key);
+    return new KeysetToken(property, ascending, value, key);
+  }
+
+  /**
+   * Returns the given count query result as an integer, clamped instead of truncated.
+   *
+   * @param result the given count query result.
+   * @return the count; zero if the result is not a number.
+   */
+  static int toCount(final Object result) {
+    if (!(result instanceof Number)) {
+      return 0;
+    }
+    return (int) Math.min(((Number) result).longValue(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Opens a stateless session on the JDBC connection of the given session, so the reporting
+   * queries run in its transaction; closing the stateless session keeps the connection open.
+   * <p>
+   * Session.connection() is deprecated, but it is the only way to share the connection in
+   * Hibernate 3.2: a stateless session on its own connection would not see the flushed
+   * changes of the session, unless the data source enlists it in the same transaction.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @return the {@link StatelessSession stateless session}.
+   */
+  @SuppressWarnings({ "deprecation" })
+  static StatelessSession openStatelessSession(final Session session) {
+    return session.getSessionFactory().openStatelessSession(session.connection());
+  }
+
+  /**
+   * Binds the given named parameters to the given query; a collection value is bound as a
+   * parameter list.
+   *
+   * @param query the given Hibernate {@link Query query}.
+   * @param params the given list of pairs (parameter, value); may be {@code null}.
+   * @return the given query.
+   */
+  static Query bind(final Query query, final Map<String, Object> params) {
+    if (params != null) {
+      for (final Map.Entry<String, Object> param : params.entrySet()) {
+        if (param.getValue() instanceof Collection<?>) {
+          query.setParameterList(param.getKey(), (Collection<?>) param.getValue());
+        } else {
+          query.setParameter(param.getKey(), param.getValue());
+        }
+      }
+    }
+    return query;
+  }
+
+  /**
+   * Streams the rows of the given forward-only result to the given visitor, then closes it.
+   * @param <V> the row type.
+   *
+   * @param results the given {@link ScrollableResults scrollable result}.
+   * @param visitor the given {@link RowVisitor visitor} receiving the rows.
+   * @return the number of visited rows.
+   */
+  @SuppressWarnings({ "unchecked" })
+  static <V> int stream(final ScrollableResults results, final RowVisitor<? super V> visitor) {
+    try {
+      int count = 0;
+      while (results.next()) {
+        // a single entity or value per row, or the projected values.
+        final Object[] row = results.get();
+        count++;
+        if (!visitor.visit((V) (row.length == 1 ? row[0] : row))) {
+          break;
+        }
+      }
+      return count;
+    } finally {
+      results.close();
+    }
+  }
+
+  /**
+   * Returns the label of the given criteria in the query metrics: its root entity name.
+   *
+   * @param criteria the given {@link Criteria criteria}; may be {@code null}.
+   * @return the criteria label.
+   */
+  static String labelOf(final Criteria criteria) {
+    return criteria instanceof CriteriaImpl ? ((CriteriaImpl) criteria).getEntityOrClassName()
+                                            : "criteria";
+  }
+
+  /**
+   * Returns the label of the given JPA query in the query metrics: its normalized query string,
+   * without the literals, see {@link QueryMetrics#labelOf(String)}.
+   *
+   * @param query the given JPA query; may be {@code null}.
+   * @return the query label.
+   */
+  static String labelOf(final javax.persistence.Query query) {
+    return query instanceof HibernateQuery
+           ? QueryMetrics.labelOf(((HibernateQuery) query).getHibernateQuery().getQueryString())
+           : "query";
+  }
+
+  /**
+   * Returns the label of the given search persistence object in the query metrics: its class
+   * name.
+   *
+   * @param search the given search persistence object; may be {@code null}.
+   * @return the search label.
+   */
+  static String labelOf(final Object search) {
+    return search == null ? "null" : search.getClass().getName();
+  }
+
+  /**
+   * Initializes the given association paths of the given managed objects with one fetch join
+   * query per path and chunk of objects, instead of one query per object and association: the
+   * query loads the associations into the objects of the persistence context. The objects not
+   * managed by the session (detached copies, transient objects) are skipped: the query could
+   * not load their associations.
+   *
+   * @param session the given Hibernate {@link Session session} managing the objects.
+   * @param objs the given managed persistence objects.
+   * @param paths the given association paths, e.g. <tt>lines</tt> or <tt>lines.product</tt>.
+   * @param chunkSize the given number of objects per query.
+   * @return the number of executed queries.
+   */
+  static int initialize(final Session session, final Collection<?> objs, final String[] paths,
+      final int chunkSize) {
+    // group the objects by persistence class, the paths are resolved against it.
+    final Map<Class<?>, List<Object>> groups = new LinkedHashMap<Class<?>, List<Object>>();
+    for (final Object obj : objs) {
+      if (obj == null || !session.contains(obj)) {
+        continue;
+      }
+
+      final Class<?> clazz = Hibernate.getClass(obj);
+      List<Object> group = groups.get(clazz);
+      if (group == null) {
+        group = new ArrayList<Object>();
+        groups.put(clazz, group);
+      }
+      group.add(obj);
+    }
+
+    int queries = 0;
+    for (final Map.Entry<Class<?>, List<Object>> group : groups.entrySet()) {
+      final ClassMetadata metadata = getMetadata(session, group.getKey());
+      for (final String path : paths) {
+        final String property = path.indexOf('.') < 0 ? path : path.substring(0, path.indexOf('.'));
+
+        // skip the objects whose association is already loaded.
+        final List<Object> keys = new ArrayList<Object>(group.getValue().size());
+        for (final Object obj : group.getValue()) {
+          final Object value = metadata.getPropertyValue(obj, property, EntityMode.POJO);
+          if (!Hibernate.isInitialized(value) || property.length() != path.length()) {
+            keys.add(metadata.getIdentifier(obj, EntityMode.POJO));
+          }
+        }
+        if (keys.isEmpty()) {
+          continue;
+        }
+
+        final String hql = fetchQueryOf(metadata, path);
+        for (final List<Object> chunk : chunk(keys, chunkSize)) {
+          session.createQuery(hql).setParameterList("keys", chunk).list();
+          queries++;
+        }
+      }
+    }
+    return queries;
+  }
+
+  /**
+   * Returns the query fetching the given association path of the objects of the given primary
+   * keys.
+   *
+   * @param metadata the given persistence class {@link ClassMetadata metadata}.
+   * @param path the given association path.
+   * @return the HQL query, with the <tt>keys</tt> parameter.
+   */
+  private static String fetchQueryOf(final ClassMetadata metadata, final String path) {
+    final StringBuilder hql = new StringBuilder("select e from ");
+    hql.append(metadata.getEntityName()).append(" e");
+
+    String alias = "e";
+    final String[] properties = path.split("\\.");
+    for (int index = 0; index < properties.length; index++) {
+      hql.append(" left join fetch ").append(alias).append('.').append(properties[index]);
+      alias = "f" + index;
+      hql.append(' ').append(alias);
+    }
+
+    return hql.append(" where e.").append(metadata.getIdentifierPropertyName())
+      .append(" in (:keys)").toString();
+  }
+
+  /**
+   * Returns the JTA transaction manager of the session factory of the given session.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @return the {@link TransactionManager transaction manager}; {@code null} outside JTA.
+   */
+  static TransactionManager getTransactionManager(final Session session) {
+    return ((SessionImplementor) session).getFactory().getTransactionManager();
+  }
+
+  /**
+   * Returns the form of the given query result which is safe to cache and to share between the
+   * sessions and threads: the managed entities are replaced by their name and primary key, the
+   * immutable values are kept, and the other values are replaced by serialized copies.
+   *
+   * @param session the given Hibernate {@link Session session} of the result.
+   * @param rows the given query result.
+   * @return the cache form; {@code null} if the result can not be cached.
+   */
+  static List<Object> toCacheForm(final Session session, final List<?> rows) {
+    final Codec<Serializable> codec = Codecs.serializable();
+    final List<Object> form = new ArrayList<Object>(rows.size());
+    try {
+      for (final Object row : rows) {
+        if (row == null || isImmutable(row)) {
+          form.add(row);
+        } else if (session.contains(row)) {
+          form.add(new CachedEntity(session.getEntityName(row), session.getIdentifier(row)));
+        } else if (row instanceof Serializable) {
+          form.add(new CachedCopy(codec.encode((Serializable) row)));
+        } else {
+          return null;
+        }
+      }
+    } catch (final IOException ioex) {
+      LOG.debug("Could not copy the query result, it is not cached.", ioex);
+      return null;
+    }
+    return form;
+  }
+
+  /**
+   * Returns the query result of the given cache form: the entities are resolved in the given
+   * session, from its persistence context or by primary key in chunks, and the copies are
+   * decoded, so every caller gets its own objects.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param form the given cache form, see {@link #toCacheForm(Session, List)}.
+   * @return the query result; {@code null} if an entity no longer exists.
+   */
+  static List<Object> fromCacheForm(final Session session, final List<?> form) {
+    final SessionFactoryImplementor factory = ((SessionImplementor) session).getFactory();
+
+    // serve the managed entities, collect the others by entity name.
+    final Map<String, Map<Serializable, Object>> entities =
+      new HashMap<String, Map<Serializable, Object>>();
+    final Map<String, Set<Serializable>> missing = new HashMap<String, Set<Serializable>>();
+    for (final Object row : form) {
+      if (row instanceof CachedEntity) {
+        final CachedEntity entity = (CachedEntity) row;
+        final ClassMetadata metadata = factory.getClassMetadata(entity.entityName);
+        if (isRemoved(session, metadata, entity.id)) {
+          return null;
+        }
+
+        final Object managed = getManaged(session, metadata, entity.id);
+        if (managed != null) {
+          resolved(entities, entity.entityName).put(entity.id, managed);
+        } else {
+          Set<Serializable> ids = missing.get(entity.entityName);
+          if (ids == null) {
+            ids = new LinkedHashSet<Serializable>();
+            missing.put(entity.entityName, ids);
+          }
+          ids.add(entity.id);
+        }
+      }
+    }
+
+    // load the others by primary key.
+    for (final Map.Entry<String, Set<Serializable>> entry : missing.entrySet()) {
+      final String property =
+        factory.getClassMetadata(entry.getKey()).getIdentifierPropertyName();
+      final Map<Serializable, Object> byId = resolved(entities, entry.getKey());
+      for (final List<Serializable> ids : chunk(entry.getValue(), DEFAULT_CHUNK_SIZE)) {
+        for (final Object obj : session.createCriteria(entry.getKey())
+               .add(Restrictions.in(property, ids)).list()) {
+          byId.put(session.getIdentifier(obj), obj);
+        }
+      }
+    }
+
+    final Codec<Serializable> codec = Codecs.serializable();
+    final List<Object> result = new ArrayList<Object>(form.size());
+    try {
+      for (final Object row : form) {
+        if (row instanceof CachedEntity) {
+          final CachedEntity entity = (CachedEntity) row;
+          final Object obj = entities.get(entity.entityName).get(entity.id);
+          if (obj == null) {
+            return null;
+          }
+          result.add(obj);
+        } else if (row instanceof CachedCopy) {
+          result.add(codec.decode(ByteBuffer.wrap(((CachedCopy) row).data)));
+        } else {
+          result.add(row);
+        }
+      }
+    } catch (final IOException ioex) {
+      LOG.debug("Could not decode the cached query result.", ioex);
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Returns if the given persistence object and the objects reachable from it are initialized:
+   * there is no uninitialized proxy or lazy collection in the graph, which a serialized copy
+   * could not load afterwards. The values of the components are not inspected.
+   *
+   * @param session the given Hibernate {@link Session session}.
+   * @param obj the given persistence object.
+   * @return {@code true} if the object graph is initialized.
+   */
+  static boolean isInitialized(final Session session, final Object obj) {
+    return isInitialized(((SessionImplementor) session).getFactory(), obj,
+        new IdentityHashMap<Object, Boolean>());
+  }
+
+  /**
+   * Returns if the given value and the objects reachable from it are initialized.
+   *
+   * @param factory the given {@link SessionFactoryImplementor session factory}.
+   * @param value the given value.
+   * @param visited the given visited values.
+   * @return {@code true} if the value graph is initialized.
+   */
+  private static boolean isInitialized(final SessionFactoryImplementor factory,
+      final Object value, final Map<Object, Boolean> visited) {
+    if (value == null || isImmutable(value) || visited.put(value, Boolean.TRUE) != null) {
+      return true;
+    }
+    if (!Hibernate.isInitialized(value)) {
+      return false;
+    }
+
+    if (value instanceof Collection<?>) {
+      for (final Object element : (Collection<?>) value) {
+        if (!isInitialized(factory, element, visited)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof Map<?, ?>) {
+      for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!isInitialized(factory, entry.getKey(), visited)
+            || !isInitialized(factory, entry.getValue(), visited)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    final ClassMetadata metadata = factory.getClassMetadata(Hibernate.getClass(value));
+    if (metadata == null) {
+      return true;
+    }
+    for (final Object property : metadata.getPropertyValues(value, EntityMode.POJO)) {
+      if (!isInitialized(factory, property, visited)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the resolved entities of the given entity name, created on demand.
+   *
+   * @param entities the given resolved entities by entity name.
+   * @param entityName the given entity name.
+   * @return the resolved entities by primary key.
+   */
+  private static Map<Serializable, Object> resolved(
+      final Map<String, Map<Serializable, Object>> entities, final String entityName) {
+    Map<Serializable, Object> byId = entities.get(entityName);
+    if (byId == null) {
+      byId = new HashMap<Serializable, Object>();
+      entities.put(entityName, byId);
+    }
+    return byId;
+  }
+
+  /**
+   * Returns if the given value is immutable, so it can be shared as is.
+   *
+   * @param value the given non-null value.
+   * @return {@code true} if the value is immutable.
+   */
+  private static boolean isImmutable(final Object value) {
+    return value instanceof String || value instanceof Integer || value instanceof Long
+           || value instanceof Short || value instanceof Byte || value instanceof Double
+           || value instanceof Float || value instanceof BigDecimal
+           || value instanceof BigInteger || value instanceof Boolean
+           || value instanceof Character || value instanceof Enum<?>;
+  }
+
+  /**
+   * Splits the given values into chunks of the given size.
+   * @param <E> the value type.
+   *
+   * @param values the given values.
+   * @param chunkSize the given number of values per chunk.
+   * @return the chunks.
+   */
+  static <E> List<List<E>> chunk(final Collection<E> values, final int chunkSize) {
+    final List<List<E>> chunks =
+      new ArrayList<List<E>>((values.size() + chunkSize - 1) / chunkSize);
+    List<E> chunk = null;
+    for (final E value : values) {
+      if (chunk == null || chunk.size() == chunkSize) {
+        chunk = new ArrayList<E>(Math.min(chunkSize, values.size()));
+        chunks.add(chunk);
+      }
+      chunk.add(value);
+    }
+    return chunks;
+  }
+
+  /**
+   * CachedEntity.
+   * <pre>
+   *  An entity of a cached query result, by entity name and primary key.
+   * </pre>
+   */
+  private static final class CachedEntity {
+    final String entityName;
+    final Serializable id;
+
+    /**
+     * Create <tt>CachedEntity</tt> instance.
+     */
+    CachedEntity(final String name, final Serializable key) {
+      this.entityName = name;
+      this.id = key;
+    }
+  }
+
+  /**
+   * CachedCopy.
+   * <pre>
+   *  A mutable value of a cached query result, serialized.
+   * </pre>
+   */
+  private static final class CachedCopy {
+    final byte[] data;
+
+    /**
+     * Create <tt>CachedCopy</tt> instance.
+     */
+    CachedCopy(final byte[] d) {
+      this.data = d;
+    }
+  }
+}
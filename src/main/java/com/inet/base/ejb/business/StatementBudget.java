@@ -0,0 +1,44 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.business;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * StatementBudget.
+ * <pre>
+ *  The max number of SQL statements a business method (or every business method of a session
+ *  bean) may execute, checked by the {@link StatementBudgetInterceptor budget interceptor}.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: StatementBudget.java 2010-02-09 09:48:30z nguyen_dv $
+ *
+ * @since 1.0
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ ElementType.METHOD, ElementType.TYPE })
+public @interface StatementBudget {
+  /**
+   * @return the max number of SQL statements.
+   */
+  int value();
+}
@@ -0,0 +1,160 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.business;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.conf.ConfigBean;
+import com.inet.base.ejb.exception.EjbException;
+import com.inet.base.ejb.query.StatementCounter;
+
+/**
+ * StatementBudgetInterceptor.
+ * <pre>
+ *  Attributes the SQL statements counted by the {@link StatementCounter statement counter} to
+ *  the intercepted business method, and checks them against its {@link StatementBudget budget}
+ *  (or the default budget of the {@link ConfigBean configuration}). A call over budget, usually
+ *  a N+1 query on a lazy association, is logged; in strict mode (the test environments) it
+ *  fails with an {@link EjbException}.
+ *
+ *    &#64;Stateless
+ *    &#64;Interceptors(StatementBudgetInterceptor.class)
+ *    public class OrderBean extends BaseSessionBean&lt;Long, Order&gt; ...
+ *
+ *  The statements of the nested business calls are attributed to the outer call as well. The
+ *  counter counts the statements of the calling thread only, between the start and the end of
+ *  the business method, so some statements of the call are not counted:
+ *
+ *    - the statements of the flush at commit (the INSERTs, UPDATEs and DELETEs of the changed
+ *      objects) when the business method starts the transaction: the container commits after
+ *      the interceptor returns. Flush explicitly in the method to count them;
+ *    - the statements run on the other threads, e.g. the queries submitted to the
+ *      {@link com.inet.base.ejb.query.QueryExecutor query executor} by searchConcurrent or the
+ *      asynchronous queries of the session beans.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: StatementBudgetInterceptor.java 2010-02-09 10:16:44z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class StatementBudgetInterceptor {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(StatementBudgetInterceptor.class);
+
+  /**
+   * the declared budgets by bean class, then by method signature; -1 if the method declares no
+   * budget. The bean classes are weakly held, and the values do not refer to them, so an
+   * undeployed application is not retained.
+   */
+  private static final Map<Class<?>, Map<String, Integer>> BUDGETS =
+    new WeakHashMap<Class<?>, Map<String, Integer>>();
+
+  /**
+   * Counts the SQL statements executed by the intercepted business method.
+   *
+   * @param context the given {@link InvocationContext invocation context}.
+   * @return the result of the business method.
+   * @throws Exception if the business method fails.
+   */
+  @AroundInvoke
+  public Object invoke(final InvocationContext context) throws Exception {
+    final long statements = StatementCounter.getCount();
+    final long start = System.nanoTime();
+
+    final Object result = context.proceed();
+
+    final long executed = StatementCounter.getCount() - statements;
+    final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("The business method [{}] executed {} SQL statements in {} ms.", new Object[]{
+          nameOf(context), Long.valueOf(executed), Long.valueOf(millis) });
+    }
+
+    final ConfigBean config = ConfigBean.getInstance();
+    final int budget = budgetOf(context, config);
+    if (budget >= 0 && executed > budget) {
+      final String msg = "The business method [" + nameOf(context) + "] executed " + executed
+                         + " SQL statements in " + millis + " ms, over its budget of " + budget
+                         + ".";
+      if (config != null && config.isStatementBudgetStrict()) {
+        throw new EjbException(msg);
+      }
+      LOG.warn(msg);
+    }
+
+    return result;
+  }
+
+  /**
+   * Returns the statement budget of the intercepted business method: the budget of the method,
+   * of the bean class, or the default budget.
+   *
+   * @param context the given {@link InvocationContext invocation context}.
+   * @param config the given {@link ConfigBean configuration}; may be {@code null}.
+   * @return the budget; a negative value if the method has no budget.
+   */
+  private static int budgetOf(final InvocationContext context, final ConfigBean config) {
+    final Method method = context.getMethod();
+    final Class<?> beanClass = context.getTarget().getClass();
+    final String signature = method.getName() + Arrays.toString(method.getParameterTypes());
+
+    Integer budget;
+    synchronized (BUDGETS) {
+      Map<String, Integer> budgets = BUDGETS.get(beanClass);
+      if (budgets == null) {
+        budgets = new HashMap<String, Integer>();
+        BUDGETS.put(beanClass, budgets);
+      }
+
+      budget = budgets.get(signature);
+      if (budget == null) {
+        StatementBudget declared = method.getAnnotation(StatementBudget.class);
+        if (declared == null) {
+          declared = beanClass.getAnnotation(StatementBudget.class);
+        }
+        budget = Integer.valueOf(declared != null ? declared.value() : -1);
+        budgets.put(signature, budget);
+      }
+    }
+
+    if (budget.intValue() >= 0) {
+      return budget.intValue();
+    }
+    return config != null && config.getStatementBudget() > 0 ? config.getStatementBudget() : -1;
+  }
+
+  /**
+   * Returns the name of the intercepted business method.
+   *
+   * @param context the given {@link InvocationContext invocation context}.
+   * @return the method name.
+   */
+  private static String nameOf(final InvocationContext context) {
+    return context.getTarget().getClass().getName() + '.' + context.getMethod().getName();
+  }
+}
@@ -0,0 +1,502 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.internal.Preconditions;
+import com.inet.base.ejb.internal.ref.BulkFormat;
+import com.inet.base.ejb.internal.ref.Codec;
+import com.inet.base.ejb.internal.ref.Codecs;
+
+/**
+ * CacheSnapshot.
+ * <pre>
+ *  Saves the registered caches into a local file and restores them at startup,
+ *  so a redeployed application does not run cold until its caches refill:
+ *
+ *    final CacheSnapshot snapshot = new CacheSnapshot(new File(dir, "caches.snp"), 1);
+ *    snapshot.register("counts", counts, Codecs.STRING, Codecs.INTEGER);
+ *    snapshot.load();
+ *    snapshot.start(5, TimeUnit.MINUTES);
+ *
+ *  The file carries a format version, the given application version and a checksum of its
+ *  content. A missing, corrupt or version-mismatched file is rejected as a whole: nothing is
+ *  put into the caches and the next save overwrites it. The snapshot holds the monitor of a
+ *  registered map while reading or filling it.
+ *
+ *  A save writes a temporary file and renames it over the snapshot file, so a crash leaves
+ *  either the old or the new snapshot. Where the platform can not rename over an existing file,
+ *  the old snapshot is first renamed to a backup file, which a later load falls back to when
+ *  the snapshot file is missing or rejected.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: CacheSnapshot.java 2010-01-22 15:04:26z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class CacheSnapshot {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+  /** the file magic number. */
+  private static final int MAGIC = 0x49534E50;
+
+  /** the file format version. */
+  private static final int FORMAT_VERSION = 2;
+
+  /** the header length: magic, format version, version, sections, payload length, checksum. */
+  private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8;
+
+  /** the snapshot file. */
+  private final File file;
+
+  /** the application snapshot version. */
+  private final int version;
+
+  /** the registered caches. */
+  private final Map<String, Section<?, ?>> sections = new LinkedHashMap<String, Section<?, ?>>();
+
+  /** the periodic save scheduler. */
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Create <tt>CacheSnapshot</tt> instance.
+   *
+   * @param f the given snapshot file.
+   * @param v the given application snapshot version; a file saved with another version is
+   * rejected, so bump it whenever a cached type changes.
+   */
+  public CacheSnapshot(final File f, final int v) {
+    this.file = Preconditions.checkNotNull(f, "The snapshot file must not be null.");
+    this.version = v;
+  }
+
+  /**
+   * Registers the given cache to be saved and restored under the given name.
+   * @param <K> the key type.
+   * @param <V> the value type.
+   *
+   * @param name the given cache name, unique in the snapshot.
+   * @param cache the given cache.
+   * @param keyCodec the given key {@link Codec codec}.
+   * @param valueCodec the given value {@link Codec codec}.
+   */
+  public synchronized <K, V> void register(final String name, final Map<K, V> cache,
+      final Codec<K> keyCodec, final Codec<V> valueCodec) {
+    Preconditions.checkNotNull(name, "The cache name must not be null.");
+    Preconditions.checkNotNull(cache, "The cache must not be null.");
+    sections.put(name, new Section<K, V>(cache, keyCodec, valueCodec));
+  }
+
+  /**
+   * Writes all registered caches into the snapshot file. The content is written into a
+   * temporary file first, which is then renamed over the snapshot file.
+   *
+   * @throws IOException if the snapshot could not be written.
+   */
+  public synchronized void save() throws IOException {
+    // encode the sections.
+    final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    for (final Map.Entry<String, Section<?, ?>> entry : sections.entrySet()) {
+      final byte[] name = Codecs.STRING.encode(entry.getKey());
+      final byte[] data = entry.getValue().encode();
+
+      final ByteBuffer lengths = ByteBuffer.allocate(4);
+      payload.write(lengths.putInt(name.length).array());
+      payload.write(name);
+      lengths.clear();
+      payload.write(lengths.putInt(data.length).array());
+      payload.write(data);
+    }
+
+    final byte[] content = payload.toByteArray();
+    final CRC32 checksum = new CRC32();
+    checksum.update(content);
+
+    // write the temporary file.
+    final File temp = new File(file.getPath() + ".tmp");
+    final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+    try {
+      raf.setLength(0);
+      final FileChannel channel = raf.getChannel();
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(version).putInt(sections.size());
+      header.putLong(content.length).putLong(checksum.getValue());
+      header.flip();
+      final ByteBuffer body = ByteBuffer.wrap(content);
+      while (header.hasRemaining() || body.hasRemaining()) {
+        channel.write(new ByteBuffer[] { header, body });
+      }
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+
+    replace(temp);
+
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Saved {} caches into the snapshot [{}].", sections.size(), file);
+    }
+  }
+
+  /**
+   * Restores the registered caches from the snapshot file, or from its backup if the file is
+   * missing or rejected. The sections of unregistered caches are skipped.
+   *
+   * @return the number of restored caches; zero if there is no snapshot or it was rejected.
+   */
+  public synchronized int load() {
+    // decode the whole snapshot before touching any cache.
+    File source = file;
+    Map<String, Map<Object, Object>> restored = decode(source, false);
+    if (restored == null) {
+      source = backupFile();
+      restored = decode(source, true);
+    }
+    if (restored == null) {
+      return 0;
+    }
+
+    for (final Map.Entry<String, Map<Object, Object>> entry : restored.entrySet()) {
+      sections.get(entry.getKey()).restore(entry.getValue());
+    }
+
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Restored {} caches from the snapshot [{}].", restored.size(), source);
+    }
+    return restored.size();
+  }
+
+  /**
+   * Starts saving the snapshot periodically.
+   *
+   * @param period the given period between two saves.
+   * @param unit the given period {@link TimeUnit unit}.
+   */
+  public synchronized void start(final long period, final TimeUnit unit) {
+    Preconditions.checkState(scheduler == null, "The snapshot is already started.");
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "cache-snapshot");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          save();
+        } catch (final Exception ex) {
+          LOG.warn("Could not save the cache snapshot [{}].", file, ex);
+        }
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * Stops saving the snapshot periodically. Call {@link #save()} for a final snapshot.
+   */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+
+  /**
+   * Renames the given temporary file over the snapshot file.
+   *
+   * @param temp the given temporary file.
+   * @throws IOException if the snapshot file could not be replaced.
+   */
+  private void replace(final File temp) throws IOException {
+    if (temp.renameTo(file)) {
+      // the rename over the snapshot is atomic, the backup of an earlier save is stale.
+      backupFile().delete();
+      return;
+    }
+
+    // the platform does not rename over an existing file: keep the old snapshot as a backup
+    // until the new one is in place.
+    final File backup = backupFile();
+    if (backup.exists() && !backup.delete()) {
+      throw new IOException("Could not delete the snapshot backup {" + backup + "}.");
+    }
+    if (file.exists() && !file.renameTo(backup)) {
+      throw new IOException("Could not back up the snapshot file {" + file + "}.");
+    }
+    if (!temp.renameTo(file)) {
+      throw new IOException("Could not rename the snapshot file {" + temp + "}.");
+    }
+    backup.delete();
+  }
+
+  /**
+   * Returns the backup of the snapshot file, present only while (or if a crash interrupted) a
+   * save replacing it.
+   *
+   * @return the backup file.
+   */
+  private File backupFile() {
+    return new File(file.getPath() + ".bak");
+  }
+
+  /**
+   * Decodes the given snapshot file, logging why it is rejected.
+   *
+   * @param source the given snapshot file.
+   * @param backup if {@code true} the file is the backup of the snapshot.
+   * @return the decoded mappings by cache name; {@code null} if the file is missing or was
+   * rejected.
+   */
+  private Map<String, Map<Object, Object>> decode(final File source, final boolean backup) {
+    if (!source.isFile()) {
+      return null;
+    }
+
+    final String kind = (backup ? "backup" : "file");
+    try {
+      return decode(source);
+    } catch (final IOException ioex) {
+      LOG.warn("Rejected the cache snapshot {} [{}]: {}",
+          new Object[] { kind, source, ioex.getMessage() });
+      return null;
+    } catch (final RuntimeException rex) {
+      LOG.warn("Rejected the corrupt cache snapshot {} [{}].", new Object[] { kind, source, rex });
+      return null;
+    }
+  }
+
+  /**
+   * Reads the given snapshot file and decodes the sections of the registered caches. The file
+   * is read through a plain channel and closed before returning, so it is never left mapped.
+   *
+   * @param source the given snapshot file.
+   * @return the decoded mappings by cache name.
+   * @throws IOException if the snapshot could not be read or is not valid.
+   */
+  private Map<String, Map<Object, Object>> decode(final File source) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(source, "r");
+    try {
+      final long length = raf.length();
+      if (length < HEADER_LENGTH) {
+        throw new StreamCorruptedException("truncated header");
+      }
+      if (length > Integer.MAX_VALUE) {
+        throw new StreamCorruptedException("oversized content");
+      }
+
+      final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+      final FileChannel channel = raf.getChannel();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new StreamCorruptedException("truncated content");
+        }
+      }
+      buffer.flip();
+      if (buffer.getInt() != MAGIC) {
+        throw new StreamCorruptedException("not a cache snapshot");
+      }
+      if (buffer.getInt() != FORMAT_VERSION) {
+        throw new StreamCorruptedException("unsupported format version");
+      }
+      if (buffer.getInt() != version) {
+        throw new StreamCorruptedException("version mismatch");
+      }
+      final int count = buffer.getInt();
+      final long payloadLength = buffer.getLong();
+      final long expected = buffer.getLong();
+      if (payloadLength != length - HEADER_LENGTH) {
+        throw new StreamCorruptedException("truncated content");
+      }
+
+      // verify the checksum.
+      final CRC32 checksum = new CRC32();
+      final ByteBuffer content = buffer.slice();
+      final byte[] chunk = new byte[8192];
+      while (content.hasRemaining()) {
+        final int size = Math.min(chunk.length, content.remaining());
+        content.get(chunk, 0, size);
+        checksum.update(chunk, 0, size);
+      }
+      if (checksum.getValue() != expected) {
+        throw new StreamCorruptedException("checksum mismatch");
+      }
+
+      // decode the sections.
+      final Map<String, Map<Object, Object>> restored = new HashMap<String, Map<Object, Object>>();
+      for (int index = 0; index < count; index++) {
+        final String name = Codecs.STRING.decode(next(buffer, buffer.getInt()));
+        final ByteBuffer data = next(buffer, buffer.getInt());
+
+        final Section<?, ?> section = sections.get(name);
+        if (section != null) {
+          restored.put(name, section.decode(new BufferChannel(data)));
+        }
+      }
+      return restored;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the next given number of bytes of the given buffer, and moves over them.
+   *
+   * @param buffer the given buffer.
+   * @param length the given number of bytes.
+   * @return the buffer holding the bytes.
+   */
+  private static ByteBuffer next(final ByteBuffer buffer, final int length) {
+    final ByteBuffer data = buffer.slice();
+    data.limit(length);
+    buffer.position(buffer.position() + length);
+    return data;
+  }
+
+  /**
+   * Section.
+   * <pre>
+   *  The registered cache and its codecs.
+   * </pre>
+   */
+  private static final class Section<K, V> {
+    private final Map<K, V> cache;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+
+    /**
+     * Create <tt>Section</tt> instance.
+     */
+    Section(final Map<K, V> c, final Codec<K> kc, final Codec<V> vc) {
+      this.cache = c;
+      this.keyCodec = kc;
+      this.valueCodec = vc;
+    }
+
+    /**
+     * Encodes the cache mappings.
+     *
+     * @return the encoded mappings.
+     * @throws IOException if the mappings could not be encoded.
+     */
+    byte[] encode() throws IOException {
+      final ByteArrayOutputStream data = new ByteArrayOutputStream();
+      synchronized (cache) {
+        BulkFormat.writeMap(cache, Channels.newChannel(data), keyCodec, valueCodec);
+      }
+      return data.toByteArray();
+    }
+
+    /**
+     * Decodes the cache mappings.
+     *
+     * @param channel the given channel holding the encoded mappings.
+     * @return the decoded mappings.
+     * @throws IOException if the mappings could not be decoded.
+     */
+    @SuppressWarnings({ "unchecked" })
+    Map<Object, Object> decode(final ReadableByteChannel channel) throws IOException {
+      final Map<K, V> mappings = new HashMap<K, V>();
+      BulkFormat.readMap(channel, mappings, keyCodec, valueCodec);
+      return (Map<Object, Object>) mappings;
+    }
+
+    /**
+     * Puts the given decoded mappings into the cache.
+     *
+     * @param mappings the given decoded mappings.
+     */
+    @SuppressWarnings({ "unchecked" })
+    void restore(final Map<Object, Object> mappings) {
+      synchronized (cache) {
+        cache.putAll((Map<K, V>) mappings);
+      }
+    }
+  }
+
+  /**
+   * BufferChannel.
+   * <pre>
+   *  Reads the remaining bytes of a buffer as a channel.
+   * </pre>
+   */
+  private static final class BufferChannel implements ReadableByteChannel {
+    private final ByteBuffer source;
+
+    /**
+     * Create <tt>BufferChannel</tt> instance.
+     */
+    BufferChannel(final ByteBuffer s) {
+      this.source = s;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+     */
+    public int read(final ByteBuffer dst) {
+      if (!source.hasRemaining()) {
+        return -1;
+      }
+
+      final int length = Math.min(dst.remaining(), source.remaining());
+      dst.put(next(source, length));
+      return length;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.nio.channels.Channel#isOpen()
+     */
+    public boolean isOpen() {
+      return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.nio.channels.Channel#close()
+     */
+    public void close() {
+      // nothing to release.
+    }
+  }
+}
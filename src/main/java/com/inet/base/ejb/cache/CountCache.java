@@ -0,0 +1,132 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.DetachedCriteria;
+
+import com.inet.base.ejb.internal.Preconditions;
+import com.inet.base.ejb.internal.ref.Codecs;
+import com.inet.base.ejb.internal.ref.SoftHashMap;
+
+/**
+ * CountCache.
+ * <pre>
+ *  Caches the totals of the count criteria by {@link CriteriaSignature criteria signature} (the
+ *  persistence class, the translated restrictions and their bound values) for a fixed time. A
+ *  cached total may be stale up to that time, so the cache fits the paging of large result sets
+ *  where an approximate total is good enough. The totals are held softly and released under
+ *  memory pressure.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: CountCache.java 2010-01-29 10:26:13z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class CountCache {
+  /** the cached totals, also used as lock. */
+  private final Map<String, Integer> totals;
+
+  /**
+   * Create <tt>CountCache</tt> instance.
+   *
+   * @param ttl the given time a total is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   */
+  public CountCache(final long ttl, final TimeUnit unit) {
+    final SoftHashMap<String, Integer> map = new SoftHashMap<String, Integer>();
+    map.setExpireAfterWrite(ttl, unit);
+    this.totals = map;
+  }
+
+  /**
+   * Returns the signature of the given count criteria.
+   *
+   * @param criteria the given count {@link Criteria criteria}.
+   * @return the criteria signature; {@code null} if the total must not be cached.
+   */
+  public static String signatureOf(final Criteria criteria) {
+    return CriteriaSignature.of(criteria);
+  }
+
+  /**
+   * Returns the signature of the given detached count criteria, translated on the given
+   * session; the criteria is not executed.
+   *
+   * @param criteria the given detached count {@link DetachedCriteria criteria}.
+   * @param session the given {@link Session session} translating the criteria.
+   * @return the criteria signature; {@code null} if the total must not be cached.
+   */
+  public static String signatureOf(final DetachedCriteria criteria, final Session session) {
+    return CriteriaSignature.of(criteria.getExecutableCriteria(session));
+  }
+
+  /**
+   * Returns the cached total of the given criteria signature.
+   *
+   * @param signature the given criteria signature; may be {@code null}.
+   * @return the cached total or {@code null}.
+   */
+  public Integer get(final String signature) {
+    if (signature == null) {
+      return null;
+    }
+    synchronized (totals) {
+      return totals.get(signature);
+    }
+  }
+
+  /**
+   * Caches the total of the given criteria signature; a {@code null} signature is not cached.
+   *
+   * @param signature the given criteria signature; may be {@code null}.
+   * @param total the given total.
+   */
+  public void put(final String signature, final int total) {
+    if (signature == null) {
+      return;
+    }
+    synchronized (totals) {
+      totals.put(signature, Integer.valueOf(total));
+    }
+  }
+
+  /**
+   * Removes all cached totals, e.g. after a bulk change.
+   */
+  public void clear() {
+    synchronized (totals) {
+      totals.clear();
+    }
+  }
+
+  /**
+   * Registers the cached totals into the given {@link CacheSnapshot snapshot}, so they survive
+   * a restart.
+   *
+   * @param snapshot the given {@link CacheSnapshot snapshot}.
+   * @param name the given cache name in the snapshot.
+   */
+  public void register(final CacheSnapshot snapshot, final String name) {
+    Preconditions.checkNotNull(snapshot, "The snapshot must not be null.");
+    snapshot.register(name, totals, Codecs.STRING, Codecs.INTEGER);
+  }
+}
@@ -0,0 +1,260 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.io.Serializable;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.hibernate.Criteria;
+import org.hibernate.EntityMode;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.SQLCriterion;
+import org.hibernate.criterion.SubqueryExpression;
+import org.hibernate.engine.QueryParameters;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.loader.criteria.CriteriaQueryTranslator;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+/**
+ * CriteriaSignature.
+ * <pre>
+ *  Builds the cache key of a criteria from what the query actually runs: the SQL restrictions
+ *  and sort order translated by Hibernate (including the SQL restrictions), the joined paths,
+ *  and every bound parameter value. The values are rendered exactly: the dates by their
+ *  milliseconds (and nanoseconds), the entities by their name and identifier, the other values
+ *  by their class and text, each prefixed by its length. Two criteria share a signature only
+ *  if they run the same SQL with the same values. The named queries are signed the same way,
+ *  by their name and parameter values.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: CriteriaSignature.java 2010-02-12 09:47:20z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class CriteriaSignature {
+  /**
+   * Create <tt>CriteriaSignature</tt> instance.
+   */
+  private CriteriaSignature() {
+    // utility class.
+  }
+
+  /**
+   * Returns the signature of the given criteria.
+   *
+   * @param criteria the given {@link Criteria criteria}; it must be a root criteria attached to
+   * a session.
+   * @return the criteria signature; {@code null} if the criteria can not be signed, its result
+   * must not be cached then.
+   */
+  public static String of(final Criteria criteria) {
+    if (!(criteria instanceof CriteriaImpl)) {
+      return null;
+    }
+
+    final CriteriaImpl impl = (CriteriaImpl) criteria;
+    if (impl.getSession() == null) {
+      return null;
+    }
+
+    try {
+      final SessionFactoryImplementor factory = impl.getSession().getFactory();
+      final String[] implementors = factory.getImplementors(impl.getEntityOrClassName());
+      if (implementors.length == 0) {
+        return null;
+      }
+
+      final CriteriaQueryTranslator translator = new CriteriaQueryTranslator(factory, impl,
+          implementors[0], CriteriaQueryTranslator.ROOT_SQL_ALIAS);
+      final StringBuilder signature = new StringBuilder(impl.getEntityOrClassName());
+      for (final Iterator<?> subcriteria = impl.iterateSubcriteria(); subcriteria.hasNext();) {
+        final CriteriaImpl.Subcriteria sub = (CriteriaImpl.Subcriteria) subcriteria.next();
+        signature.append("|join ").append(sub.getPath()).append(' ').append(sub.getAlias())
+          .append(' ').append(sub.getJoinType());
+      }
+      if (translator.hasProjection()) {
+        signature.append("|select ").append(translator.getSelect());
+        signature.append("|group ").append(translator.getGroupBy());
+      }
+      signature.append("|where ").append(translator.getWhereCondition());
+      signature.append("|order ").append(translator.getOrderBy());
+
+      final QueryParameters parameters = translator.getQueryParameters();
+      final Object[] values = parameters.getPositionalParameterValues();
+      final Type[] types = parameters.getPositionalParameterTypes();
+      for (int index = 0; index < values.length; index++) {
+        signature.append('|');
+        appendValue(signature, factory, types[index], values[index]);
+      }
+      return signature.toString();
+    } catch (final HibernateException hex) {
+      // the query reports the error itself.
+      return null;
+    }
+  }
+
+  /**
+   * Returns the names of the persistence classes the given criteria reads: its root entity and
+   * the entities joined by its sub criteria and aliases. A write to any of them changes the
+   * result, so the result is stamped with all of them. Only the top level restrictions are
+   * checked for subqueries: a subquery nested in a junction is not detected.
+   *
+   * @param criteria the given {@link Criteria criteria}.
+   * @return the persistence class names; {@code null} if the criteria reads other classes
+   * through a subquery or a SQL restriction, its result must not be cached then.
+   */
+  public static String[] entityNamesOf(final Criteria criteria) {
+    if (!(criteria instanceof CriteriaImpl)) {
+      return null;
+    }
+
+    final CriteriaImpl impl = (CriteriaImpl) criteria;
+    if (impl.getSession() == null) {
+      return null;
+    }
+
+    for (final Iterator<?> entries = impl.iterateExpressionEntries(); entries.hasNext();) {
+      final Criterion criterion = ((CriteriaImpl.CriterionEntry) entries.next()).getCriterion();
+      if (criterion instanceof SubqueryExpression || criterion instanceof SQLCriterion) {
+        return null;
+      }
+    }
+
+    final Set<String> entityNames = new LinkedHashSet<String>();
+    entityNames.add(impl.getEntityOrClassName());
+    if (impl.iterateSubcriteria().hasNext()) {
+      try {
+        final SessionFactoryImplementor factory = impl.getSession().getFactory();
+        final String[] implementors = factory.getImplementors(impl.getEntityOrClassName());
+        if (implementors.length == 0) {
+          return null;
+        }
+
+        final CriteriaQueryTranslator translator = new CriteriaQueryTranslator(factory, impl,
+            implementors[0], CriteriaQueryTranslator.ROOT_SQL_ALIAS);
+        for (final Iterator<?> subcriteria = impl.iterateSubcriteria(); subcriteria.hasNext();) {
+          final String entityName = translator.getEntityName((Criteria) subcriteria.next());
+          if (entityName == null) {
+            return null;
+          }
+          entityNames.add(entityName);
+        }
+      } catch (final HibernateException hex) {
+        return null;
+      }
+    }
+    return entityNames.toArray(new String[entityNames.size()]);
+  }
+
+  /**
+   * Returns the signature of the given named query and parameter values.
+   *
+   * @param factory the given {@link SessionFactory session factory}.
+   * @param name the given named query.
+   * @param values the given parameter values, in the parameter order.
+   * @return the query signature.
+   */
+  public static String of(final SessionFactory factory, final String name,
+      final Object... values) {
+    final StringBuilder signature = new StringBuilder(name);
+    if (values != null) {
+      for (final Object value : values) {
+        signature.append('|');
+        appendValue(signature, factory, null, value);
+      }
+    }
+    return signature.toString();
+  }
+
+  /**
+   * Appends the exact rendering of the given parameter value.
+   *
+   * @param signature the given signature to append to.
+   * @param factory the given {@link SessionFactory session factory}.
+   * @param type the given parameter {@link Type type}; {@code null} if unknown.
+   * @param value the given parameter value.
+   */
+  private static void appendValue(final StringBuilder signature, final SessionFactory factory,
+      final Type type, final Object value) {
+    if (value == null) {
+      signature.append("null");
+    } else if (value instanceof HibernateProxy) {
+      final LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
+      appendText(signature, initializer.getEntityName(), initializer.getIdentifier());
+    } else if (type != null && type.isEntityType()) {
+      final String entityName = ((EntityType) type).getAssociatedEntityName();
+      final ClassMetadata metadata = factory.getClassMetadata(entityName);
+      if (metadata != null && metadata.getMappedClass(EntityMode.POJO).isInstance(value)) {
+        final Serializable id = metadata.getIdentifier(value, EntityMode.POJO);
+        appendText(signature, entityName, id);
+      } else {
+        appendText(signature, entityName, value);
+      }
+    } else if (value instanceof Timestamp) {
+      final Timestamp timestamp = (Timestamp) value;
+      appendText(signature, value.getClass().getName(),
+          timestamp.getTime() + "." + timestamp.getNanos());
+    } else if (value instanceof Date) {
+      appendText(signature, value.getClass().getName(), Long.valueOf(((Date) value).getTime()));
+    } else if (value instanceof Calendar) {
+      final Calendar calendar = (Calendar) value;
+      appendText(signature, value.getClass().getName(),
+          calendar.getTimeInMillis() + "@" + calendar.getTimeZone().getID());
+    } else if (value instanceof Object[] || value instanceof Collection<?>) {
+      final Object[] elements = (value instanceof Object[] ? (Object[]) value
+                                 : ((Collection<?>) value).toArray());
+      signature.append('[');
+      for (final Object element : elements) {
+        appendValue(signature, factory, null, element);
+        signature.append(',');
+      }
+      signature.append(']');
+    } else if (type == null && factory.getClassMetadata(value.getClass()) != null) {
+      final ClassMetadata metadata = factory.getClassMetadata(value.getClass());
+      appendText(signature, metadata.getEntityName(),
+          metadata.getIdentifier(value, EntityMode.POJO));
+    } else {
+      appendText(signature, value.getClass().getName(), value);
+    }
+  }
+
+  /**
+   * Appends the given kind and the length prefixed text of the given value.
+   *
+   * @param signature the given signature to append to.
+   * @param kind the given value kind (class or entity name).
+   * @param value the given value.
+   */
+  private static void appendText(final StringBuilder signature, final String kind,
+      final Object value) {
+    final String text = String.valueOf(value);
+    signature.append(kind).append(':').append(text.length()).append(':').append(text);
+  }
+}
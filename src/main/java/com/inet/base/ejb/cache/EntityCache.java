@@ -0,0 +1,289 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.internal.Preconditions;
+import com.inet.base.ejb.internal.ref.Codec;
+import com.inet.base.ejb.internal.ref.Codecs;
+
+/**
+ * EntityCache.
+ * <pre>
+ *  Caches the persistence objects loaded by primary key for reading only across the
+ *  transactions, for the registered persistence classes only (the hot reference data). Every
+ *  class has its own bounded LRU region; an object is cached as an immutable serialized
+ *  snapshot, and every hit returns a new detached copy, so the callers never share an instance.
+ *  The session beans only cache the objects whose lazy associations are all initialized: a copy
+ *  can not load them afterwards.
+ *
+ *  The writes done through the session bean invalidate the written object (or the whole class
+ *  after a bulk delete, all classes after a bulk update) after the writing transaction completes
+ *  (see {@link PendingInvalidation}), so a load stamped before the completion is not cached. The
+ *  writes done outside of the application are only seen after the time to live.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: EntityCache.java 2010-02-05 09:37:26z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class EntityCache implements InvalidatableCache {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(EntityCache.class);
+
+  /** the snapshot codec. */
+  private static final Codec<Serializable> CODEC = Codecs.serializable();
+
+  /** the regions by persistence class name. */
+  private final ConcurrentMap<String, Region> regions = new ConcurrentHashMap<String, Region>();
+
+  /** the time to live of the cached objects (in nanoseconds). */
+  private final long ttlNanos;
+
+  /**
+   * Create <tt>EntityCache</tt> instance.
+   *
+   * @param ttl the given time an object is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   */
+  public EntityCache(final long ttl, final TimeUnit unit) {
+    Preconditions.checkArgument(ttl > 0, "The time to live must be positive.");
+    this.ttlNanos = unit.toNanos(ttl);
+  }
+
+  /**
+   * Caches the objects of the given persistence class, at most the given number of objects.
+   *
+   * @param clazz the given serializable persistence class.
+   * @param maxEntries the given max number of cached objects.
+   * @return this cache.
+   */
+  public EntityCache register(final Class<?> clazz, final int maxEntries) {
+    Preconditions.checkArgument(Serializable.class.isAssignableFrom(clazz),
+        "The class {" + clazz.getName() + "} is not serializable.");
+    Preconditions.checkArgument(maxEntries > 0, "The max number of entries must be positive.");
+
+    regions.putIfAbsent(clazz.getName(), new Region(maxEntries));
+    return this;
+  }
+
+  /**
+   * Returns whether the objects of the given persistence class are cached.
+   *
+   * @param clazz the given persistence class.
+   * @return whether the objects are cached.
+   */
+  public boolean isCached(final Class<?> clazz) {
+    return regions.containsKey(clazz.getName());
+  }
+
+  /**
+   * Returns the current stamp of the given persistence class; take it before loading the object,
+   * so a write during the load prevents caching it.
+   *
+   * @param clazz the given cached persistence class.
+   * @return the stamp; {@code -1} if the class is not cached.
+   */
+  public long stamp(final Class<?> clazz) {
+    final Region region = regions.get(clazz.getName());
+    if (region == null) {
+      return -1;
+    }
+
+    synchronized (region) {
+      return region.generation;
+    }
+  }
+
+  /**
+   * Returns a detached copy of the cached object of the given primary key.
+   *
+   * @param clazz the given persistence class.
+   * @param key the given primary key.
+   * @return the detached copy; {@code null} if the object is not cached.
+   */
+  public Object get(final Class<?> clazz, final Object key) {
+    final Region region = regions.get(clazz.getName());
+    if (region == null) {
+      return null;
+    }
+
+    final Snapshot entry;
+    synchronized (region) {
+      entry = region.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expires - System.nanoTime() <= 0) {
+        region.remove(key);
+        return null;
+      }
+    }
+
+    // copy outside of the lock.
+    try {
+      return CODEC.decode(ByteBuffer.wrap(entry.snapshot));
+    } catch (final IOException ioex) {
+      LOG.warn("Could not copy the cached object of the primary key [{}].", key, ioex);
+      synchronized (region) {
+        region.remove(key);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Caches the snapshot of the given object, unless the class was written since the given stamp.
+   * The object must not hold uninitialized lazy associations, which the copies could not load.
+   *
+   * @param clazz the given persistence class.
+   * @param key the given primary key.
+   * @param stamp the given {@link #stamp(Class) stamp} taken before loading the object.
+   * @param obj the given loaded object.
+   */
+  public void put(final Class<?> clazz, final Object key, final long stamp, final Object obj) {
+    final Region region = regions.get(clazz.getName());
+    if (region == null || key == null || obj == null) {
+      return;
+    }
+
+    final byte[] snapshot;
+    try {
+      snapshot = CODEC.encode((Serializable) obj);
+    } catch (final IOException ioex) {
+      LOG.warn("Could not cache the object of the primary key [{}].", key, ioex);
+      return;
+    }
+
+    synchronized (region) {
+      if (region.generation == stamp) {
+        region.put(key, new Snapshot(snapshot, System.nanoTime() + ttlNanos));
+      }
+    }
+  }
+
+  /**
+   * Invalidates the cached object of the given primary key, in the regions of the given
+   * persistence class and of its super classes.
+   *
+   * @param clazz the given written persistence class.
+   * @param key the given primary key; {@code null} invalidates the whole classes.
+   */
+  public void invalidate(final Class<?> clazz, final Object key) {
+    for (Class<?> current = clazz; current != null && current != Object.class;
+         current = current.getSuperclass()) {
+      final Region region = regions.get(current.getName());
+      if (region != null) {
+        synchronized (region) {
+          region.generation++;
+          if (key == null) {
+            region.clear();
+          } else {
+            region.remove(key);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Invalidates all cached objects of the given persistence class and of its super classes.
+   *
+   * @param clazz the given written persistence class.
+   */
+  public void invalidate(final Class<?> clazz) {
+    invalidate(clazz, null);
+  }
+
+  /**
+   * Invalidates all cached objects, e.g. after a bulk update.
+   */
+  public void invalidateAll() {
+    for (final Region region : regions.values()) {
+      synchronized (region) {
+        region.generation++;
+        region.clear();
+      }
+    }
+  }
+
+  /**
+   * Region.
+   * <pre>
+   *  The bounded LRU region of a persistence class, also used as its lock.
+   * </pre>
+   */
+  private static final class Region extends LinkedHashMap<Object, Snapshot> {
+    private static final long serialVersionUID = 6519062476193380117L;
+
+    /* the max number of entries. */
+    private final int maxEntries;
+
+    /* the write generation of the class. */
+    long generation;
+
+    /**
+     * Create <tt>Region</tt> instance.
+     *
+     * @param max the given max number of entries.
+     */
+    Region(final int max) {
+      super(16, 0.75f, true);
+      this.maxEntries = max;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+     */
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Object, Snapshot> eldest) {
+      return size() > maxEntries;
+    }
+  }
+
+  /**
+   * Snapshot.
+   * <pre>
+   *  A cached object snapshot.
+   * </pre>
+   */
+  private static final class Snapshot {
+    final byte[] snapshot;
+    final long expires;
+
+    /**
+     * Create <tt>Snapshot</tt> instance.
+     */
+    Snapshot(final byte[] s, final long x) {
+      this.snapshot = s;
+      this.expires = x;
+    }
+  }
+}
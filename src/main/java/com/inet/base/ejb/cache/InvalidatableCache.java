@@ -0,0 +1,50 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+/**
+ * InvalidatableCache.
+ * <pre>
+ *  A cache of persistence data invalidated by the writes of the session beans, after the
+ *  writing transaction completes (see {@link PendingInvalidation}).
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: InvalidatableCache.java 2010-02-12 14:26:51z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface InvalidatableCache {
+  /**
+   * Invalidates the cached data of the given written persistence object.
+   *
+   * @param clazz the given persistence class of the written object.
+   * @param key the given primary key of the written object.
+   */
+  void invalidate(Class<?> clazz, Object key);
+
+  /**
+   * Invalidates the cached data of the given written persistence class.
+   *
+   * @param clazz the given written persistence class.
+   */
+  void invalidate(Class<?> clazz);
+
+  /**
+   * Invalidates all cached data, e.g. after a bulk update.
+   */
+  void invalidateAll();
+}
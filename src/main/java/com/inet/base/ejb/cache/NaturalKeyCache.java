@@ -0,0 +1,468 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.inet.base.ejb.internal.Preconditions;
+import com.inet.base.ejb.internal.ref.Codec;
+import com.inet.base.ejb.internal.ref.Codecs;
+
+/**
+ * NaturalKeyCache.
+ * <pre>
+ *  Caches the primary key of the persistence object found by a single-row lookup query on a
+ *  unique attribute (the natural key: a user login, a product SKU...), by named query, parameter
+ *  and value. The session bean resolves a cached primary key through find, which is served by
+ *  the persistence context or the second-level cache, instead of running the lookup query.
+ *
+ *  A write to a persistence object removes the natural keys mapped to it, so a natural key that
+ *  changed is looked up again; a bulk write removes the natural keys of the written class. A
+ *  lookup concurrent to a write of the class it found is not cached; the writes of the other
+ *  classes do not matter. The cache is bounded (LRU), and the natural keys changed outside of
+ *  the application are only seen after the time to live.
+ *
+ *  The natural keys may be saved and restored through a {@link CacheSnapshot cache snapshot},
+ *  see {@link #register(CacheSnapshot, String)}; a restored natural key keeps the remaining
+ *  time to live it had when saved, and expires at once if that time passed meanwhile.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: NaturalKeyCache.java 2010-02-05 14:08:52z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class NaturalKeyCache implements InvalidatableCache {
+  /** the natural key codec. */
+  private static final Codec<NaturalKey> KEY_CODEC = new Codec<NaturalKey>() {
+    public byte[] encode(final NaturalKey value) throws IOException {
+      return Codecs.serializable().encode(
+          new Serializable[] { value.namedQuery, value.param, (Serializable) value.value });
+    }
+
+    public NaturalKey decode(final ByteBuffer buffer) throws IOException {
+      final Object[] fields = fieldsOf(buffer, 3);
+      return new NaturalKey((String) fields[0], (String) fields[1], fields[2]);
+    }
+  };
+
+  /**
+   * the reference codec; the expiration is saved as a wall clock time, since the nano time does
+   * not survive a restart.
+   */
+  private static final Codec<Reference> REFERENCE_CODEC = new Codec<Reference>() {
+    public byte[] encode(final Reference value) throws IOException {
+      final long expires = System.currentTimeMillis()
+                           + TimeUnit.NANOSECONDS.toMillis(value.expires - System.nanoTime());
+      return Codecs.serializable().encode(
+          new Serializable[] { value.clazz, (Serializable) value.key, Long.valueOf(expires) });
+    }
+
+    public Reference decode(final ByteBuffer buffer) throws IOException {
+      final Object[] fields = fieldsOf(buffer, 3);
+      final long remaining = ((Long) fields[2]).longValue() - System.currentTimeMillis();
+      return new Reference((Class<?>) fields[0], fields[1],
+          System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining));
+    }
+  };
+
+  /** the cached references by natural key, also used as lock. */
+  private final Map<NaturalKey, Reference> references;
+
+  /** the natural keys by referenced object. */
+  private final Map<Reference, Set<NaturalKey>> naturalKeys =
+    new HashMap<Reference, Set<NaturalKey>>();
+
+  /** the time to live of the cached references (in nanoseconds). */
+  private final long ttlNanos;
+
+  /** the write generation, moved by every invalidation. */
+  private long generation;
+
+  /** the generation of the last write by persistence class name. */
+  private final Map<String, Long> written = new HashMap<String, Long>();
+
+  /** the generation of the last write of all classes. */
+  private long writtenAll;
+
+  /**
+   * Create <tt>NaturalKeyCache</tt> instance.
+   *
+   * @param maxEntries the given max number of cached natural keys.
+   * @param ttl the given time a natural key is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   */
+  public NaturalKeyCache(final int maxEntries, final long ttl, final TimeUnit unit) {
+    Preconditions.checkArgument(maxEntries > 0, "The max number of entries must be positive.");
+    Preconditions.checkArgument(ttl > 0, "The time to live must be positive.");
+
+    this.ttlNanos = unit.toNanos(ttl);
+    this.references = new LinkedHashMap<NaturalKey, Reference>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2306121837467025119L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<NaturalKey, Reference> eldest) {
+        if (size() <= maxEntries) {
+          return false;
+        }
+
+        unlink(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+
+      @Override
+      public Reference put(final NaturalKey naturalKey, final Reference reference) {
+        final Reference previous = super.put(naturalKey, reference);
+        if (previous != null) {
+          unlink(naturalKey, previous);
+        }
+        link(naturalKey, reference);
+        return previous;
+      }
+
+      @Override
+      public void putAll(final Map<? extends NaturalKey, ? extends Reference> mappings) {
+        for (final Map.Entry<? extends NaturalKey, ? extends Reference> entry
+             : mappings.entrySet()) {
+          put(entry.getKey(), entry.getValue());
+        }
+      }
+    };
+  }
+
+  /**
+   * Registers the cached natural keys into the given {@link CacheSnapshot snapshot}, so they
+   * survive a restart. The natural key values and the primary keys must be serializable.
+   *
+   * @param snapshot the given {@link CacheSnapshot snapshot}.
+   * @param name the given cache name in the snapshot.
+   */
+  public void register(final CacheSnapshot snapshot, final String name) {
+    Preconditions.checkNotNull(snapshot, "The snapshot must not be null.");
+    snapshot.register(name, references, KEY_CODEC, REFERENCE_CODEC);
+  }
+
+  /**
+   * Returns the current stamp of the cache; take it before running the lookup query, so a write
+   * of the found class during the query prevents caching its result.
+   *
+   * @return the stamp.
+   */
+  public long stamp() {
+    synchronized (references) {
+      return generation;
+    }
+  }
+
+  /**
+   * Returns the reference of the persistence object found by the given natural key.
+   *
+   * @param namedQuery the given lookup query name.
+   * @param param the given query parameter name.
+   * @param value the given natural key value.
+   * @return the {@link Reference reference}; {@code null} if the natural key is not cached.
+   */
+  public Reference get(final String namedQuery, final String param, final Object value) {
+    final NaturalKey naturalKey = new NaturalKey(namedQuery, param, value);
+    synchronized (references) {
+      final Reference reference = references.get(naturalKey);
+      if (reference != null && reference.expires - System.nanoTime() <= 0) {
+        references.remove(naturalKey);
+        unlink(naturalKey, reference);
+        return null;
+      }
+      return reference;
+    }
+  }
+
+  /**
+   * Caches the reference of the persistence object found by the given natural key, unless an
+   * object of its class, or of a super class, was written since the given stamp.
+   *
+   * @param namedQuery the given lookup query name.
+   * @param param the given query parameter name.
+   * @param value the given natural key value; a value which is not serializable is not cached.
+   * @param clazz the given persistence class of the found object.
+   * @param key the given primary key of the found object.
+   * @param stamp the given {@link #stamp() stamp} taken before running the lookup query.
+   */
+  public void put(final String namedQuery, final String param, final Object value,
+      final Class<?> clazz, final Serializable key, final long stamp) {
+    if (!(value instanceof Serializable) || key == null) {
+      return;
+    }
+
+    final NaturalKey naturalKey = new NaturalKey(namedQuery, param, value);
+    final Reference reference = new Reference(clazz, key, System.nanoTime() + ttlNanos);
+    synchronized (references) {
+      if (isWritten(clazz, stamp)) {
+        return;
+      }
+      references.put(naturalKey, reference);
+    }
+  }
+
+  /**
+   * Removes the natural keys mapped to the given written persistence object.
+   *
+   * @param clazz the given persistence class of the written object.
+   * @param key the given primary key of the written object.
+   */
+  public void invalidate(final Class<?> clazz, final Object key) {
+    synchronized (references) {
+      written(clazz);
+
+      final Set<NaturalKey> keys = naturalKeys.remove(new Reference(clazz, key, 0));
+      if (keys != null) {
+        for (final NaturalKey naturalKey : keys) {
+          references.remove(naturalKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the natural keys mapped to the objects of the given persistence class or of its
+   * subclasses.
+   *
+   * @param clazz the given written persistence class.
+   */
+  public void invalidate(final Class<?> clazz) {
+    synchronized (references) {
+      written(clazz);
+
+      for (final Iterator<Map.Entry<NaturalKey, Reference>> entries =
+             references.entrySet().iterator(); entries.hasNext();) {
+        final Map.Entry<NaturalKey, Reference> entry = entries.next();
+        if (clazz.isAssignableFrom(entry.getValue().clazz)) {
+          entries.remove();
+          unlink(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes all natural keys, e.g. after a bulk update.
+   */
+  public void invalidateAll() {
+    synchronized (references) {
+      writtenAll = ++generation;
+      references.clear();
+      naturalKeys.clear();
+    }
+  }
+
+  /**
+   * Moves the generation and records it as the last write of the given persistence class and
+   * of its super classes; the caller holds the lock.
+   *
+   * @param clazz the given written persistence class.
+   */
+  private void written(final Class<?> clazz) {
+    final Long current = Long.valueOf(++generation);
+    for (Class<?> type = clazz; type != null && type != Object.class;
+         type = type.getSuperclass()) {
+      written.put(type.getName(), current);
+    }
+  }
+
+  /**
+   * Returns if the given persistence class, or one of its super classes, was written since the
+   * given stamp; the caller holds the lock. A write of a subclass records its super classes, so
+   * a lookup finding a super class object is rejected too.
+   *
+   * @param clazz the given persistence class.
+   * @param stamp the given {@link #stamp() stamp}.
+   * @return {@code true} if the class was written since the stamp.
+   */
+  private boolean isWritten(final Class<?> clazz, final long stamp) {
+    if (writtenAll > stamp) {
+      return true;
+    }
+    for (Class<?> type = clazz; type != null && type != Object.class;
+         type = type.getSuperclass()) {
+      final Long last = written.get(type.getName());
+      if (last != null && last.longValue() > stamp) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the given natural key to the natural keys of the given reference; the caller holds the
+   * lock.
+   *
+   * @param naturalKey the given natural key.
+   * @param reference the given {@link Reference reference}.
+   */
+  private void link(final NaturalKey naturalKey, final Reference reference) {
+    Set<NaturalKey> keys = naturalKeys.get(reference);
+    if (keys == null) {
+      keys = new HashSet<NaturalKey>(2);
+      naturalKeys.put(reference, keys);
+    }
+    keys.add(naturalKey);
+  }
+
+  /**
+   * Decodes the fields of a natural key or of a reference.
+   *
+   * @param buffer the given buffer holding the encoded fields.
+   * @param count the given number of fields.
+   * @return the decoded fields.
+   * @throws IOException if the fields could not be decoded.
+   */
+  private static Object[] fieldsOf(final ByteBuffer buffer, final int count) throws IOException {
+    final Object fields = Codecs.serializable().decode(buffer);
+    if (!(fields instanceof Object[]) || ((Object[]) fields).length != count) {
+      throw new StreamCorruptedException("Unexpected natural key cache data.");
+    }
+    return (Object[]) fields;
+  }
+
+  /**
+   * Removes the given natural key from the natural keys of the given reference; the caller holds
+   * the lock.
+   *
+   * @param naturalKey the given natural key.
+   * @param reference the given {@link Reference reference}.
+   */
+  private void unlink(final NaturalKey naturalKey, final Reference reference) {
+    final Set<NaturalKey> keys = naturalKeys.get(reference);
+    if (keys != null && keys.remove(naturalKey) && keys.isEmpty()) {
+      naturalKeys.remove(reference);
+    }
+  }
+
+  /**
+   * Reference.
+   * <pre>
+   *  The persistence class and primary key of the object found by a natural key.
+   * </pre>
+   */
+  public static final class Reference {
+    private final Class<?> clazz;
+    private final Object key;
+    private final long expires;
+
+    /**
+     * Create <tt>Reference</tt> instance.
+     */
+    Reference(final Class<?> c, final Object k, final long x) {
+      this.clazz = c;
+      this.key = k;
+      this.expires = x;
+    }
+
+    /**
+     * @return the persistence class of the object.
+     */
+    public Class<?> getEntityClass() {
+      return clazz;
+    }
+
+    /**
+     * @return the primary key of the object.
+     */
+    public Object getKey() {
+      return key;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Reference)) {
+        return false;
+      }
+
+      final Reference other = (Reference) obj;
+      return clazz == other.clazz && key.equals(other.key);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return 31 * clazz.hashCode() + key.hashCode();
+    }
+  }
+
+  /**
+   * NaturalKey.
+   * <pre>
+   *  The lookup query name, parameter name and natural key value.
+   * </pre>
+   */
+  private static final class NaturalKey {
+    private final String namedQuery;
+    private final String param;
+    private final Object value;
+
+    /**
+     * Create <tt>NaturalKey</tt> instance.
+     */
+    NaturalKey(final String q, final String p, final Object v) {
+      this.namedQuery = q;
+      this.param = p;
+      this.value = v;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof NaturalKey)) {
+        return false;
+      }
+
+      final NaturalKey other = (NaturalKey) obj;
+      return namedQuery.equals(other.namedQuery) && param.equals(other.param)
+             && value.equals(other.value);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return (31 * namedQuery.hashCode() + param.hashCode()) * 31 + value.hashCode();
+    }
+  }
+}
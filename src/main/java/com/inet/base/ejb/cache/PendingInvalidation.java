@@ -0,0 +1,299 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PendingInvalidation.
+ * <pre>
+ *  The cache invalidations of the writes of one JTA transaction, run after the transaction
+ *  completes. Invalidating when the write is issued is too early: a concurrent transaction
+ *  reading before the commit caches the old rows under the new generation, and a read of the
+ *  writing transaction caches its uncommitted rows. After the completion, the readers which
+ *  took their stamp before it can no longer cache, and the later readers see the committed
+ *  rows.
+ *
+ *  The transaction collects the written primary keys per persistence class, and invalidates
+ *  each key once; beyond {@link #MAX_KEYS} keys, the whole class is invalidated instead. A
+ *  large batch therefore holds a bounded state until it completes.
+ *
+ *  Until then, the transaction itself must not use the caches of the classes it wrote, see
+ *  {@link #isWritten(TransactionManager, String)}. Without an active transaction, the writes
+ *  are already committed and the invalidation runs at once.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: PendingInvalidation.java 2010-02-12 14:31:08z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class PendingInvalidation implements Synchronization {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(PendingInvalidation.class);
+
+  /** the maximum number of written primary keys collected per persistence class. */
+  private static final int MAX_KEYS = 1024;
+
+  /** the pending invalidations by transaction, removed when the transaction completes. */
+  private static final ConcurrentMap<Transaction, PendingInvalidation> PENDING =
+    new ConcurrentHashMap<Transaction, PendingInvalidation>();
+
+  /** the transaction. */
+  private final Transaction transaction;
+
+  /** the names of the written persistence classes and of their super classes. */
+  private final Set<String> written = new HashSet<String>();
+
+  /** whether all persistence classes were written (a bulk update). */
+  private boolean writtenAll;
+
+  /** the caches to invalidate. */
+  private final Set<InvalidatableCache> caches = new LinkedHashSet<InvalidatableCache>();
+
+  /** the written persistence classes, invalidated as a whole. */
+  private final Set<Class<?>> classes = new HashSet<Class<?>>();
+
+  /** the written primary keys by persistence class. */
+  private final Map<Class<?>, Set<Object>> keys = new HashMap<Class<?>, Set<Object>>();
+
+  /**
+   * Create <tt>PendingInvalidation</tt> instance.
+   *
+   * @param tx the given {@link Transaction transaction}.
+   */
+  private PendingInvalidation(final Transaction tx) {
+    this.transaction = tx;
+  }
+
+  /**
+   * Invalidates the given write in the given caches after the completion of the current
+   * transaction of the given transaction manager, or at once if there is no active transaction.
+   *
+   * @param manager the given {@link TransactionManager transaction manager}; may be
+   * {@code null} outside JTA.
+   * @param clazz the given written persistence class; {@code null} if all classes were written.
+   * @param key the given primary key of the written object; {@code null} if the whole class
+   * was written.
+   * @param caches the given caches to invalidate; the {@code null} caches are skipped.
+   */
+  public static void schedule(final TransactionManager manager, final Class<?> clazz,
+      final Object key, final InvalidatableCache... caches) {
+    final Transaction tx = activeTransaction(manager);
+    PendingInvalidation pending = (tx != null ? PENDING.get(tx) : null);
+    if (tx != null && pending == null) {
+      pending = new PendingInvalidation(tx);
+      try {
+        tx.registerSynchronization(pending);
+        PENDING.put(tx, pending);
+      } catch (final RollbackException rbex) {
+        pending = null;
+      } catch (final IllegalStateException isex) {
+        pending = null;
+      } catch (final SystemException sex) {
+        LOG.warn("Could not register the cache invalidation on the transaction.", sex);
+        pending = null;
+      }
+    }
+
+    if (pending == null) {
+      for (final InvalidatableCache cache : caches) {
+        if (cache != null) {
+          invalidate(cache, clazz, key);
+        }
+      }
+    } else {
+      pending.add(clazz, key, caches);
+    }
+  }
+
+  /**
+   * Returns if the current transaction of the given transaction manager wrote the given
+   * persistence class, or one of its subclasses; its caches must then be bypassed, they do not
+   * hold the changes of the transaction.
+   *
+   * @param manager the given {@link TransactionManager transaction manager}; may be
+   * {@code null} outside JTA.
+   * @param entityName the given persistence class name.
+   * @return {@code true} if the class has pending writes.
+   */
+  public static boolean isWritten(final TransactionManager manager, final String entityName) {
+    final Transaction tx = activeTransaction(manager);
+    final PendingInvalidation pending = (tx != null ? PENDING.get(tx) : null);
+    return pending != null && pending.contains(entityName);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.transaction.Synchronization#beforeCompletion()
+   */
+  public void beforeCompletion() {
+    // the invalidations run after the completion.
+  }
+
+  /**
+   * Runs the invalidations, whatever the outcome of the transaction: a rolled back transaction
+   * only costs the invalidated results.
+   *
+   * @param status the given transaction status.
+   * @see javax.transaction.Synchronization#afterCompletion(int)
+   */
+  public synchronized void afterCompletion(final int status) {
+    PENDING.remove(transaction);
+
+    for (final InvalidatableCache cache : caches) {
+      try {
+        if (writtenAll) {
+          cache.invalidateAll();
+          continue;
+        }
+
+        for (final Class<?> clazz : classes) {
+          cache.invalidate(clazz);
+        }
+        for (final Map.Entry<Class<?>, Set<Object>> entry : keys.entrySet()) {
+          for (final Object key : entry.getValue()) {
+            cache.invalidate(entry.getKey(), key);
+          }
+        }
+      } catch (final RuntimeException rex) {
+        LOG.warn("Could not invalidate the cached data after the transaction.", rex);
+      }
+    }
+    caches.clear();
+    classes.clear();
+    keys.clear();
+  }
+
+  /**
+   * Adds the given write to invalidate in the given caches.
+   *
+   * @param clazz the given written persistence class; {@code null} for all classes.
+   * @param key the given primary key of the written object; {@code null} for the whole class.
+   * @param targets the given caches to invalidate; the {@code null} caches are skipped.
+   */
+  private synchronized void add(final Class<?> clazz, final Object key,
+      final InvalidatableCache[] targets) {
+    for (final InvalidatableCache target : targets) {
+      if (target != null) {
+        caches.add(target);
+      }
+    }
+
+    if (clazz == null) {
+      writtenAll = true;
+      classes.clear();
+      keys.clear();
+      return;
+    }
+    if (writtenAll) {
+      return;
+    }
+
+    for (Class<?> current = clazz; current != null && current != Object.class;
+         current = current.getSuperclass()) {
+      written.add(current.getName());
+    }
+    if (key == null || classes.contains(clazz)) {
+      classes.add(clazz);
+      keys.remove(clazz);
+      return;
+    }
+
+    Set<Object> classKeys = keys.get(clazz);
+    if (classKeys == null) {
+      classKeys = new HashSet<Object>();
+      keys.put(clazz, classKeys);
+    }
+    classKeys.add(key);
+    if (classKeys.size() > MAX_KEYS) {
+      // too many objects of the class: invalidate it as a whole.
+      keys.remove(clazz);
+      classes.add(clazz);
+    }
+  }
+
+  /**
+   * Invalidates the given write in the given cache.
+   *
+   * @param cache the given {@link InvalidatableCache cache}.
+   * @param clazz the given written persistence class; {@code null} for all classes.
+   * @param key the given primary key of the written object; {@code null} for the whole class.
+   */
+  private static void invalidate(final InvalidatableCache cache, final Class<?> clazz,
+      final Object key) {
+    if (clazz == null) {
+      cache.invalidateAll();
+    } else if (key == null) {
+      cache.invalidate(clazz);
+    } else {
+      cache.invalidate(clazz, key);
+    }
+  }
+
+  /**
+   * Returns if the given persistence class was written.
+   *
+   * @param entityName the given persistence class name.
+   * @return {@code true} if the class was written.
+   */
+  private synchronized boolean contains(final String entityName) {
+    return writtenAll || written.contains(entityName);
+  }
+
+  /**
+   * Returns the active transaction of the given transaction manager.
+   *
+   * @param manager the given {@link TransactionManager transaction manager}; may be
+   * {@code null}.
+   * @return the active {@link Transaction transaction}; {@code null} if there is none.
+   */
+  private static Transaction activeTransaction(final TransactionManager manager) {
+    if (manager == null) {
+      return null;
+    }
+
+    try {
+      final Transaction tx = manager.getTransaction();
+      if (tx == null) {
+        return null;
+      }
+      final int status = tx.getStatus();
+      return (status == Status.STATUS_ACTIVE || status == Status.STATUS_MARKED_ROLLBACK
+              ? tx : null);
+    } catch (final SystemException sex) {
+      LOG.debug("Could not get the current transaction.", sex);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,241 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Criteria;
+import org.hibernate.impl.CriteriaImpl;
+
+import com.inet.base.ejb.internal.ref.SoftHashMap;
+
+/**
+ * QueryCache.
+ * <pre>
+ *  Caches the query results by region and query signature, each result for its own time to live.
+ *  Every result is stamped with the write generations of the persistence classes it was read
+ *  from (the root and the joined entities of a criteria): a write to one of these classes (or
+ *  to one of their subclasses) moves its generation, and the results stamped before are no
+ *  longer returned. The invalidation is therefore O(1), the stale results are dropped lazily
+ *  or released under memory pressure.
+ *
+ *  The generation moves after the writing transaction completes (see
+ *  {@link PendingInvalidation}), so a result read concurrently to the write is stamped before
+ *  the move and never returned. The cached results are opaque lists: the session beans cache
+ *  the identifiers of the entities and copies of the other values, never the objects of a
+ *  session.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: QueryCache.java 2010-02-04 11:15:42z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class QueryCache implements InvalidatableCache {
+  /** the cache regions, also used as lock of the region map. */
+  private final Map<String, Map<String, Entry>> regions = new HashMap<String, Map<String, Entry>>();
+
+  /** the write generation by persistence class name. */
+  private final ConcurrentMap<String, AtomicLong> generations =
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  /** the write generation of all persistence classes. */
+  private final AtomicLong globalGeneration = new AtomicLong();
+
+  /**
+   * Returns the signature of the given criteria: the {@link CriteriaSignature criteria
+   * signature} and the page.
+   *
+   * @param criteria the given {@link Criteria criteria}.
+   * @return the criteria signature; {@code null} if the result must not be cached.
+   */
+  public static String signatureOf(final Criteria criteria) {
+    final String signature = CriteriaSignature.of(criteria);
+    if (signature == null) {
+      return null;
+    }
+
+    final CriteriaImpl impl = (CriteriaImpl) criteria;
+    return signature + "|page " + impl.getFirstResult() + '|' + impl.getMaxResults();
+  }
+
+  /**
+   * Returns the current stamp of the given persistence classes; take it before executing the
+   * query, so a write to any of them during the query invalidates its result.
+   *
+   * @param entityNames the given persistence class names.
+   * @return the stamp.
+   */
+  public long stamp(final String... entityNames) {
+    // the generations only grow, so their sum changes whenever one of them changes.
+    long stamp = globalGeneration.get();
+    for (final String entityName : entityNames) {
+      stamp += generationOf(entityName).get();
+    }
+    return stamp;
+  }
+
+  /**
+   * Returns the cached result of the given query signature.
+   *
+   * @param region the given cache region.
+   * @param signature the given query signature.
+   * @return the cached result; {@code null} if there is no valid result.
+   */
+  public List<?> get(final String region, final String signature) {
+    final Map<String, Entry> results = regionOf(region);
+    synchronized (results) {
+      final Entry entry = results.get(signature);
+      if (entry == null) {
+        return null;
+      }
+
+      if (entry.expires - System.nanoTime() <= 0 || entry.stamp != stamp(entry.entityNames)) {
+        results.remove(signature);
+        return null;
+      }
+      return entry.result;
+    }
+  }
+
+  /**
+   * Caches the given result of the given query signature.
+   *
+   * @param region the given cache region.
+   * @param signature the given query signature.
+   * @param entityNames the given persistence class names the result was read from.
+   * @param stamp the given {@link #stamp(String...) stamp} of these classes taken before
+   * executing the query.
+   * @param result the given result, in a form safe to share between the sessions and threads;
+   * it must not be changed afterwards.
+   * @param ttl the given time the result is cached.
+   * @param unit the given time {@link TimeUnit unit}.
+   */
+  public void put(final String region, final String signature, final String[] entityNames,
+      final long stamp, final List<?> result, final long ttl, final TimeUnit unit) {
+    final Map<String, Entry> results = regionOf(region);
+    synchronized (results) {
+      results.put(signature,
+          new Entry(result, entityNames, stamp, System.nanoTime() + unit.toNanos(ttl)));
+    }
+  }
+
+  /**
+   * Invalidates the results read from the persistence class of the given written object: the
+   * results are stamped by class, not by object.
+   *
+   * @param clazz the given persistence class of the written object.
+   * @param key the given primary key of the written object.
+   */
+  public void invalidate(final Class<?> clazz, final Object key) {
+    invalidate(clazz);
+  }
+
+  /**
+   * Invalidates the results read from the given persistence class or from its super classes.
+   *
+   * @param clazz the given persistence class.
+   */
+  public void invalidate(final Class<?> clazz) {
+    for (Class<?> current = clazz; current != null && current != Object.class;
+         current = current.getSuperclass()) {
+      generationOf(current.getName()).incrementAndGet();
+    }
+  }
+
+  /**
+   * Invalidates all results, e.g. after a bulk update.
+   */
+  public void invalidateAll() {
+    globalGeneration.incrementAndGet();
+  }
+
+  /**
+   * Removes all results of the given region.
+   *
+   * @param region the given cache region.
+   */
+  public void clear(final String region) {
+    final Map<String, Entry> results = regionOf(region);
+    synchronized (results) {
+      results.clear();
+    }
+  }
+
+  /**
+   * Returns the write generation of the given persistence class.
+   *
+   * @param entityName the given persistence class name.
+   * @return the write generation.
+   */
+  private AtomicLong generationOf(final String entityName) {
+    AtomicLong generation = generations.get(entityName);
+    if (generation == null) {
+      final AtomicLong created = new AtomicLong();
+      generation = generations.putIfAbsent(entityName, created);
+      if (generation == null) {
+        generation = created;
+      }
+    }
+    return generation;
+  }
+
+  /**
+   * Returns the results of the given region, created on demand.
+   *
+   * @param region the given cache region.
+   * @return the region results.
+   */
+  private Map<String, Entry> regionOf(final String region) {
+    synchronized (regions) {
+      Map<String, Entry> results = regions.get(region);
+      if (results == null) {
+        results = new SoftHashMap<String, Entry>();
+        regions.put(region, results);
+      }
+      return results;
+    }
+  }
+
+  /**
+   * Entry.
+   * <pre>
+   *  A cached result.
+   * </pre>
+   */
+  private static final class Entry {
+    final List<?> result;
+    final String[] entityNames;
+    final long stamp;
+    final long expires;
+
+    /**
+     * Create <tt>Entry</tt> instance.
+     */
+    Entry(final List<?> r, final String[] e, final long s, final long x) {
+      this.result = r;
+      this.entityNames = e;
+      this.stamp = s;
+      this.expires = x;
+    }
+  }
+}
@@ -15,6 +15,8 @@
  *****************************************************************/
 package com.inet.base.ejb.conf;
 
+import com.inet.base.ejb.query.QueryExecutor;
+
 /**
  * ConfigBean.
  * 
@@ -40,6 +42,27 @@ public class ConfigBean {
   /** The given application lookup name prefix. */
   private String appLookup;
 
+  /** The number of threads running the concurrent queries. */
+  private int queryThreads = 4;
+
+  /** The time (in milliseconds) above which a query is logged as slow query. */
+  private long slowQueryThreshold = 1000;
+
+  /** Whether the slow query log shows the parameter values. */
+  private boolean slowQueryParameters;
+
+  /** The comma separated parameter name parts whose values are never logged. */
+  private String redactedParameters = "password,secret,token";
+
+  /** The default max number of SQL statements of a business call; zero if unlimited. */
+  private int statementBudget;
+
+  /** Whether a business call over its statement budget fails (the test environments). */
+  private boolean statementBudgetStrict;
+
+  /** The executor running the concurrent queries, alive between start and stop. */
+  private volatile QueryExecutor queryExecutor;
+
   /**
    * Constructor which JBOSS MICROCONTAINER initialize this bean
    */
@@ -54,6 +77,36 @@ public class ConfigBean {
     return instance;
   }
 
+  /**
+   * Lifecycle method called by the JBOSS MICROCONTAINER when the bean is deployed: creates the
+   * executor running the concurrent queries.
+   */
+  public synchronized void start() {
+    if (this.queryExecutor == null) {
+      this.queryExecutor = new QueryExecutor(this.queryThreads);
+    }
+  }
+
+  /**
+   * Lifecycle method called by the JBOSS MICROCONTAINER when the bean is undeployed: shuts the
+   * executor running the concurrent queries down, so none of its threads outlives the
+   * application.
+   */
+  public synchronized void stop() {
+    if (this.queryExecutor != null) {
+      final QueryExecutor executor = this.queryExecutor;
+      this.queryExecutor = null;
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * @return the executor running the concurrent queries; null if the bean is not started
+   */
+  public QueryExecutor getQueryExecutor() {
+    return this.queryExecutor;
+  }
+
   /**
    * @return the appLookup
    */
@@ -67,4 +120,91 @@ public class ConfigBean {
   public void setAppLookup(String appLookup) {
     this.appLookup = appLookup;
   }
+
+  /**
+   * @return the number of threads running the concurrent queries
+   */
+  public int getQueryThreads() {
+    return this.queryThreads;
+  }
+
+  /**
+   * @param queryThreads the number of threads running the concurrent queries to set
+   */
+  public void setQueryThreads(int queryThreads) {
+    this.queryThreads = queryThreads;
+  }
+
+  /**
+   * @return the time (in milliseconds) above which a query is logged as slow query
+   */
+  public long getSlowQueryThreshold() {
+    return this.slowQueryThreshold;
+  }
+
+  /**
+   * @param slowQueryThreshold the time (in milliseconds) above which a query is logged as slow
+   * query to set
+   */
+  public void setSlowQueryThreshold(long slowQueryThreshold) {
+    this.slowQueryThreshold = slowQueryThreshold;
+  }
+
+  /**
+   * @return whether the slow query log shows the parameter values
+   */
+  public boolean isSlowQueryParameters() {
+    return this.slowQueryParameters;
+  }
+
+  /**
+   * @param slowQueryParameters whether the slow query log shows the parameter values to set
+   */
+  public void setSlowQueryParameters(boolean slowQueryParameters) {
+    this.slowQueryParameters = slowQueryParameters;
+  }
+
+  /**
+   * @return the comma separated parameter name parts whose values are never logged
+   */
+  public String getRedactedParameters() {
+    return this.redactedParameters;
+  }
+
+  /**
+   * @param redactedParameters the comma separated parameter name parts whose values are never
+   * logged to set
+   */
+  public void setRedactedParameters(String redactedParameters) {
+    this.redactedParameters = redactedParameters;
+  }
+
+  /**
+   * @return the default max number of SQL statements of a business call; zero if unlimited
+   */
+  public int getStatementBudget() {
+    return this.statementBudget;
+  }
+
+  /**
+   * @param statementBudget the default max number of SQL statements of a business call to set;
+   * zero if unlimited
+   */
+  public void setStatementBudget(int statementBudget) {
+    this.statementBudget = statementBudget;
+  }
+
+  /**
+   * @return whether a business call over its statement budget fails
+   */
+  public boolean isStatementBudgetStrict() {
+    return this.statementBudgetStrict;
+  }
+
+  /**
+   * @param statementBudgetStrict whether a business call over its statement budget fails to set
+   */
+  public void setStatementBudgetStrict(boolean statementBudgetStrict) {
+    this.statementBudgetStrict = statementBudgetStrict;
+  }
 }
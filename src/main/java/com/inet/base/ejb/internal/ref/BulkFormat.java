@@ -0,0 +1,528 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * BulkFormat.
+ * <pre>
+ *  The compact bulk format of the map mappings:
+ *
+ *    int   magic ('BULK')
+ *    byte  version
+ *    int   number of mappings
+ *    for every block:
+ *      int   block length, block bytes
+ *    int   0 (the end of the blocks)
+ *
+ *  The blocks carry the mappings, a mapping may span two blocks:
+ *
+ *    int   key length (-1 if the key is null), key bytes
+ *    int   value length (-1 if the value is null), value bytes
+ *
+ *  All numbers are big-endian. The keys and values are encoded by the given
+ *  {@link Codec codecs}, and the data is buffered, so a channel sees large writes and reads only.
+ *
+ *  The reader never consumes the bytes following the bulk data, so other data may follow it on
+ *  the same channel: every read is bounded by the length of the current block, so the reader
+ *  fills its whole buffer at once and still stops at the end of the data, whatever the channel.
+ *  The number of mappings and the lengths are checked against the remaining size of a file
+ *  channel, and the large values of other channels are read in growing chunks, so a corrupt or
+ *  truncated stream is rejected without allocating what its header claims.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: BulkFormat.java 2010-01-20 10:22:17z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class BulkFormat {
+  /**
+   * The format magic number.
+   */
+  static final int MAGIC = 0x42554C4B;
+
+  /**
+   * The format version.
+   */
+  static final byte VERSION = 2;
+
+  /**
+   * The size of the format header: the magic number, the version and the number of mappings.
+   */
+  private static final int HEADER_SIZE = 9;
+
+  /**
+   * The size of a block length prefix.
+   */
+  private static final int BLOCK_PREFIX_SIZE = 4;
+
+  /**
+   * The I/O buffer size.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The length of a {@code null} key or value.
+   */
+  private static final int NULL_LENGTH = -1;
+
+  /**
+   * The smallest size of a mapping: the key and value length prefixes.
+   */
+  static final int MIN_MAPPING_SIZE = 8;
+
+  /**
+   * Create <tt>BulkFormat</tt> instance.
+   */
+  private BulkFormat() {
+    // utility class.
+  }
+
+  /**
+   * Writes all mappings of the given map to the given channel.
+   * @param <K> the key type.
+   * @param <V> the value type.
+   *
+   * @param map the given map to write.
+   * @param channel the given channel to write to.
+   * @param keyCodec the given key {@link Codec codec}.
+   * @param valueCodec the given value {@link Codec codec}.
+   * @return the number of mappings written.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static <K, V> int writeMap(final Map<K, V> map, final WritableByteChannel channel,
+      final Codec<? super K> keyCodec, final Codec<? super V> valueCodec) throws IOException {
+    // hold the mappings strongly, the header must carry the exact number of mappings.
+    final List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(map.size());
+    for (final Map.Entry<K, V> entry : map.entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(entry.getKey(), entry.getValue()));
+    }
+
+    final Output output = new Output(channel);
+    output.writeHeader(entries.size());
+    for (final Map.Entry<K, V> entry : entries) {
+      output.write(keyCodec, entry.getKey());
+      output.write(valueCodec, entry.getValue());
+    }
+    output.finish();
+
+    return entries.size();
+  }
+
+  /**
+   * Reads the mappings from the given channel and puts them into the given map.
+   * @param <K> the key type.
+   * @param <V> the value type.
+   *
+   * @param channel the given channel to read from.
+   * @param map the given map to put the mappings into.
+   * @param keyCodec the given key {@link Codec codec}.
+   * @param valueCodec the given value {@link Codec codec}.
+   * @return the number of mappings read.
+   * @throws IOException if an I/O error occurs or the data is not in the bulk format.
+   */
+  public static <K, V> int readMap(final ReadableByteChannel channel, final Map<K, V> map,
+      final Codec<? extends K> keyCodec, final Codec<? extends V> valueCodec) throws IOException {
+    final Input input = new Input(channel);
+    final int count = input.readHeader();
+    for (int index = 0; index < count; index++) {
+      final K key = input.read(keyCodec);
+      final V value = input.read(valueCodec);
+      map.put(key, value);
+    }
+    input.finish();
+
+    return count;
+  }
+
+  /**
+   * Output.
+   * <pre>
+   *  Buffers the encoded mappings and writes them to the channel, one block per buffer.
+   * </pre>
+   */
+  static final class Output {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /* the position of the length prefix of the current block in the buffer. */
+    private int block;
+
+    /**
+     * Create <tt>Output</tt> instance.
+     *
+     * @param ch the given channel to write to.
+     */
+    Output(final WritableByteChannel ch) {
+      this.channel = ch;
+    }
+
+    /**
+     * Writes the format header.
+     *
+     * @param count the given number of mappings.
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeHeader(final int count) throws IOException {
+      buffer.putInt(MAGIC);
+      buffer.put(VERSION);
+      buffer.putInt(count);
+      startBlock();
+    }
+
+    /**
+     * Writes the given length prefixed value.
+     * @param <T> the value type.
+     *
+     * @param codec the given value {@link Codec codec}.
+     * @param value the given value to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    <T> void write(final Codec<? super T> codec, final T value) throws IOException {
+      if (value == null) {
+        writeInt(NULL_LENGTH);
+        return;
+      }
+
+      final byte[] data = codec.encode(value);
+      writeInt(data.length);
+      if (data.length > buffer.capacity() - BLOCK_PREFIX_SIZE) {
+        // the value does not fit into a block of the buffer, write it as its own block.
+        flush();
+        final ByteBuffer prefix = ByteBuffer.allocate(BLOCK_PREFIX_SIZE);
+        prefix.putInt(data.length);
+        prefix.flip();
+        drain(prefix);
+        drain(ByteBuffer.wrap(data));
+      } else {
+        ensure(data.length);
+        buffer.put(data);
+      }
+    }
+
+    /**
+     * Writes the given integer.
+     *
+     * @param value the given integer to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void writeInt(final int value) throws IOException {
+      ensure(4);
+      buffer.putInt(value);
+    }
+
+    /**
+     * Makes room for the given number of bytes.
+     *
+     * @param length the given number of bytes.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void ensure(final int length) throws IOException {
+      if (buffer.remaining() < length) {
+        flush();
+      }
+    }
+
+    /**
+     * Writes the buffered block to the channel, and starts the next block.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void flush() throws IOException {
+      final int length = buffer.position() - block - BLOCK_PREFIX_SIZE;
+      if (length == 0) {
+        return;
+      }
+
+      buffer.putInt(block, length);
+      buffer.flip();
+      drain(buffer);
+      buffer.clear();
+      startBlock();
+    }
+
+    /**
+     * Writes the last block and the end of the blocks to the channel.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void finish() throws IOException {
+      final int length = buffer.position() - block - BLOCK_PREFIX_SIZE;
+      if (length > 0 && buffer.remaining() < BLOCK_PREFIX_SIZE) {
+        flush();
+      } else if (length > 0) {
+        buffer.putInt(block, length);
+        buffer.putInt(0);
+      }
+      // else the zero length prefix of the empty block ends the blocks.
+      buffer.flip();
+      drain(buffer);
+      buffer.clear();
+    }
+
+    /**
+     * Starts a new block, leaving room for its length prefix.
+     */
+    private void startBlock() {
+      block = buffer.position();
+      buffer.putInt(0);
+    }
+
+    /**
+     * Writes all remaining bytes of the given buffer to the channel.
+     *
+     * @param data the given buffer to write.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void drain(final ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+    }
+  }
+
+  /**
+   * Input.
+   * <pre>
+   *  Reads the channel into the buffer, never past the current block, and decodes the
+   *  mappings.
+   * </pre>
+   */
+  static final class Input {
+    private final ReadableByteChannel channel;
+    /* the file channel whose size bounds the lengths; null for other channels. */
+    private final FileChannel file;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /* the number of bytes of the current block not read from the channel yet. */
+    private int block;
+
+    /**
+     * Create <tt>Input</tt> instance.
+     *
+     * @param ch the given channel to read from.
+     */
+    Input(final ReadableByteChannel ch) {
+      this.channel = ch;
+      this.file = (ch instanceof FileChannel ? (FileChannel) ch : null);
+      buffer.limit(0);
+    }
+
+    /**
+     * Returns the number of bytes left to read, if known.
+     *
+     * @return the number of bytes left to read; -1 if the channel size is unknown.
+     * @throws IOException if an I/O error occurs.
+     */
+    long available() throws IOException {
+      if (file == null) {
+        return -1;
+      }
+      return file.size() - file.position() + buffer.remaining();
+    }
+
+    /**
+     * Ends the reading: the mappings must end with the last block.
+     *
+     * @throws IOException if an I/O error occurs or the data does not end there.
+     */
+    void finish() throws IOException {
+      if (buffer.hasRemaining() || block > 0 || readBlockLength() != 0) {
+        throw new StreamCorruptedException("The bulk data does not end after the mappings.");
+      }
+      buffer.limit(0);
+    }
+
+    /**
+     * Reads and checks the format header.
+     *
+     * @return the number of mappings.
+     * @throws IOException if an I/O error occurs or the header is not valid.
+     */
+    int readHeader() throws IOException {
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      readFully(header);
+      if (header.getInt(0) != MAGIC) {
+        throw new StreamCorruptedException("The data is not in the bulk format.");
+      }
+      final byte version = header.get(4);
+      if (version != VERSION) {
+        throw new StreamCorruptedException("Unsupported bulk format version {" + version + "}.");
+      }
+
+      final int count = header.getInt(5);
+      final long available = available();
+      if (count < 0 || (available >= 0 && (long) count * MIN_MAPPING_SIZE > available)) {
+        throw new StreamCorruptedException("Illegal number of mappings {" + count + "}.");
+      }
+      return count;
+    }
+
+    /**
+     * Reads the next length prefixed value.
+     * @param <T> the value type.
+     *
+     * @param codec the given value {@link Codec codec}.
+     * @return the value; may be {@code null}.
+     * @throws IOException if an I/O error occurs.
+     */
+    <T> T read(final Codec<? extends T> codec) throws IOException {
+      final int length = readInt();
+      if (length == NULL_LENGTH) {
+        return null;
+      }
+      final long available = available();
+      if (length < 0 || (available >= 0 && length > available)) {
+        throw new StreamCorruptedException("Illegal value length {" + length + "}.");
+      }
+
+      if (length > buffer.capacity()) {
+        // the value does not fit into the buffer, read it separately.
+        final ByteBuffer data = readLarge(length);
+        data.flip();
+        return codec.decode(data);
+      }
+
+      ensure(length);
+      final ByteBuffer data = buffer.slice();
+      data.limit(length);
+      buffer.position(buffer.position() + length);
+      return codec.decode(data);
+    }
+
+    /**
+     * Reads the next integer.
+     *
+     * @return the next integer.
+     * @throws IOException if an I/O error occurs.
+     */
+    private int readInt() throws IOException {
+      ensure(4);
+      return buffer.getInt();
+    }
+
+    /**
+     * Makes sure the given number of bytes are buffered; the buffer is filled up to the end of
+     * the current block.
+     *
+     * @param length the given number of bytes.
+     * @throws IOException if an I/O error occurs or the channel is at end of stream.
+     */
+    private void ensure(final int length) throws IOException {
+      if (buffer.remaining() >= length) {
+        return;
+      }
+
+      buffer.compact();
+      fill(buffer, length);
+      buffer.flip();
+    }
+
+    /**
+     * Reads the blocks into the given buffer until it holds the given number of bytes, as far
+     * as the buffer and the current block allow.
+     *
+     * @param data the given buffer to fill.
+     * @param length the given number of bytes the buffer must hold.
+     * @throws IOException if an I/O error occurs or the channel is at end of stream.
+     */
+    private void fill(final ByteBuffer data, final int length) throws IOException {
+      while (data.position() < length) {
+        if (block == 0) {
+          block = readBlockLength();
+          if (block == 0) {
+            throw new EOFException("Unexpected end of the bulk data.");
+          }
+        }
+
+        final int limit = data.limit();
+        data.limit((int) Math.min(limit, (long) data.position() + block));
+        final int read = channel.read(data);
+        data.limit(limit);
+        if (read < 0) {
+          throw new EOFException("Unexpected end of the bulk data.");
+        }
+        block -= read;
+      }
+    }
+
+    /**
+     * Reads the next block length.
+     *
+     * @return the block length; 0 at the end of the blocks.
+     * @throws IOException if an I/O error occurs or the length is not valid.
+     */
+    private int readBlockLength() throws IOException {
+      final ByteBuffer prefix = ByteBuffer.allocate(BLOCK_PREFIX_SIZE);
+      readFully(prefix);
+      final int length = prefix.getInt(0);
+      if (length < 0 || (file != null && length > file.size() - file.position())) {
+        throw new StreamCorruptedException("Illegal block length {" + length + "}.");
+      }
+      return length;
+    }
+
+    /**
+     * Reads the channel until the given buffer is full.
+     *
+     * @param data the given buffer to fill.
+     * @throws IOException if an I/O error occurs or the channel is at end of stream.
+     */
+    private void readFully(final ByteBuffer data) throws IOException {
+      while (data.hasRemaining()) {
+        if (channel.read(data) < 0) {
+          throw new EOFException("Unexpected end of the bulk data.");
+        }
+      }
+    }
+
+    /**
+     * Reads the given number of bytes into a new buffer, starting with the buffered bytes. The
+     * new buffer grows with the bytes actually read, so a wrong length fails at end of stream
+     * instead of allocating it.
+     *
+     * @param length the given number of bytes.
+     * @return the filled buffer.
+     * @throws IOException if an I/O error occurs or the channel is at end of stream.
+     */
+    private ByteBuffer readLarge(final int length) throws IOException {
+      ByteBuffer data = ByteBuffer.allocate(file != null ? length
+          : Math.min(length, 4 * BUFFER_SIZE));
+      data.put(buffer);
+      while (data.position() < length) {
+        if (!data.hasRemaining()) {
+          final ByteBuffer grown = ByteBuffer.allocate((int) Math.min(length,
+              2L * data.capacity()));
+          data.flip();
+          grown.put(data);
+          data = grown;
+        }
+        fill(data, data.capacity());
+      }
+      return data;
+    }
+  }
+}
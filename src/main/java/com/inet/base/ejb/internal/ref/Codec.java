@@ -0,0 +1,52 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec.
+ * <pre>
+ *  Encodes the keys or values of a map in the bulk format (see {@link BulkFormat}). The bulk
+ *  format length-prefixes every encoded value, so the codec does not have to delimit it.
+ * </pre>
+ * @param <T> the encoded data type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: Codec.java 2010-01-20 09:41:12z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface Codec<T> {
+  /**
+   * Encodes the given non-null value.
+   *
+   * @param value the given value to encode.
+   * @return the encoded bytes.
+   * @throws IOException if the value could not be encoded.
+   */
+  byte[] encode(T value) throws IOException;
+
+  /**
+   * Decodes the value from the remaining bytes of the given buffer.
+   *
+   * @param buffer the given buffer holding exactly the encoded bytes.
+   * @return the decoded value.
+   * @throws IOException if the value could not be decoded.
+   */
+  T decode(ByteBuffer buffer) throws IOException;
+}
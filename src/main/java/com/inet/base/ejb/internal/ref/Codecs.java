@@ -0,0 +1,151 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Codecs.
+ * <pre>
+ *  The common {@link Codec codec} instances.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: Codecs.java 2010-01-20 09:58:40z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class Codecs {
+  /**
+   * The string charset.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The UTF-8 {@link String string} codec.
+   */
+  public static final Codec<String> STRING = new Codec<String>() {
+    public byte[] encode(final String value) {
+      return value.getBytes(UTF8);
+    }
+
+    public String decode(final ByteBuffer buffer) {
+      if (!buffer.hasArray()) {
+        return UTF8.decode(buffer).toString();
+      }
+
+      // decode in place, without copying the bytes out of the buffer.
+      final String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          buffer.remaining(), UTF8);
+      buffer.position(buffer.limit());
+      return value;
+    }
+  };
+
+  /**
+   * The {@link Integer integer} codec.
+   */
+  public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+    public byte[] encode(final Integer value) {
+      return ByteBuffer.allocate(4).putInt(value.intValue()).array();
+    }
+
+    public Integer decode(final ByteBuffer buffer) throws IOException {
+      checkLength(buffer, 4);
+      return Integer.valueOf(buffer.getInt());
+    }
+  };
+
+  /**
+   * The {@link Long long} codec.
+   */
+  public static final Codec<Long> LONG = new Codec<Long>() {
+    public byte[] encode(final Long value) {
+      return ByteBuffer.allocate(8).putLong(value.longValue()).array();
+    }
+
+    public Long decode(final ByteBuffer buffer) throws IOException {
+      checkLength(buffer, 8);
+      return Long.valueOf(buffer.getLong());
+    }
+  };
+
+  /**
+   * The Java serialization codec, used for the types having no dedicated codec.
+   */
+  private static final Codec<Serializable> SERIALIZABLE = new Codec<Serializable>() {
+    public byte[] encode(final Serializable value) throws IOException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final ObjectOutputStream stream = new ObjectOutputStream(bytes);
+      stream.writeObject(value);
+      stream.close();
+      return bytes.toByteArray();
+    }
+
+    public Serializable decode(final ByteBuffer buffer) throws IOException {
+      final byte[] data = new byte[buffer.remaining()];
+      buffer.get(data);
+
+      final ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(data));
+      try {
+        return (Serializable) stream.readObject();
+      } catch (final ClassNotFoundException cnfex) {
+        throw new StreamCorruptedException("Unknown class {" + cnfex.getMessage() + "}.");
+      } finally {
+        stream.close();
+      }
+    }
+  };
+
+  /**
+   * Create <tt>Codecs</tt> instance.
+   */
+  private Codecs() {
+    // utility class.
+  }
+
+  /**
+   * Returns the Java serialization codec.
+   * @param <T> the encoded data type.
+   *
+   * @return the Java serialization codec.
+   */
+  @SuppressWarnings({ "unchecked" })
+  public static <T extends Serializable> Codec<T> serializable() {
+    return (Codec<T>) SERIALIZABLE;
+  }
+
+  /**
+   * Checks the number of the encoded bytes.
+   *
+   * @param buffer the given buffer holding the encoded bytes.
+   * @param length the expected number of bytes.
+   * @throws IOException if the number of bytes does not match.
+   */
+  private static void checkLength(final ByteBuffer buffer, final int length) throws IOException {
+    if (buffer.remaining() != length) {
+      throw new StreamCorruptedException("Illegal value length {" + buffer.remaining() + "}.");
+    }
+  }
+}
@@ -18,21 +18,38 @@ package com.inet.base.ejb.internal.ref;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.ReferenceQueue;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.inet.base.ejb.internal.Preconditions;
 
 /**
  * ReferenceHashMap.
+ * <pre>
+ *  The mappings may also expire after a fixed duration since they were written, or since they
+ *  were last accessed (see {@link #setExpireAfterWrite(long, TimeUnit)} and
+ *  {@link #setExpireAfterAccess(long, TimeUnit)}). The expired mappings are removed by a timer
+ *  wheel advanced on every map operation, so the cleanup cost is amortized.
+ *
+ *  The iterators of the collection views are fail-fast by default. In the weakly consistent
+ *  mode (see {@link #setWeaklyConsistent(boolean)}) they walk a snapshot of the bin array taken
+ *  when the iterator is created: they never throw <tt>ConcurrentModificationException</tt>,
+ *  return each mapping at most once, and may or may not reflect the changes made after the
+ *  iterator was created.
+ * </pre>
  *
  * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
  * @version $Id: ReferenceHashMap.java 2009-07-29 16:08:55z nguyen_dv $
@@ -59,11 +76,27 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
    */
   private static final int MAXIMUM_CAPACITY = 1 << 30;
 
+  /**
+   * The maximum number of mappings a table is presized for when reading the bulk data from a
+   * channel of unknown size.
+   */
+  static final int MAXIMUM_PRESIZE = 1 << 16;
+
   /**
    * The load fast used when none specified in constructor.
    */
   private static final float DEFAULT_LOAD_FACTOR = 0.75f;
 
+  /**
+   * The minimum timer wheel tick (in nanoseconds).
+   */
+  private static final long MINIMUM_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * The number of timer wheel ticks per expiration duration.
+   */
+  private static final int TICKS_PER_DURATION = 64;
+
   /**
    * the table, resized as necessary. Length MUST always be a power of two.
    */
@@ -99,6 +132,27 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
    */
   private transient volatile int modCount;
 
+  /**
+   * The time (in nanoseconds) a mapping lives after it was written; zero means never expire.
+   */
+  private long expireAfterWriteNanos;
+
+  /**
+   * The time (in nanoseconds) a mapping lives after it was last accessed; zero means never
+   * expire.
+   */
+  private long expireAfterAccessNanos;
+
+  /**
+   * The timer wheel used to expire the mappings; {@code null} if the mappings never expire.
+   */
+  private transient TimerWheel<K, V> timerWheel;
+
+  /**
+   * If {@code true} the iterators of the collection views are weakly consistent.
+   */
+  private boolean weaklyConsistent;
+
   /**
    * Create the instance from the given initial capacity and load factor value.
    *
@@ -243,6 +297,275 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     return h & (length - 1);
   }
 
+  /**
+   * Returns the current time used to expire the mappings.
+   *
+   * @return the current time (in nanoseconds).
+   */
+  private static long ticker() {
+    return System.nanoTime();
+  }
+
+  /**
+   * Sets the mappings to expire after the given duration since they were created or their value
+   * was last replaced. The duration applies to all mappings, including those already in the map.
+   *
+   * @param duration the given duration; zero to disable this expiration.
+   * @param unit the given duration {@link TimeUnit unit}.
+   * @exception IllegalArgumentException if the duration is negative.
+   */
+  public void setExpireAfterWrite(final long duration, final TimeUnit unit) {
+    Preconditions.checkArgument((duration >= 0), "Illegal expire duration {" + duration + "}.");
+    expireAfterWriteNanos = unit.toNanos(duration);
+    initTimerWheel();
+  }
+
+  /**
+   * Sets the mappings to expire after the given duration since they were last read or written.
+   * The duration applies to all mappings, including those already in the map.
+   *
+   * @param duration the given duration; zero to disable this expiration.
+   * @param unit the given duration {@link TimeUnit unit}.
+   * @exception IllegalArgumentException if the duration is negative.
+   */
+  public void setExpireAfterAccess(final long duration, final TimeUnit unit) {
+    Preconditions.checkArgument((duration >= 0), "Illegal expire duration {" + duration + "}.");
+    expireAfterAccessNanos = unit.toNanos(duration);
+    initTimerWheel();
+  }
+
+  /**
+   * Returns the expire after write duration (in nanoseconds); zero if disabled.
+   *
+   * @return the expire after write duration (in nanoseconds).
+   */
+  public long getExpireAfterWrite() {
+    return expireAfterWriteNanos;
+  }
+
+  /**
+   * Returns the expire after access duration (in nanoseconds); zero if disabled.
+   *
+   * @return the expire after access duration (in nanoseconds).
+   */
+  public long getExpireAfterAccess() {
+    return expireAfterAccessNanos;
+  }
+
+  /**
+   * Sets the iteration mode of the collection views. The weakly consistent iterators walk a
+   * snapshot of the bin array without expunging stale entries, so they may be used while other
+   * threads modify the map without holding the lock guarding the map; removing through such an
+   * iterator is still a modification of the map.
+   * <p>
+   * The snapshot itself is only consistent with the writes of the other threads if the iterator
+   * is created while holding the lock guarding the map; otherwise there is no happens-before
+   * edge with those writes and the snapshot may miss recent mappings or hold removed ones.
+   *
+   * @param weak if {@code true} the iterators are weakly consistent, otherwise fail-fast.
+   */
+  public void setWeaklyConsistent(final boolean weak) {
+    this.weaklyConsistent = weak;
+  }
+
+  /**
+   * Returns if the iterators of the collection views are weakly consistent.
+   *
+   * @return if the iterators of the collection views are weakly consistent.
+   */
+  public boolean isWeaklyConsistent() {
+    return weaklyConsistent;
+  }
+
+  /**
+   * Creates the timer wheel from the current expire durations, and schedules all existing
+   * mappings into the new wheel.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private void initTimerWheel() {
+    if (timerWheel != null) {
+      // unlink the entries from the old wheel.
+      timerWheel.clear();
+    }
+    if (expireAfterWriteNanos == 0 && expireAfterAccessNanos == 0) {
+      timerWheel = null;
+      return;
+    }
+
+    long duration = Long.MAX_VALUE;
+    if (expireAfterWriteNanos > 0) {
+      duration = expireAfterWriteNanos;
+    }
+    if (expireAfterAccessNanos > 0) {
+      duration = Math.min(duration, expireAfterAccessNanos);
+    }
+
+    final long now = ticker();
+    timerWheel = new TimerWheel<K, V>(Math.max(duration / TICKS_PER_DURATION, MINIMUM_TICK), now);
+
+    // the mappings written while expiration was disabled start their lives now.
+    final Entry[] t = getTable();
+    for (int index = 0; index < t.length; index++) {
+      for (Entry<K, V> entry = t[index]; entry != null; entry = entry.next()) {
+        if (entry.writeTime() == 0) {
+          entry.setWriteTime(now);
+          entry.setAccessTime(now);
+        }
+        timerWheel.schedule(entry, deadline(entry));
+      }
+    }
+  }
+
+  /**
+   * Stamps the given written entry, and schedules it into the timer wheel if the entry is new. A
+   * write never moves the deadline backward, so a scheduled entry is re-scheduled lazily when
+   * its old deadline is reached.
+   *
+   * @param entry the given written entry.
+   * @param created if {@code true} the entry was just created.
+   */
+  private void recordWrite(final Entry<K, V> entry, final boolean created) {
+    final long now = ticker();
+    entry.setWriteTime(now);
+    entry.setAccessTime(now);
+    if (created) {
+      timerWheel.schedule(entry, deadline(entry));
+    }
+  }
+
+  /**
+   * Returns the deadline of the given entry.
+   *
+   * @param entry the given entry.
+   * @return the time (in nanoseconds) when the entry expires.
+   */
+  private long deadline(final Entry<K, V> entry) {
+    long deadline = Long.MAX_VALUE;
+    if (expireAfterWriteNanos > 0) {
+      deadline = entry.writeTime() + expireAfterWriteNanos;
+    }
+    if (expireAfterAccessNanos > 0) {
+      deadline = Math.min(deadline, entry.accessTime() + expireAfterAccessNanos);
+    }
+    return deadline;
+  }
+
+  /**
+   * Returns if the given entry is expired.
+   *
+   * @param entry the given entry.
+   * @param now the given current time (in nanoseconds).
+   * @return if the given entry is expired.
+   */
+  private boolean isExpired(final Entry<K, V> entry, final long now) {
+    return (timerWheel != null && now - deadline(entry) >= 0);
+  }
+
+  /**
+   * Checks the given entry found by a lookup: removes it if it is expired, otherwise records
+   * the access.
+   *
+   * @param entry the given entry.
+   * @param access if {@code true} the lookup is an access to the mapping.
+   * @return the given entry or {@code null} if it is expired.
+   */
+  private Entry<K, V> checkExpired(final Entry<K, V> entry, final boolean access) {
+    if (timerWheel == null || entry == null) {
+      return entry;
+    }
+
+    final long now = ticker();
+    if (isExpired(entry, now)) {
+      removeEntry(entry);
+      return null;
+    }
+    if (access) {
+      entry.setAccessTime(now);
+    }
+    return entry;
+  }
+
+  /**
+   * Called by the timer wheel when the bucket holding the given entry is visited.
+   *
+   * @param entry the given scheduled entry.
+   * @param now the given current time (in nanoseconds).
+   */
+  void onTimer(final Entry<K, V> entry, final long now) {
+    if (isExpired(entry, now)) {
+      removeEntry(entry);
+    } else if (timerWheel != null && containsEntry(entry)) {
+      timerWheel.schedule(entry, deadline(entry));
+    }
+  }
+
+  /**
+   * Expire the mappings that reached their deadline.
+   */
+  private void expireEntries() {
+    if (timerWheel != null) {
+      timerWheel.advance(this, ticker());
+    }
+  }
+
+  /**
+   * Returns if the given entry is still linked in the table.
+   *
+   * @param entry the given entry.
+   * @return if the given entry is still linked in the table.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private boolean containsEntry(final Entry<K, V> entry) {
+    for (Entry<K, V> e = table[indexFor(entry.hash(), table.length)]; e != null; e = e.next()) {
+      if (e == entry) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Unlinks the given entry from the table.
+   *
+   * @param entry the given entry to remove.
+   * @return if the entry was linked in the table.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private boolean removeEntry(final Entry<K, V> entry) {
+    final int index = indexFor(entry.hash(), table.length);
+    Entry<K, V> prev = table[index];
+    Entry<K, V> e = prev;
+    while (e != null) {
+      final Entry<K, V> next = e.next();
+      if (e == entry) {
+        modCount++;
+        size--;
+        if (prev == e) {
+          table[index] = next;
+        } else {
+          prev.setNext(next);
+        }
+        unschedule(entry);
+        return true;
+      }
+      prev = e;
+      e = next;
+    }
+    return false;
+  }
+
+  /**
+   * Unlinks the given removed entry from the timer wheel, so the wheel does not keep it alive
+   * until its tick.
+   *
+   * @param entry the given removed entry.
+   */
+  private void unschedule(final Entry<K, V> entry) {
+    if (timerWheel != null) {
+      timerWheel.unschedule(entry);
+    }
+  }
+
   /**
    * Expunge stale entries from the table.
    */
@@ -265,6 +588,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
           }
           entry.setNext(null);
           entry.setValue(null);
+          unschedule(entry);
           size--;
         }
         prev = p;
@@ -281,6 +605,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
   @SuppressWarnings({ "unchecked" })
   private Entry[] getTable() {
     expungeStaleEntries();
+    expireEntries();
     return table;
   }
 
@@ -327,7 +652,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     Entry<K, V> entry = t[index];
     while (entry != null) {
       if (entry.hash() == hash && eq(k, entry.get())) {
-        return entry.getValue();
+        return (checkExpired(entry, true) != null ? entry.getValue() : null);
       }
       entry = entry.next();
     }
@@ -358,7 +683,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     while (entry != null && !(entry.hash() == hash && eq(k, entry.get()))) {
       entry = entry.next();
     }
-    return entry;
+    return checkExpired(entry, false);
   }
 
   /**
@@ -380,10 +705,17 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
 
     for (Entry<K, V> entry = t[index]; entry != null; entry = entry.next()) {
       if (hash == entry.hash() && eq(k, entry.get())) {
+        if (checkExpired(entry, false) == null) {
+          // the expired entry was unlinked, map the key again.
+          break;
+        }
         V ov = entry.getValue();
         if (value != ov) {
           entry.setValue(value);
         }
+        if (timerWheel != null) {
+          recordWrite(entry, false);
+        }
         return ov;
       }
     }
@@ -391,6 +723,9 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     modCount++;
     Entry<K, V> entry = t[index];
     t[index] = createEntry(k, value, queue, hash, entry);
+    if (timerWheel != null) {
+      recordWrite(t[index], true);
+    }
     if (++size >= threshold) {
       resize(t.length * 2);
     }
@@ -420,6 +755,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     modCount++;
     Entry<K, V> entry = table[index];
     table[index] = createEntry(k, value, queue, hash, entry);
+    size++;
   }
 
   /**
@@ -485,6 +821,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
         if (key == null) {
           entry.setNext(null);
           entry.setValue(null);
+          unschedule(entry);
           size--;
         } else {
           int i = indexFor(entry.hash(), dest.length);
@@ -563,6 +900,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
         } else {
           prev.setNext(next);
         }
+        unschedule(entry);
         return entry.getValue();
       }
       prev = entry;
@@ -597,6 +935,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
         } else {
           prev.setNext(next);
         }
+        unschedule(e);
         return e;
       }
       prev = e;
@@ -623,6 +962,9 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
       t[index] = null;
     }
     size = 0;
+    if (timerWheel != null) {
+      timerWheel.clear();
+    }
 
     // Allocation of array may have caused GC, which may have caused additional entries to go
     // stale. Removing these entries from the reference queue will make them eligible for
@@ -693,7 +1035,9 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     result.entrySet = null;
     result.modCount = 0;
     result.size = 0;
+    result.timerWheel = null;
     result.putAllForCreate(this);
+    result.initTimerWheel();
 
     return result;
   }
@@ -709,7 +1053,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
    *  Initialization Entry class.
    * </pre>
    */
-  interface Entry<K, V> extends Map.Entry<K, V> {
+  interface Entry<K, V> extends Map.Entry<K, V>, TimerWheel.Node {
     /**
      * Returns the reference value.
      *
@@ -737,6 +1081,34 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
      * @return the hash value.
      */
     int hash();
+
+    /**
+     * Returns the time (in nanoseconds) when the entry was last written.
+     *
+     * @return the last write time; zero if the expiration is disabled.
+     */
+    long writeTime();
+
+    /**
+     * Set the time (in nanoseconds) when the entry was last written.
+     *
+     * @param time the given last write time to set.
+     */
+    void setWriteTime(long time);
+
+    /**
+     * Returns the time (in nanoseconds) when the entry was last accessed.
+     *
+     * @return the last access time; zero if the expiration is disabled.
+     */
+    long accessTime();
+
+    /**
+     * Set the time (in nanoseconds) when the entry was last accessed.
+     *
+     * @param time the given last access time to set.
+     */
+    void setAccessTime(long time);
   }
 
   /**
@@ -795,6 +1167,9 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
           return false;
         }
         nextKey = entry.get(); // hold the key in strong reference.
+        if (nextKey != null && timerWheel != null && isExpired(entry, ticker())) {
+          nextKey = null; // skip the expired entry, the timer wheel will remove it.
+        }
         if (nextKey == null) {
           entry = entry.next();
         }
@@ -909,6 +1284,156 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
     }
   }
 
+  /**
+   * SnapshotIterator.
+   * <pre>
+   *  The weakly consistent iterator. The mappings are collected from a copy of the bin array
+   *  when the iterator is created, an identity set guards against the entries relinked by a
+   *  concurrent resize being returned twice.
+   *
+   *  The bin array is read without the lock guarding the map: unless the iterator is created
+   *  while holding that lock, nothing orders the copy after the writes of other threads, so
+   *  the snapshot may miss mappings they added, still hold mappings they removed, or see the
+   *  bins of a resize in progress.
+   * </pre>
+   *
+   * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+   * @version $Id: ReferenceHashMap.java 2010-01-18 14:20:05z nguyen_dv $
+   */
+  private abstract class SnapshotIterator<T> implements Iterator<T> {
+    private final List<Entry<K, V>> entries;
+    /**
+     * Strong references needed to avoid disappearance of the keys during the iteration.
+     */
+    private final List<Object> keys;
+    private int index = 0;
+    private Object currentKey = null;
+    private boolean removable = false;
+
+    /**
+     * Create <tt>SnapshotIterator</tt> instance with default constructor.
+     */
+    @SuppressWarnings({ "unchecked" })
+    SnapshotIterator() {
+      final Entry[] bins = table.clone();
+      final Map<Entry<K, V>, Boolean> visited = new IdentityHashMap<Entry<K, V>, Boolean>();
+      final long now = (timerWheel != null ? ticker() : 0L);
+
+      entries = new ArrayList<Entry<K, V>>();
+      keys = new ArrayList<Object>();
+      for (int bin = 0; bin < bins.length; bin++) {
+        int revisited = 0;
+        for (Entry<K, V> entry = bins[bin]; entry != null; entry = entry.next()) {
+          if (visited.put(entry, Boolean.TRUE) != null) {
+            // a concurrent resize may relink a walked entry in front of entries never walked,
+            // so skip it only; a chain of walked entries longer than the set is a cycle.
+            if (++revisited > visited.size()) {
+              break;
+            }
+            continue;
+          }
+          revisited = 0;
+
+          final Object key = entry.get(); // hold the key in strong reference.
+          if (key != null && !(timerWheel != null && isExpired(entry, now))) {
+            entries.add(entry);
+            keys.add(key);
+          }
+        }
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.Iterator#hasNext()
+     */
+    public boolean hasNext() {
+      return index < entries.size();
+    }
+
+    /**
+     * Returns the next entry reference.
+     *
+     * @return the next entry reference.
+     */
+    protected Entry<K, V> nextEntry() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      currentKey = keys.get(index);
+      removable = true;
+      return entries.get(index++);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.Iterator#remove()
+     */
+    public void remove() {
+      if (!removable) {
+        throw new java.lang.IllegalStateException();
+      }
+
+      ReferenceHashMap.this.remove(currentKey);
+      removable = false;
+      currentKey = null;
+    }
+  }
+
+  /**
+   * SnapshotValueIterator.
+   *
+   * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+   * @version $Id: ReferenceHashMap.java 2010-01-18 14:36:52z nguyen_dv $
+   */
+  private class SnapshotValueIterator extends SnapshotIterator<V> {
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.Iterator#next()
+     */
+    public V next() {
+      return nextEntry().getValue();
+    }
+  }
+
+  /**
+   * SnapshotKeyIterator.
+   *
+   * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+   * @version $Id: ReferenceHashMap.java 2010-01-18 14:37:40z nguyen_dv $
+   */
+  private class SnapshotKeyIterator extends SnapshotIterator<K> {
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.Iterator#next()
+     */
+    public K next() {
+      return nextEntry().getKey();
+    }
+  }
+
+  /**
+   * SnapshotEntryIterator.
+   *
+   * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+   * @version $Id: ReferenceHashMap.java 2010-01-18 14:38:11z nguyen_dv $
+   */
+  private class SnapshotEntryIterator extends SnapshotIterator<Map.Entry<K, V>> {
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.Iterator#next()
+     */
+    public Map.Entry<K, V> next() {
+      return nextEntry();
+    }
+  }
+
   // Views
   private transient volatile Set<K>        keySet = null;
   private transient volatile Collection<V> values = null;
@@ -947,7 +1472,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
      */
     @Override
     public Iterator<K> iterator() {
-      return new KeyIterator();
+      return (weaklyConsistent ? new SnapshotKeyIterator() : new KeyIterator());
     }
 
     /**
@@ -1060,7 +1585,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
      */
     @Override
     public Iterator<V> iterator() {
-      return new ValueIterator();
+      return (weaklyConsistent ? new SnapshotValueIterator() : new ValueIterator());
     }
 
     /**
@@ -1157,7 +1682,7 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
      */
     @Override
     public Iterator<Map.Entry<K, V>> iterator() {
-      return new EntryIterator();
+      return (weaklyConsistent ? new SnapshotEntryIterator() : new EntryIterator());
     }
 
     /**
@@ -1289,6 +1814,75 @@ public abstract class ReferenceHashMap<K, V> extends AbstractMap<K, V>
       V value = (V) stream.readObject();
       putForCreate(key, value);
     }
+
+    // the restored mappings start their lives now.
+    initTimerWheel();
+  }
+
+  /**
+   * Writes all mappings of the map to the given channel in the compact bulk format (see
+   * {@link BulkFormat}).
+   *
+   * @param channel the given channel to write to.
+   * @param keyCodec the given key {@link Codec codec}.
+   * @param valueCodec the given value {@link Codec codec}.
+   * @return the number of mappings written.
+   * @throws IOException if an I/O error occurs.
+   */
+  public int writeTo(final WritableByteChannel channel, final Codec<? super K> keyCodec,
+      final Codec<? super V> valueCodec) throws IOException {
+    return BulkFormat.writeMap(this, channel, keyCodec, valueCodec);
+  }
+
+  /**
+   * Reads the mappings in the compact bulk format (see {@link BulkFormat}) from the given
+   * channel and puts them into the map. An empty map is presized from the number of mappings
+   * in the header, so the table is never resized while reading; the header is only trusted up
+   * to the remaining size of a file channel, or up to {@link #MAXIMUM_PRESIZE} mappings for
+   * the other channels.
+   *
+   * @param channel the given channel to read from.
+   * @param keyCodec the given key {@link Codec codec}.
+   * @param valueCodec the given value {@link Codec codec}.
+   * @return the number of mappings read.
+   * @throws IOException if an I/O error occurs or the data is not in the bulk format.
+   */
+  @SuppressWarnings({ "unchecked" })
+  public int readFrom(final ReadableByteChannel channel, final Codec<? extends K> keyCodec,
+      final Codec<? extends V> valueCodec) throws IOException {
+    final BulkFormat.Input input = new BulkFormat.Input(channel);
+    final int count = input.readHeader();
+    final boolean presized = (size() == 0
+        && (input.available() >= 0 || count <= MAXIMUM_PRESIZE));
+    if (presized) {
+      int capacity = table.length;
+      final long targetCapacity = (long) (count / loadFactor) + 1;
+      while (capacity < targetCapacity && capacity < MAXIMUM_CAPACITY) {
+        capacity <<= 1;
+      }
+      if (capacity > table.length) {
+        table = new Entry[capacity];
+        threshold = (int) (capacity * loadFactor);
+      }
+    }
+
+    for (int index = 0; index < count; index++) {
+      final K key = input.read(keyCodec);
+      final V value = input.read(valueCodec);
+      if (presized) {
+        putForCreate(key, value);
+      } else {
+        put(key, value);
+      }
+    }
+
+    input.finish();
+
+    // the mappings read into the presized table start their lives now.
+    if (presized && timerWheel != null) {
+      initTimerWheel();
+    }
+    return count;
   }
 
   // These methods are used when serializing HashSets.
@@ -102,6 +102,10 @@ public final class SoftHashMap<K, V> extends ReferenceHashMap<K, V> {
     private V value;
     private final int hash;
     private Entry<K, V> next;
+    private long writeTime;
+    private long accessTime;
+    private TimerWheel.Node previousInTimer;
+    private TimerWheel.Node nextInTimer;
 
     /**
      * Create <tt>SoftEntry</tt> instance.
@@ -171,6 +175,80 @@ public final class SoftHashMap<K, V> extends ReferenceHashMap<K, V> {
       this.next = n;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.ReferenceHashMap.Entry#writeTime()
+     */
+    public long writeTime() {
+      return writeTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.ReferenceHashMap.Entry#setWriteTime(long)
+     */
+    public void setWriteTime(final long time) {
+      this.writeTime = time;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.ReferenceHashMap.Entry#accessTime()
+     */
+    public long accessTime() {
+      return accessTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.ReferenceHashMap.Entry#setAccessTime(long)
+     */
+    public void setAccessTime(final long time) {
+      this.accessTime = time;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#previousInTimer()
+     */
+    public TimerWheel.Node previousInTimer() {
+      return previousInTimer;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#setPreviousInTimer(
+     * com.inet.base.ejb.internal.ref.TimerWheel.Node)
+     */
+    public void setPreviousInTimer(final TimerWheel.Node p) {
+      this.previousInTimer = p;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#nextInTimer()
+     */
+    public TimerWheel.Node nextInTimer() {
+      return nextInTimer;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#setNextInTimer(
+     * com.inet.base.ejb.internal.ref.TimerWheel.Node)
+     */
+    public void setNextInTimer(final TimerWheel.Node n) {
+      this.nextInTimer = n;
+    }
+
     /**
      * {@inheritDoc}
      *
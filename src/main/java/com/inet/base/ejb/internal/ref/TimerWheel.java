@@ -0,0 +1,282 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+/**
+ * TimerWheel.
+ * <pre>
+ *  Hashed timer wheel used by the {@link ReferenceHashMap reference map} to expire mappings.
+ *  Every bucket holds the entries whose deadline falls into one tick, the wheel only visits
+ *  the buckets of the ticks elapsed since the last advance, so the expiration cost is amortized
+ *  over the map operations and never requires a full table scan.
+ *
+ *  Deadlines are evaluated lazily: the map re-schedules an entry whose deadline was moved
+ *  (e.g, by an access) when its bucket is visited, and drops an entry that is no longer mapped.
+ *
+ *  The entries are linked into their bucket (a circular list closed by the bucket itself), so
+ *  the map unlinks a removed or reclaimed entry at once and the wheel never keeps it alive
+ *  until its tick.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: TimerWheel.java 2010-01-15 10:12:31z nguyen_dv $
+ *
+ * @since 1.0
+ */
+final class TimerWheel<K, V> {
+  /**
+   * The number of buckets -- MUST be a power of two.
+   */
+  private static final int WHEEL_SIZE = 512;
+
+  /**
+   * The bucket index mask.
+   */
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+  /**
+   * The tick duration (in nanoseconds).
+   */
+  private final long tickNanos;
+
+  /**
+   * The wheel buckets.
+   */
+  private final Bucket[] buckets;
+
+  /**
+   * The first tick that has not been visited yet.
+   */
+  private long currentTick;
+
+  /**
+   * Create the <tt>TimerWheel</tt> instance from the given tick duration.
+   *
+   * @param tick the given tick duration (in nanoseconds).
+   * @param now the given current time (in nanoseconds).
+   */
+  TimerWheel(final long tick, final long now) {
+    tickNanos = tick;
+    buckets = new Bucket[WHEEL_SIZE];
+    for (int index = 0; index < WHEEL_SIZE; index++) {
+      buckets[index] = new Bucket();
+    }
+    currentTick = now / tickNanos;
+  }
+
+  /**
+   * Schedules the given entry to be visited when the given deadline is reached; the entry is
+   * first unlinked from the bucket it was scheduled in.
+   *
+   * @param entry the given entry to schedule.
+   * @param deadline the given deadline (in nanoseconds).
+   */
+  void schedule(final ReferenceHashMap.Entry<K, V> entry, final long deadline) {
+    unschedule(entry);
+
+    long tick = deadline / tickNanos;
+    if (tick < currentTick) {
+      tick = currentTick;
+    }
+    final Bucket bucket = buckets[(int) (tick & WHEEL_MASK)];
+    final Node last = bucket.previousInTimer();
+    entry.setPreviousInTimer(last);
+    entry.setNextInTimer(bucket);
+    last.setNextInTimer(entry);
+    bucket.setPreviousInTimer(entry);
+  }
+
+  /**
+   * Unlinks the given entry from its bucket, if it is scheduled.
+   *
+   * @param entry the given entry to unlink.
+   */
+  void unschedule(final ReferenceHashMap.Entry<K, V> entry) {
+    final Node previous = entry.previousInTimer();
+    final Node next = entry.nextInTimer();
+    if (previous != null) {
+      previous.setNextInTimer(next);
+    }
+    if (next != null) {
+      next.setPreviousInTimer(previous);
+    }
+    entry.setPreviousInTimer(null);
+    entry.setNextInTimer(null);
+  }
+
+  /**
+   * Visits all buckets of the ticks elapsed before the given time and hands their entries back
+   * to the map.
+   *
+   * @param map the given map owning the entries.
+   * @param now the given current time (in nanoseconds).
+   */
+  @SuppressWarnings({ "unchecked" })
+  void advance(final ReferenceHashMap<K, V> map, final long now) {
+    final long nowTick = now / tickNanos;
+    if (nowTick <= currentTick) {
+      return;
+    }
+
+    // entries re-scheduled while visiting are never put back into the elapsed ticks.
+    final long startTick = currentTick;
+    currentTick = nowTick;
+
+    // visit each bucket at most once, a lapped entry is re-scheduled by the map.
+    final long endTick = Math.min(nowTick, startTick + WHEEL_SIZE);
+    for (long tick = startTick; tick < endTick; tick++) {
+      final Bucket bucket = buckets[(int) (tick & WHEEL_MASK)];
+      if (bucket.isEmpty()) {
+        continue;
+      }
+
+      // detach the entries from the bucket, so re-scheduled entries will not be visited twice.
+      Node node = bucket.nextInTimer();
+      node.setPreviousInTimer(null);
+      bucket.previousInTimer().setNextInTimer(null);
+      bucket.reset();
+
+      while (node != null) {
+        final Node next = node.nextInTimer();
+        if (next != null) {
+          next.setPreviousInTimer(null);
+        }
+        node.setNextInTimer(null);
+        map.onTimer((ReferenceHashMap.Entry<K, V>) node, now);
+        node = next;
+      }
+    }
+  }
+
+  /**
+   * Removes all scheduled entries.
+   */
+  void clear() {
+    for (int index = 0; index < WHEEL_SIZE; index++) {
+      final Bucket bucket = buckets[index];
+      Node node = bucket.nextInTimer();
+      while (node != bucket) {
+        final Node next = node.nextInTimer();
+        node.setPreviousInTimer(null);
+        node.setNextInTimer(null);
+        node = next;
+      }
+      bucket.reset();
+    }
+  }
+
+  /**
+   * Node.
+   * <pre>
+   *  The links of a scheduled entry in its bucket.
+   * </pre>
+   */
+  interface Node {
+    /**
+     * Returns the previous node in the bucket.
+     *
+     * @return the previous node; {@code null} if the entry is not scheduled.
+     */
+    Node previousInTimer();
+
+    /**
+     * Set the previous node in the bucket.
+     *
+     * @param previous the given previous node to set.
+     */
+    void setPreviousInTimer(Node previous);
+
+    /**
+     * Returns the next node in the bucket.
+     *
+     * @return the next node; {@code null} if the entry is not scheduled.
+     */
+    Node nextInTimer();
+
+    /**
+     * Set the next node in the bucket.
+     *
+     * @param next the given next node to set.
+     */
+    void setNextInTimer(Node next);
+  }
+
+  /**
+   * Bucket.
+   * <pre>
+   *  The head of the circular list of the entries of one tick.
+   * </pre>
+   */
+  private static final class Bucket implements Node {
+    private Node previous = this;
+    private Node next = this;
+
+    /**
+     * Returns if the bucket has no entry.
+     *
+     * @return if the bucket has no entry.
+     */
+    boolean isEmpty() {
+      return next == this;
+    }
+
+    /**
+     * Empties the bucket, without touching the entries.
+     */
+    void reset() {
+      previous = this;
+      next = this;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#previousInTimer()
+     */
+    public Node previousInTimer() {
+      return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#setPreviousInTimer(
+     * com.inet.base.ejb.internal.ref.TimerWheel.Node)
+     */
+    public void setPreviousInTimer(final Node p) {
+      this.previous = p;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#nextInTimer()
+     */
+    public Node nextInTimer() {
+      return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.inet.base.ejb.internal.ref.TimerWheel.Node#setNextInTimer(
+     * com.inet.base.ejb.internal.ref.TimerWheel.Node)
+     */
+    public void setNextInTimer(final Node n) {
+      this.next = n;
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.Query;
+
+import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.impl.CriteriaImpl;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.AbstractComponentType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+
+import com.inet.base.ejb.internal.Preconditions;
+
+/**
+ * FetchPlan.
+ * <pre>
+ *  The per-call fetch settings of a list query, applied the same way to a {@link Criteria
+ *  criteria} and to a JPA {@link Query query}:
+ *
+ *    private static final FetchPlan ORDER_LIST = new FetchPlan().join("customer")
+ *        .fetchSize(200).readOnly(true).timeout(10).comment("order list");
+ *
+ *    return query(search, startAt, maxItems, ORDER_LIST);
+ *
+ *  The join fetch paths apply to the criteria only, a JPA query declares them with
+ *  <tt>join fetch</tt> in its query string. A path through a collection returns one row per
+ *  element: the criteria then returns the distinct root objects, and a paged criteria is
+ *  rejected, since its page would count the joined rows instead of the root objects (initialize
+ *  the collections of the page with a second query instead). A path which can not be resolved
+ *  is handled as a collection path. The read-only objects are not dirty checked at flush. A
+ *  fetch plan is configured once, then shared.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: FetchPlan.java 2010-02-10 09:52:37z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class FetchPlan {
+  /** the association paths fetched by join. */
+  private final List<String> joins = new ArrayList<String>();
+
+  /** the JDBC fetch size; zero for the default. */
+  private int fetchSize;
+
+  /** whether the loaded objects are read-only. */
+  private boolean readOnly;
+
+  /** the query timeout (in seconds); zero for no timeout. */
+  private int timeout;
+
+  /** the SQL comment. */
+  private String comment;
+
+  /**
+   * Fetches the given association paths by join.
+   *
+   * @param paths the given association paths.
+   * @return this fetch plan.
+   */
+  public FetchPlan join(final String... paths) {
+    Collections.addAll(joins, paths);
+    return this;
+  }
+
+  /**
+   * Sets the JDBC fetch size.
+   *
+   * @param size the given number of rows fetched per database round-trip.
+   * @return this fetch plan.
+   */
+  public FetchPlan fetchSize(final int size) {
+    this.fetchSize = size;
+    return this;
+  }
+
+  /**
+   * Sets whether the loaded objects are read-only.
+   *
+   * @param ro whether the loaded objects are read-only.
+   * @return this fetch plan.
+   */
+  public FetchPlan readOnly(final boolean ro) {
+    this.readOnly = ro;
+    return this;
+  }
+
+  /**
+   * Sets the query timeout.
+   *
+   * @param seconds the given query timeout (in seconds).
+   * @return this fetch plan.
+   */
+  public FetchPlan timeout(final int seconds) {
+    this.timeout = seconds;
+    return this;
+  }
+
+  /**
+   * Sets the SQL comment tagging the query (shown if <tt>hibernate.use_sql_comments</tt>).
+   *
+   * @param text the given comment.
+   * @return this fetch plan.
+   */
+  public FetchPlan comment(final String text) {
+    this.comment = text;
+    return this;
+  }
+
+  /**
+   * Applies the fetch plan to the given criteria. With a collection join path, the criteria
+   * returns the distinct root objects.
+   *
+   * @param criteria the given {@link Criteria criteria}, paged before the fetch plan is applied.
+   * @return the given criteria.
+   * @throws IllegalArgumentException if the criteria is paged and a join path goes through a
+   * collection.
+   */
+  public Criteria apply(final Criteria criteria) {
+    if (!joins.isEmpty() && criteria instanceof CriteriaImpl && joinsCollection(criteria)) {
+      final CriteriaImpl impl = (CriteriaImpl) criteria;
+      Preconditions.checkArgument(impl.getMaxResults() == null
+          && (impl.getFirstResult() == null || impl.getFirstResult().intValue() <= 0),
+          "The collection join paths " + joins + " can not be fetched with a paged criteria.");
+      if (impl.getResultTransformer() == null
+          || impl.getResultTransformer() == Criteria.ROOT_ENTITY) {
+        criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+      }
+    }
+    for (final String path : joins) {
+      criteria.setFetchMode(path, FetchMode.JOIN);
+    }
+    if (fetchSize > 0) {
+      criteria.setFetchSize(fetchSize);
+    }
+    if (timeout > 0) {
+      criteria.setTimeout(timeout);
+    }
+    if (comment != null) {
+      criteria.setComment(comment);
+    }
+    return criteria;
+  }
+
+  /**
+   * Applies the fetch plan to the given JPA query, through the Hibernate query hints.
+   *
+   * @param query the given JPA {@link Query query}.
+   * @return the given query.
+   */
+  public Query apply(final Query query) {
+    if (fetchSize > 0) {
+      query.setHint("org.hibernate.fetchSize", Integer.valueOf(fetchSize));
+    }
+    if (timeout > 0) {
+      query.setHint("org.hibernate.timeout", Integer.valueOf(timeout));
+    }
+    if (comment != null) {
+      query.setHint("org.hibernate.comment", comment);
+    }
+    if (readOnly) {
+      query.setHint("org.hibernate.readOnly", Boolean.TRUE);
+    }
+    return query;
+  }
+
+  /**
+   * Applies the fetch plan to the given objects loaded by a criteria: marks them read-only.
+   * @param <T> the object type.
+   *
+   * @param session the given Hibernate {@link Session session} managing the objects.
+   * @param objs the given loaded objects.
+   * @return the given objects.
+   */
+  public <T> List<T> apply(final Session session, final List<T> objs) {
+    if (readOnly && objs != null) {
+      for (final T obj : objs) {
+        if (obj != null && session.contains(obj)) {
+          session.setReadOnly(obj, true);
+        }
+      }
+    }
+    return objs;
+  }
+
+  /**
+   * Returns whether a join path of the fetch plan goes through a collection, or can not be
+   * resolved from the root entity of the given criteria.
+   *
+   * @param criteria the given {@link CriteriaImpl criteria}.
+   * @return whether a join path may duplicate the root objects.
+   */
+  private boolean joinsCollection(final Criteria criteria) {
+    final CriteriaImpl impl = (CriteriaImpl) criteria;
+    final SessionFactoryImplementor factory = impl.getSession().getFactory();
+    final ClassMetadata root = factory.getClassMetadata(impl.getEntityOrClassName());
+    if (root == null) {
+      return true;
+    }
+
+    for (final String path : joins) {
+      if (!isToOnePath(factory, root, path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the given association path only goes through the to-one associations and
+   * the components.
+   *
+   * @param factory the given {@link SessionFactoryImplementor session factory}.
+   * @param root the given root entity {@link ClassMetadata metadata}.
+   * @param path the given association path.
+   * @return whether the path is resolved and holds no collection.
+   */
+  static boolean isToOnePath(final SessionFactoryImplementor factory,
+      final ClassMetadata root, final String path) {
+    try {
+      Type type = null;
+      for (final String property : path.split("\\.")) {
+        if (type == null) {
+          type = root.getPropertyType(property);
+        } else if (type.isEntityType()) {
+          final ClassMetadata metadata =
+            factory.getClassMetadata(((EntityType) type).getAssociatedEntityName());
+          type = (metadata != null ? metadata.getPropertyType(property) : null);
+        } else if (type.isComponentType()) {
+          type = subtypeOf((AbstractComponentType) type, property);
+        } else {
+          return false;
+        }
+
+        if (type == null || type.isCollectionType()) {
+          return false;
+        }
+      }
+      return true;
+    } catch (final HibernateException hex) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns the type of the given property of the given component.
+   *
+   * @param component the given component type.
+   * @param property the given property name.
+   * @return the property type; {@code null} if the component has no such property.
+   */
+  private static Type subtypeOf(final AbstractComponentType component, final String property) {
+    final String[] names = component.getPropertyNames();
+    for (int index = 0; index < names.length; index++) {
+      if (names[index].equals(property)) {
+        return component.getSubtypes()[index];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "FetchPlan[joins=" + joins + ", fetchSize=" + fetchSize + ", readOnly=" + readOnly
+           + ", timeout=" + timeout + ", comment=" + comment + "]";
+  }
+}
@@ -0,0 +1,205 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.conf.ConfigBean;
+import com.inet.base.ejb.internal.Preconditions;
+
+/**
+ * QueryExecutor.
+ * <pre>
+ *  Runs the read-only queries concurrently, each one on its own session and connection. The
+ *  executor is bounded: when all threads are busy and the queue is full, the query is rejected
+ *  with a <tt>RejectedExecutionException</tt>, so the load on the connection pool never exceeds
+ *  the number of threads and a query never silently runs on the calling thread.
+ *
+ *  The shared executor is owned by the {@link ConfigBean configuration}: it is created when
+ *  the configuration starts and shut down when it stops (the application is undeployed), so no
+ *  thread outlives the deployment. There is no shared executor when the configuration is not
+ *  deployed.
+ *
+ *  The queries run on the executor threads, outside the transaction of the caller, and do not
+ *  see its pending changes. The sessions never flush; the connection gets the read-only hint
+ *  only if it is not enlisted in a JTA transaction.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: QueryExecutor.java 2010-02-01 10:12:50z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class QueryExecutor {
+  /** class logger. */
+  private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
+
+  /** the number of queued queries per thread. */
+  private static final int QUEUE_PER_THREAD = 16;
+
+  /** the time (in seconds) the stopping executor waits for the running queries. */
+  private static final long SHUTDOWN_TIMEOUT = 10;
+
+  /** the thread pool. */
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Create <tt>QueryExecutor</tt> instance.
+   *
+   * @param threads the given maximum number of threads.
+   */
+  public QueryExecutor(final int threads) {
+    Preconditions.checkArgument(threads > 0, "The number of threads must be positive.");
+
+    final AtomicInteger counter = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadFactory() {
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread =
+              new Thread(runnable, "query-executor-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            // do not pin the class loader of the thread creating the pool.
+            thread.setContextClassLoader(QueryExecutor.class.getClassLoader());
+            return thread;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the shared executor owned by the {@link ConfigBean configuration}.
+   *
+   * @return the shared <tt>QueryExecutor</tt> instance; {@code null} if the configuration is
+   * not deployed or stopped.
+   */
+  public static QueryExecutor getInstance() {
+    final ConfigBean config = ConfigBean.getInstance();
+    return (config != null ? config.getQueryExecutor() : null);
+  }
+
+  /**
+   * Submits the given work, run on a new read-only session of the given session factory.
+   * @param <V> the result type.
+   *
+   * @param factory the given {@link SessionFactory session factory}.
+   * @param work the given {@link SessionWork work}.
+   * @return the {@link Future future} result.
+   * @throws RejectedExecutionException if the executor is saturated or stopped.
+   */
+  public <V> Future<V> submit(final SessionFactory factory, final SessionWork<V> work)
+    throws RejectedExecutionException {
+    return executor.submit(new Callable<V>() {
+      // Session.connection() is deprecated, but Hibernate 3.2 has no Session.doWork: the
+      // connection is held across the work to reset its read-only hint afterwards.
+      @SuppressWarnings({ "deprecation" })
+      public V call() throws Exception {
+        final Session session = factory.openSession();
+        try {
+          session.setFlushMode(FlushMode.MANUAL);
+
+          final Connection connection = session.connection();
+          final boolean readOnly = !inTransaction(factory) && setReadOnly(connection, true);
+          try {
+            return work.execute(session);
+          } finally {
+            if (readOnly) {
+              setReadOnly(connection, false);
+            }
+          }
+        } finally {
+          session.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Stops the executor: the queued queries are still run, the executor waits a while for them
+   * and then interrupts the threads.
+   */
+  public void shutdown() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+        LOG.warn("Interrupting the query executor threads still running after {} seconds.",
+            Long.valueOf(SHUTDOWN_TIMEOUT));
+        executor.shutdownNow();
+      }
+    } catch (final InterruptedException iex) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns if the current thread is associated with a JTA transaction of the given session
+   * factory; its connections are then enlisted in that transaction.
+   *
+   * @param factory the given {@link SessionFactory session factory}.
+   * @return {@code true} if there is a transaction, or if it could not be determined.
+   */
+  private static boolean inTransaction(final SessionFactory factory) {
+    if (!(factory instanceof SessionFactoryImplementor)) {
+      return true;
+    }
+
+    final TransactionManager manager = ((SessionFactoryImplementor) factory)
+      .getTransactionManager();
+    try {
+      return manager != null && manager.getStatus() != Status.STATUS_NO_TRANSACTION;
+    } catch (final SystemException sex) {
+      LOG.debug("Could not get the transaction status.", sex);
+      return true;
+    }
+  }
+
+  /**
+   * Sets the read-only hint of the given connection.
+   *
+   * @param connection the given {@link Connection connection}.
+   * @param readOnly the given read-only hint.
+   * @return {@code true} if the hint was set.
+   */
+  private static boolean setReadOnly(final Connection connection, final boolean readOnly) {
+    try {
+      connection.setReadOnly(readOnly);
+      return true;
+    } catch (final SQLException sqlex) {
+      LOG.debug("Could not set the read-only hint of the connection.", sqlex);
+      return false;
+    }
+  }
+}
@@ -0,0 +1,482 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inet.base.ejb.conf.ConfigBean;
+import com.inet.base.ejb.internal.StringUtils;
+
+/**
+ * QueryMetrics.
+ * <pre>
+ *  Times the query operations of the session beans, by operation and label (the named query
+ *  name, the criteria root entity, or the normalized query string of an ad-hoc query, see
+ *  {@link #labelOf(String)}). Every {@link Timer timer} keeps a log2 histogram of the
+ *  durations, so the percentiles are available without keeping the samples. The number of
+ *  labels of an operation is bounded: past the bound, the new labels are recorded under
+ *  <tt>(other)</tt>.
+ *
+ *  An operation slower than the threshold of the {@link ConfigBean configuration} is logged to
+ *  the <tt>com.inet.base.ejb.query.QueryMetrics.slow</tt> logger, with its parameters: the
+ *  values are shown only if enabled by the configuration, and never for the parameters whose
+ *  name contains a redacted part (password, secret, token...).
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: QueryMetrics.java 2010-02-08 09:44:17z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class QueryMetrics {
+  /** the slow query logger. */
+  private static final Logger SLOW_LOG = LoggerFactory.getLogger(QueryMetrics.class.getName()
+                                                                 + ".slow");
+
+  /** the default slow query threshold (in milliseconds). */
+  private static final long DEFAULT_THRESHOLD = 1000;
+
+  /** the number of histogram buckets, the last one holds the durations of 2^30 us and more. */
+  private static final int BUCKETS = 31;
+
+  /** the default redacted parameter name parts. */
+  private static final String DEFAULT_REDACTED = "password,secret,token";
+
+  /** the redacted value. */
+  private static final String REDACTED = "****";
+
+  /** the max number of labels of an operation. */
+  static final int MAX_LABELS = 256;
+
+  /** the label of the executions past the max number of labels. */
+  static final String OTHER_LABEL = "(other)";
+
+  /** the max length of a query string label. */
+  static final int MAX_LABEL_LENGTH = 160;
+
+  /** the shared instance. */
+  private static final QueryMetrics INSTANCE = new QueryMetrics();
+
+  /** the timers by operation, then by label. */
+  private final ConcurrentMap<String, ConcurrentMap<String, Timer>> timers =
+    new ConcurrentHashMap<String, ConcurrentMap<String, Timer>>();
+
+  /**
+   * Create <tt>QueryMetrics</tt> instance.
+   */
+  private QueryMetrics() {
+    // shared instance.
+  }
+
+  /**
+   * @return the shared <tt>QueryMetrics</tt> instance.
+   */
+  public static QueryMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Records one execution of the given operation.
+   *
+   * @param operation the given operation (query, load, count...).
+   * @param label the given named query name or criteria root entity.
+   * @param nanos the given execution duration (in nanoseconds).
+   */
+  public void record(final String operation, final String label, final long nanos) {
+    record(operation, label, nanos, null, null);
+  }
+
+  /**
+   * Records one execution of the given operation with its named parameters.
+   *
+   * @param operation the given operation (query, load, count...).
+   * @param label the given named query name or criteria root entity.
+   * @param nanos the given execution duration (in nanoseconds).
+   * @param params the given list of pairs (parameter, value); may be {@code null}.
+   */
+  public void record(final String operation, final String label, final long nanos,
+      final Map<String, ?> params) {
+    if (isSlow(nanos)) {
+      final String[] names = params == null ? null : params.keySet().toArray(new String[0]);
+      final Object[] values = params == null ? null : new Object[names.length];
+      for (int index = 0; names != null && index < names.length; index++) {
+        values[index] = params.get(names[index]);
+      }
+      record(operation, label, nanos, names, values);
+    } else {
+      record(operation, label, nanos, null, null);
+    }
+  }
+
+  /**
+   * Records one execution of the given operation with its named parameters.
+   *
+   * @param operation the given operation (query, load, count...).
+   * @param label the given named query name or criteria root entity.
+   * @param nanos the given execution duration (in nanoseconds).
+   * @param names the given parameter names; may be {@code null}.
+   * @param values the given parameter values, in the name order; may be {@code null}.
+   */
+  public void record(final String operation, final String label, final long nanos,
+      final String[] names, final Object[] values) {
+    timerOf(operation, String.valueOf(label)).record(nanos);
+
+    if (isSlow(nanos) && SLOW_LOG.isWarnEnabled()) {
+      SLOW_LOG.warn("Slow {} [{}] took {} ms, parameters {}.", new Object[]{ operation, label,
+          Long.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos)), format(names, values) });
+    }
+  }
+
+  /**
+   * Returns the label of the given ad-hoc query string: the literals are replaced by <tt>?</tt>,
+   * so the label holds no value and the queries differing only by their literals share a timer,
+   * the white spaces are collapsed and the label is cut after {@link #MAX_LABEL_LENGTH}
+   * characters.
+   *
+   * @param queryString the given JPQL, HQL or SQL query string; may be {@code null}.
+   * @return the query label.
+   */
+  public static String labelOf(final String queryString) {
+    if (queryString == null) {
+      return "query";
+    }
+
+    final int length = queryString.length();
+    final StringBuilder label = new StringBuilder(Math.min(length, MAX_LABEL_LENGTH + 3));
+    int index = 0;
+    while (index < length && label.length() < MAX_LABEL_LENGTH) {
+      final char current = queryString.charAt(index);
+      if (current == '\'' || current == '"') {
+        // a string literal, the quote is escaped by doubling it.
+        index++;
+        while (index < length) {
+          if (queryString.charAt(index) == current) {
+            if (index + 1 < length && queryString.charAt(index + 1) == current) {
+              index += 2;
+              continue;
+            }
+            break;
+          }
+          index++;
+        }
+        index++;
+        label.append('?');
+      } else if (Character.isDigit(current) && !isPartOfName(label)) {
+        // a numeric literal; the parameters (?1, :p1) and names keep their digits.
+        while (index < length && (Character.isLetterOrDigit(queryString.charAt(index))
+                                  || queryString.charAt(index) == '.')) {
+          index++;
+        }
+        label.append('?');
+      } else if (Character.isWhitespace(current)) {
+        while (index < length && Character.isWhitespace(queryString.charAt(index))) {
+          index++;
+        }
+        if (label.length() > 0 && index < length) {
+          label.append(' ');
+        }
+      } else {
+        label.append(current);
+        index++;
+      }
+    }
+    if (index < length) {
+      label.append("...");
+    }
+    return label.toString();
+  }
+
+  /**
+   * Returns the timers by operation and label (<tt>operation:label</tt>).
+   *
+   * @return the snapshot of the timers.
+   */
+  public Map<String, Timer> getTimers() {
+    final Map<String, Timer> snapshot = new TreeMap<String, Timer>();
+    for (final Map.Entry<String, ConcurrentMap<String, Timer>> operation : timers.entrySet()) {
+      for (final Map.Entry<String, Timer> label : operation.getValue().entrySet()) {
+        snapshot.put(operation.getKey() + ':' + label.getKey(), label.getValue());
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Removes all timers.
+   */
+  public void reset() {
+    timers.clear();
+  }
+
+  /**
+   * Returns the timer of the given operation and label, created on demand.
+   *
+   * @param operation the given operation.
+   * @param label the given label.
+   * @return the {@link Timer timer}.
+   */
+  private Timer timerOf(final String operation, final String label) {
+    ConcurrentMap<String, Timer> labels = timers.get(operation);
+    if (labels == null) {
+      final ConcurrentMap<String, Timer> created = new ConcurrentHashMap<String, Timer>();
+      labels = timers.putIfAbsent(operation, created);
+      if (labels == null) {
+        labels = created;
+      }
+    }
+
+    final Timer timer = labels.get(label);
+    if (timer == null && labels.size() >= MAX_LABELS) {
+      return timerOf(labels, OTHER_LABEL);
+    }
+    return timer != null ? timer : timerOf(labels, label);
+  }
+
+  /**
+   * Returns the timer of the given label in the given timers, created on demand.
+   *
+   * @param labels the given timers by label.
+   * @param label the given label.
+   * @return the {@link Timer timer}.
+   */
+  private static Timer timerOf(final ConcurrentMap<String, Timer> labels, final String label) {
+    Timer timer = labels.get(label);
+    if (timer == null) {
+      final Timer created = new Timer();
+      timer = labels.putIfAbsent(label, created);
+      if (timer == null) {
+        timer = created;
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Returns whether the given label ends with a name part, so the next digit belongs to it.
+   *
+   * @param label the given label.
+   * @return whether the next digit belongs to a name or a parameter.
+   */
+  private static boolean isPartOfName(final CharSequence label) {
+    if (label.length() == 0) {
+      return false;
+    }
+
+    final char last = label.charAt(label.length() - 1);
+    return Character.isLetterOrDigit(last) || last == '_' || last == '$' || last == ':'
+           || last == '?' || last == '.';
+  }
+
+  /**
+   * Returns whether the given duration is above the slow query threshold.
+   *
+   * @param nanos the given duration (in nanoseconds).
+   * @return whether the given duration is above the threshold.
+   */
+  private static boolean isSlow(final long nanos) {
+    final ConfigBean config = ConfigBean.getInstance();
+    final long threshold = config != null ? config.getSlowQueryThreshold() : DEFAULT_THRESHOLD;
+    return threshold >= 0 && TimeUnit.NANOSECONDS.toMillis(nanos) >= threshold;
+  }
+
+  /**
+   * Formats the given parameters, redacting the values as configured.
+   *
+   * @param names the given parameter names; may be {@code null}.
+   * @param values the given parameter values; may be {@code null}.
+   * @return the formatted parameters.
+   */
+  static String format(final String[] names, final Object[] values) {
+    if (values == null || values.length == 0) {
+      return "[]";
+    }
+
+    final ConfigBean config = ConfigBean.getInstance();
+    final boolean showValues = config != null && config.isSlowQueryParameters();
+    final String[] redacted = StringUtils.tokenizeToStringArray(
+        config != null ? config.getRedactedParameters() : DEFAULT_REDACTED, ",");
+
+    final StringBuilder builder = new StringBuilder("[");
+    for (int index = 0; index < values.length; index++) {
+      final String name = names != null && index < names.length ? names[index] : null;
+      if (index > 0) {
+        builder.append(", ");
+      }
+      builder.append(name != null ? name : String.valueOf(index + 1)).append('=');
+
+      final Object value = values[index];
+      if (value == null) {
+        builder.append("null");
+      } else if (!showValues || isRedacted(name, redacted)) {
+        builder.append(REDACTED);
+      } else {
+        builder.append(value);
+      }
+    }
+    return builder.append(']').toString();
+  }
+
+  /**
+   * Returns whether the value of the given parameter is never logged.
+   *
+   * @param name the given parameter name; may be {@code null}.
+   * @param redacted the given redacted name parts; may be {@code null}.
+   * @return whether the value is redacted.
+   */
+  static boolean isRedacted(final String name, final String[] redacted) {
+    if (name == null || redacted == null) {
+      return false;
+    }
+
+    final String lower = name.toLowerCase();
+    for (final String part : redacted) {
+      if (lower.indexOf(part.toLowerCase()) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Timer.
+   * <pre>
+   *  The execution count, total and max durations and the log2 histogram of an operation.
+   * </pre>
+   */
+  public static final class Timer {
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Create <tt>Timer</tt> instance.
+     */
+    Timer() {
+      // created by the metrics.
+    }
+
+    /**
+     * Records one execution of the given duration.
+     *
+     * @param nanos the given execution duration (in nanoseconds).
+     */
+    void record(final long nanos) {
+      executions.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+
+      // bucket n holds the durations in [2^n, 2^(n+1)) microseconds.
+      final long micros = nanos / 1000;
+      final int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+      histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    /**
+     * @return the number of executions.
+     */
+    public long getExecutions() {
+      return executions.get();
+    }
+
+    /**
+     * Returns the total execution time.
+     *
+     * @param unit the given time {@link TimeUnit unit}.
+     * @return the total execution time.
+     */
+    public long getTotalTime(final TimeUnit unit) {
+      return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the mean execution time.
+     *
+     * @param unit the given time {@link TimeUnit unit}.
+     * @return the mean execution time; zero if the operation never ran.
+     */
+    public long getMeanTime(final TimeUnit unit) {
+      final long count = executions.get();
+      return (count == 0 ? 0 : unit.convert(totalNanos.get() / count, TimeUnit.NANOSECONDS));
+    }
+
+    /**
+     * Returns the longest execution time.
+     *
+     * @param unit the given time {@link TimeUnit unit}.
+     * @return the longest execution time.
+     */
+    public long getMaxTime(final TimeUnit unit) {
+      return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the upper bound of the given percentile of the execution times, within a factor
+     * of two.
+     *
+     * @param percentile the given percentile, between 0 and 100.
+     * @param unit the given time {@link TimeUnit unit}.
+     * @return the percentile upper bound; zero if the operation never ran.
+     */
+    public long getPercentile(final double percentile, final TimeUnit unit) {
+      long total = 0;
+      final long[] counts = new long[BUCKETS];
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        counts[bucket] = histogram.get(bucket);
+        total += counts[bucket];
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      final long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKETS - 1; bucket++) {
+        seen += counts[bucket];
+        if (seen >= rank) {
+          return Math.min(unit.convert(1L << (bucket + 1), TimeUnit.MICROSECONDS),
+              getMaxTime(unit));
+        }
+      }
+      return getMaxTime(unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "Timer[executions=" + getExecutions() + ", mean=" + getMeanTime(TimeUnit.MICROSECONDS)
+             + "us, p99=" + getPercentile(99, TimeUnit.MICROSECONDS) + "us, max="
+             + getMaxTime(TimeUnit.MICROSECONDS) + "us]";
+    }
+  }
+}
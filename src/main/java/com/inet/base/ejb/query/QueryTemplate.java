@@ -0,0 +1,316 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+
+import com.inet.base.ejb.internal.Preconditions;
+
+/**
+ * QueryTemplate.
+ * <pre>
+ *  A named query together with its parameter names and types, resolved once into an array of
+ *  binders. The values are given in the parameter order and each one is bound by name through
+ *  its binder, so an execution never builds or iterates a parameter map:
+ *
+ *    private static final QueryTemplate BY_OWNER = new QueryTemplate("Order.findByOwner",
+ *        new String[]{ "owner", "since" }, new Class[]{ String.class, Date.class });
+ *    ...
+ *    final List&lt;Order&gt; orders = load(BY_OWNER, owner, since);
+ *
+ *  A primitive parameter type (e.g. <tt>int.class</tt>) stands for its wrapper type. The
+ *  template also counts its executions and their time, it is meant to be shared as a constant
+ *  by all beans running the named query.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: QueryTemplate.java 2010-02-03 10:40:16z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class QueryTemplate {
+  /** the named query. */
+  private final String name;
+
+  /** the parameter names. */
+  private final String[] parameters;
+
+  /** the parameter types. */
+  private final Class<?>[] types;
+
+  /** the parameter binders. */
+  private final Binder[] binders;
+
+  /** the number of executions. */
+  private final AtomicLong executions = new AtomicLong();
+
+  /** the total execution time (in nanoseconds). */
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  /** the longest execution time (in nanoseconds). */
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Create <tt>QueryTemplate</tt> instance from the given untyped parameters.
+   *
+   * @param n the given named query.
+   * @param params the given parameter names.
+   */
+  public QueryTemplate(final String n, final String... params) {
+    this(n, params, null);
+  }
+
+  /**
+   * Create <tt>QueryTemplate</tt> instance.
+   *
+   * @param n the given named query.
+   * @param params the given parameter names.
+   * @param t the given parameter types, the primitive types stand for their wrapper types;
+   * {@code null} for untyped parameters.
+   */
+  public QueryTemplate(final String n, final String[] params, final Class<?>[] t) {
+    this.name = Preconditions.checkNotEmpty(n, "The named query must not be empty.");
+    this.parameters = params.clone();
+    this.types = new Class<?>[params.length];
+    this.binders = new Binder[params.length];
+    Preconditions.checkArgument(t == null || t.length == params.length,
+        "The parameter names and types do not match.");
+
+    for (int index = 0; index < params.length; index++) {
+      types[index] = (t == null || t[index] == null ? Object.class : boxed(t[index]));
+      binders[index] = binderOf(params[index], types[index]);
+    }
+  }
+
+  /**
+   * Returns the named query.
+   *
+   * @return the named query.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the parameter names.
+   *
+   * @return the parameter names.
+   */
+  public String[] getParameters() {
+    return parameters.clone();
+  }
+
+  /**
+   * Binds the given values to the parameters of the given query, in the parameter order.
+   *
+   * @param query the given {@link Query query} created from the named query.
+   * @param values the given parameter values.
+   * @return the bound {@link Query query}.
+   * @throws IllegalArgumentException if the values do not match the parameters.
+   */
+  public Query bind(final Query query, final Object... values) {
+    final int length = (values == null ? 0 : values.length);
+    if (length != binders.length) {
+      throw new IllegalArgumentException("The query {" + name + "} expects " + binders.length
+                                         + " parameters, got " + length + ".");
+    }
+
+    for (int index = 0; index < length; index++) {
+      if (values[index] != null && !types[index].isInstance(values[index])) {
+        throw new IllegalArgumentException("The parameter {" + parameters[index]
+            + "} of the query {" + name + "} must be a " + types[index].getName() + ".");
+      }
+      binders[index].bind(query, values[index]);
+    }
+    return query;
+  }
+
+  /**
+   * Records one execution of the given duration.
+   *
+   * @param nanos the given execution duration (in nanoseconds).
+   */
+  public void record(final long nanos) {
+    executions.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /**
+   * Returns the number of executions.
+   *
+   * @return the number of executions.
+   */
+  public long getExecutions() {
+    return executions.get();
+  }
+
+  /**
+   * Returns the total execution time.
+   *
+   * @param unit the given time {@link TimeUnit unit}.
+   * @return the total execution time.
+   */
+  public long getTotalTime(final TimeUnit unit) {
+    return unit.convert(totalNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the mean execution time.
+   *
+   * @param unit the given time {@link TimeUnit unit}.
+   * @return the mean execution time; zero if the query never ran.
+   */
+  public long getMeanTime(final TimeUnit unit) {
+    final long count = executions.get();
+    return (count == 0 ? 0 : unit.convert(totalNanos.get() / count, TimeUnit.NANOSECONDS));
+  }
+
+  /**
+   * Returns the longest execution time.
+   *
+   * @param unit the given time {@link TimeUnit unit}.
+   * @return the longest execution time.
+   */
+  public long getMaxTime(final TimeUnit unit) {
+    return unit.convert(maxNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return "QueryTemplate[" + name + ", executions=" + getExecutions() + ", mean="
+           + getMeanTime(TimeUnit.MICROSECONDS) + "us, max=" + getMaxTime(TimeUnit.MICROSECONDS)
+           + "us]";
+  }
+
+  /**
+   * Returns the wrapper type of the given primitive type, or the given type.
+   *
+   * @param type the given parameter type.
+   * @return the type the values are checked against.
+   */
+  private static Class<?> boxed(final Class<?> type) {
+    if (!type.isPrimitive()) {
+      return type;
+    } else if (type == int.class) {
+      return Integer.class;
+    } else if (type == long.class) {
+      return Long.class;
+    } else if (type == boolean.class) {
+      return Boolean.class;
+    } else if (type == double.class) {
+      return Double.class;
+    } else if (type == float.class) {
+      return Float.class;
+    } else if (type == short.class) {
+      return Short.class;
+    } else if (type == byte.class) {
+      return Byte.class;
+    } else if (type == char.class) {
+      return Character.class;
+    }
+    throw new IllegalArgumentException("Illegal parameter type {" + type + "}.");
+  }
+
+  /**
+   * Returns the binder of the given parameter type.
+   *
+   * @param parameter the given parameter name.
+   * @param type the given parameter type.
+   * @return the parameter binder.
+   */
+  private static Binder binderOf(final String parameter, final Class<?> type) {
+    if (java.sql.Date.class.isAssignableFrom(type)) {
+      return new TemporalBinder(parameter, TemporalType.DATE);
+    } else if (java.sql.Time.class.isAssignableFrom(type)) {
+      return new TemporalBinder(parameter, TemporalType.TIME);
+    } else if (Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type)) {
+      return new TemporalBinder(parameter, TemporalType.TIMESTAMP);
+    }
+    return new Binder(parameter);
+  }
+
+  /**
+   * Binder.
+   * <pre>
+   *  Binds the value of one parameter.
+   * </pre>
+   */
+  private static class Binder {
+    final String parameter;
+
+    /**
+     * Create <tt>Binder</tt> instance.
+     */
+    Binder(final String p) {
+      this.parameter = p;
+    }
+
+    /**
+     * Binds the given value.
+     */
+    void bind(final Query query, final Object value) {
+      query.setParameter(parameter, value);
+    }
+  }
+
+  /**
+   * TemporalBinder.
+   * <pre>
+   *  Binds the value of a date or calendar parameter with its temporal type.
+   * </pre>
+   */
+  private static final class TemporalBinder extends Binder {
+    private final TemporalType temporalType;
+
+    /**
+     * Create <tt>TemporalBinder</tt> instance.
+     */
+    TemporalBinder(final String p, final TemporalType t) {
+      super(p);
+      this.temporalType = t;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    void bind(final Query query, final Object value) {
+      if (value instanceof Calendar) {
+        query.setParameter(parameter, (Calendar) value, temporalType);
+      } else if (value instanceof Date) {
+        query.setParameter(parameter, (Date) value, temporalType);
+      } else {
+        query.setParameter(parameter, value);
+      }
+    }
+  }
+}
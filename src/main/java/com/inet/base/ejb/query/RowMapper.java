@@ -0,0 +1,47 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+/**
+ * RowMapper.
+ * <pre>
+ *  Maps the projected columns of a row onto a lightweight DTO, without reflection: the mapper
+ *  reads the columns by their position in the projection, e.g:
+ *
+ *    new RowMapper&lt;OrderRow&gt;() {
+ *      public OrderRow map(final Object[] row) {
+ *        return new OrderRow((Long) row[0], (String) row[1], (Date) row[2]);
+ *      }
+ *    }
+ *
+ *  The DTOs returned to the remote clients must be serializable.
+ * </pre>
+ * @param <V> the DTO type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: RowMapper.java 2010-02-04 10:02:15z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface RowMapper<V> {
+  /**
+   * Maps the given projected row.
+   *
+   * @param row the given projected columns, in the projection order.
+   * @return the DTO.
+   */
+  V map(Object[] row);
+}
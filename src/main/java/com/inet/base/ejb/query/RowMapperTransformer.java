@@ -0,0 +1,72 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.List;
+
+import org.hibernate.transform.ResultTransformer;
+
+/**
+ * RowMapperTransformer.
+ * <pre>
+ *  Adapts a {@link RowMapper row mapper} to the Hibernate {@link ResultTransformer result
+ *  transformer}, so the criteria projections are mapped while the result is read.
+ * </pre>
+ * @param <V> the DTO type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: RowMapperTransformer.java 2010-02-04 10:17:48z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class RowMapperTransformer<V> implements ResultTransformer {
+  private static final long serialVersionUID = -3092614512281707163L;
+
+  /* the row mapper. */
+  private final RowMapper<V> mapper;
+
+  /**
+   * Create <tt>RowMapperTransformer</tt> instance.
+   *
+   * @param rm the given {@link RowMapper row mapper}.
+   */
+  public RowMapperTransformer(final RowMapper<V> rm) {
+    this.mapper = rm;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.hibernate.transform.ResultTransformer#transformTuple(java.lang.Object[],
+   * java.lang.String[])
+   */
+  public Object transformTuple(final Object[] tuple, final String[] aliases) {
+    return mapper.map(tuple);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The raw list types are dictated by the Hibernate 3.2 interface: a {@code List<?>} signature
+   * would not override it.
+   *
+   * @see org.hibernate.transform.ResultTransformer#transformList(java.util.List)
+   */
+  @SuppressWarnings({ "rawtypes" })
+  public List transformList(final List collection) {
+    return collection;
+  }
+}
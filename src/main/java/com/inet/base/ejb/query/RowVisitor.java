@@ -0,0 +1,39 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+/**
+ * RowVisitor.
+ * <pre>
+ *  Receives the rows of a streamed query one by one. The row is evicted from the persistence
+ *  context as soon as the visitor returns, so it must not be kept for later changes.
+ * </pre>
+ * @param <T> the row type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: RowVisitor.java 2010-01-28 09:18:36z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface RowVisitor<T> {
+  /**
+   * Visits the given row.
+   *
+   * @param row the given row.
+   * @return {@code true} to continue with the next row, {@code false} to stop the query.
+   */
+  boolean visit(T row);
+}
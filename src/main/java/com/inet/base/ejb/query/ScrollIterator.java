@@ -0,0 +1,174 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+import com.inet.base.ejb.exception.EjbException;
+
+/**
+ * ScrollIterator.
+ * <pre>
+ *  Iterates the rows of a forward-only {@link ScrollableResults scrollable result}, holding a
+ *  single row at a time: the previous row is evicted from the persistence context when the next
+ *  one is fetched, so the memory stays constant whatever the result size.
+ *
+ *  The iterator keeps the database cursor open; it must be consumed and closed inside the
+ *  business method (and transaction) which opened it:
+ *
+ *    final ScrollIterator&lt;Order&gt; orders = iterate(criteria, 500);
+ *    try {
+ *      while (orders.hasNext()) { ... }
+ *    } finally {
+ *      orders.close();
+ *    }
+ * </pre>
+ * @param <T> the row type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: ScrollIterator.java 2010-01-28 09:32:10z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class ScrollIterator<T> implements Iterator<T> {
+  /* the session owning the rows. */
+  private final Session session;
+
+  /* the scrollable result. */
+  private final ScrollableResults results;
+
+  /* the fetched row not returned yet. */
+  private T next;
+
+  /* whether the next row has been fetched. */
+  private boolean fetched;
+
+  /* the last returned row. */
+  private T current;
+
+  /* whether the iterator is closed. */
+  private boolean closed;
+
+  /**
+   * Create <tt>ScrollIterator</tt> instance.
+   *
+   * @param s the given {@link Session session} owning the rows.
+   * @param sr the given forward-only {@link ScrollableResults scrollable result}.
+   */
+  public ScrollIterator(final Session s, final ScrollableResults sr) {
+    this.session = s;
+    this.results = sr;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#hasNext()
+   */
+  public boolean hasNext() {
+    if (closed) {
+      return false;
+    }
+    if (!fetched) {
+      fetch();
+    }
+    return !closed;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.Iterator#next()
+   */
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    fetched = false;
+    current = next;
+    next = null;
+    return current;
+  }
+
+  /**
+   * The rows can not be removed.
+   *
+   * @see java.util.Iterator#remove()
+   */
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Closes the database cursor and evicts the last row. Calling it several times has no effect.
+   */
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    evict(current);
+    current = null;
+    next = null;
+    try {
+      results.close();
+    } catch (final HibernateException hex) {
+      throw new EjbException("Could not close the scrollable result.", hex);
+    }
+  }
+
+  /**
+   * Fetches the next row and evicts the last returned one; closes the iterator at the end of
+   * the result.
+   */
+  @SuppressWarnings({ "unchecked" })
+  private void fetch() {
+    evict(current);
+    current = null;
+
+    try {
+      if (results.next()) {
+        // a single entity or value per row, or the projected values.
+        final Object[] row = results.get();
+        next = (T) (row.length == 1 ? row[0] : row);
+        fetched = true;
+      } else {
+        close();
+      }
+    } catch (final HibernateException hex) {
+      close();
+      throw new EjbException("Could not fetch the next row.", hex);
+    }
+  }
+
+  /**
+   * Evicts the given row from the session if it is a managed object.
+   *
+   * @param row the given row; may be {@code null}.
+   */
+  private void evict(final T row) {
+    if (row != null && session.contains(row)) {
+      session.evict(row);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+
+/**
+ * SessionWork.
+ * <pre>
+ *  A read-only unit of work run by the {@link QueryExecutor query executor} on its own
+ *  session. The objects it returns are detached.
+ * </pre>
+ * @param <V> the result type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: SessionWork.java 2010-02-01 09:47:22z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface SessionWork<V> {
+  /**
+   * Executes the work on the given session.
+   *
+   * @param session the given read-only {@link Session session}.
+   * @return the result.
+   * @throws HibernateException if the work could not be executed.
+   */
+  V execute(Session session) throws HibernateException;
+}
@@ -0,0 +1,44 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import org.hibernate.HibernateException;
+import org.hibernate.StatelessSession;
+
+/**
+ * StatelessWork.
+ * <pre>
+ *  A read-only reporting unit of work run by the session bean on a {@link StatelessSession
+ *  stateless session}: there is no persistence context, no dirty checking and no cascade, the
+ *  returned objects are detached and their lazy associations can not be initialized.
+ * </pre>
+ * @param <V> the result type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: StatelessWork.java 2010-02-03 09:26:41z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface StatelessWork<V> {
+  /**
+   * Executes the work on the given stateless session.
+   *
+   * @param session the given {@link StatelessSession stateless session}.
+   * @return the result.
+   * @throws HibernateException if the work could not be executed.
+   */
+  V execute(StatelessSession session) throws HibernateException;
+}
@@ -0,0 +1,70 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import org.hibernate.EmptyInterceptor;
+
+/**
+ * StatementCounter.
+ * <pre>
+ *  Counts the SQL statements prepared by the Hibernate sessions, per thread, so the statements
+ *  of a business call (e.g, the SELECTs of the lazy associations) can be attributed to it. The
+ *  counter is registered as the session interceptor of the persistence unit:
+ *
+ *    &lt;property name="hibernate.ejb.interceptor"
+ *              value="com.inet.base.ejb.query.StatementCounter"/&gt;
+ *
+ *  The statements prepared by the other threads (the {@link QueryExecutor query executor}) are
+ *  counted on these threads, not on the thread submitting them.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: StatementCounter.java 2010-02-09 09:21:05z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class StatementCounter extends EmptyInterceptor {
+  private static final long serialVersionUID = 4712880233185301926L;
+
+  /** the number of statements prepared by the current thread. */
+  private static final ThreadLocal<long[]> COUNT = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  /**
+   * Returns the number of SQL statements prepared by the current thread; the difference of two
+   * calls is the number of statements prepared in between.
+   *
+   * @return the number of statements.
+   */
+  public static long getCount() {
+    return COUNT.get()[0];
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.hibernate.EmptyInterceptor#onPrepareStatement(java.lang.String)
+   */
+  @Override
+  public String onPrepareStatement(final String sql) {
+    COUNT.get()[0]++;
+    return sql;
+  }
+}
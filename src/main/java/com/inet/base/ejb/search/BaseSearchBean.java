@@ -47,6 +47,9 @@ public abstract class BaseSearchBean implements Serializable {
   /* total result according search criteria. */
   private int total;
 
+  /* the keyset continuation token, used instead of the offset. */
+  private String token;
+
   /**
    * Default constructor.
    */
@@ -127,4 +130,22 @@ public abstract class BaseSearchBean implements Serializable {
   public void setTotal(final int t) {
     this.total = t;
   }
+
+  /**
+   * Returns the keyset continuation token of the page to get.
+   *
+   * @return the keyset continuation token; {@code null} for the first page.
+   */
+  public String getToken() {
+    return this.token;
+  }
+
+  /**
+   * Set the keyset continuation token of the page to get, returned by the previous page.
+   *
+   * @param t the given keyset continuation token to set.
+   */
+  public void setToken(final String t) {
+    this.token = t;
+  }
 }
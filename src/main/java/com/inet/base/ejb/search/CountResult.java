@@ -0,0 +1,100 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.search;
+
+import java.io.Serializable;
+
+/**
+ * CountResult.
+ * <pre>
+ *  A count together with whether it is exact; an inexact count is either an estimate from the
+ *  database statistics or a lower bound ("more than N"). The count is {@link #UNKNOWN unknown}
+ *  when the database has no statistics to estimate it from.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: CountResult.java 2010-02-02 14:08:37z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class CountResult implements Serializable {
+  /**
+   * serialVersionUID.
+   */
+  private static final long serialVersionUID = -1460371255309285127L;
+
+  /**
+   * The unknown count.
+   */
+  public static final CountResult UNKNOWN = new CountResult(-1L, false);
+
+  /* the count value. */
+  private final long value;
+
+  /* whether the count is exact. */
+  private final boolean exact;
+
+  /**
+   * CountResult constructor.
+   *
+   * @param v the given count value.
+   * @param e whether the count is exact.
+   */
+  public CountResult(final long v, final boolean e) {
+    this.value = v;
+    this.exact = e;
+  }
+
+  /**
+   * Returns the count value.
+   *
+   * @return the count value.
+   */
+  public long getValue() {
+    return value;
+  }
+
+  /**
+   * Returns whether the count is exact.
+   *
+   * @return {@code true} if the count is exact.
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  /**
+   * Returns whether the count is known.
+   *
+   * @return {@code false} if the count is {@link #UNKNOWN unknown}.
+   */
+  public boolean isKnown() {
+    return value >= 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    if (!isKnown()) {
+      return "?";
+    }
+    return (exact ? "" : "~") + value;
+  }
+}
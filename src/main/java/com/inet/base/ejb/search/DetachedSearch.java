@@ -0,0 +1,43 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.search;
+
+import org.hibernate.criterion.DetachedCriteria;
+
+import com.inet.base.ejb.exception.EjbException;
+
+/**
+ * DetachedSearch.
+ * <pre>
+ *  A {@link Search search} creating its criteria detached from any session, so the count and
+ *  the page can be executed on different sessions at the same time.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: DetachedSearch.java 2010-02-01 09:31:05z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public interface DetachedSearch {
+  /**
+   * Create detached search or count criteria.
+   *
+   * @param count if {@code true} will create count criteria, otherwise create search criteria.
+   * @return the search/count {@link DetachedCriteria detached criteria}.
+   * @throws EjbException if could not create criteria instance.
+   */
+  DetachedCriteria createDetachedCriteria(boolean count) throws EjbException;
+}
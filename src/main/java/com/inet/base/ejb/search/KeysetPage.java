@@ -0,0 +1,73 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.search;
+
+/**
+ * KeysetPage.
+ * <pre>
+ *  One page of a keyset (seek) pagination, together with the opaque continuation token of the
+ *  next page. The total is not counted by the keyset pagination.
+ * </pre>
+ * @param <T> the row type.
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: KeysetPage.java 2010-01-28 17:02:31z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class KeysetPage<T> extends SearchWrapper<T> {
+  /**
+   * serialVersionUID.
+   */
+  private static final long serialVersionUID = 3170412852097453862L;
+
+  /* the continuation token of the next page. */
+  private String token;
+
+  /**
+   * KeysetPage constructor.
+   */
+  public KeysetPage() {
+    super();
+  }
+
+  /**
+   * Returns the continuation token of the next page.
+   *
+   * @return the continuation token; {@code null} if this is the last page.
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Set the continuation token of the next page.
+   *
+   * @param t the given continuation token.
+   */
+  public void setToken(final String t) {
+    this.token = t;
+  }
+
+  /**
+   * Returns whether there is a next page.
+   *
+   * @return {@code true} if there is a next page.
+   */
+  public boolean hasNext() {
+    return token != null;
+  }
+}
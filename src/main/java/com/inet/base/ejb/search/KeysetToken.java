@@ -0,0 +1,270 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import com.inet.base.ejb.exception.EjbException;
+import com.inet.base.ejb.internal.StringUtils;
+
+/**
+ * KeysetToken.
+ * <pre>
+ *  The position of a keyset page: the sort property and direction, and the sort value and
+ *  primary key of the last row of the page. The token is handed to the client as an opaque
+ *  string, so only the simple value types (strings, numbers, dates, booleans and characters)
+ *  are encoded and a token is never deserialized as an arbitrary object.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: KeysetToken.java 2010-01-28 16:44:52z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public final class KeysetToken implements Serializable {
+  /**
+   * serialVersionUID.
+   */
+  private static final long serialVersionUID = -6254137318804361209L;
+
+  /* the token format version. */
+  private static final byte VERSION = 1;
+
+  /* the sort property. */
+  private final String property;
+
+  /* whether the rows are sorted in ascending order. */
+  private final boolean ascending;
+
+  /* the sort value of the last row. */
+  private final Object value;
+
+  /* the primary key of the last row. */
+  private final Object key;
+
+  /**
+   * Create <tt>KeysetToken</tt> instance.
+   *
+   * @param p the given sort property.
+   * @param asc whether the rows are sorted in ascending order.
+   * @param v the given sort value of the last row.
+   * @param k the given primary key of the last row.
+   */
+  public KeysetToken(final String p, final boolean asc, final Object v, final Object k) {
+    this.property = p;
+    this.ascending = asc;
+    this.value = v;
+    this.key = k;
+  }
+
+  /**
+   * Returns the sort property.
+   *
+   * @return the sort property.
+   */
+  public String getProperty() {
+    return property;
+  }
+
+  /**
+   * Returns whether the rows are sorted in ascending order.
+   *
+   * @return {@code true} if the rows are sorted in ascending order.
+   */
+  public boolean isAscending() {
+    return ascending;
+  }
+
+  /**
+   * Returns the sort value of the last row.
+   *
+   * @return the sort value of the last row.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * Returns the primary key of the last row.
+   *
+   * @return the primary key of the last row.
+   */
+  public Object getKey() {
+    return key;
+  }
+
+  /**
+   * Encodes the token into its opaque string form.
+   *
+   * @return the opaque token.
+   * @throws EjbException if the sort value or the primary key type is not supported.
+   */
+  public String encode() throws EjbException {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream output = new DataOutputStream(bytes);
+      output.writeByte(VERSION);
+      output.writeUTF(property);
+      output.writeBoolean(ascending);
+      writeValue(output, value);
+      writeValue(output, key);
+      output.close();
+
+      return StringUtils.bytesToHexString(bytes.toByteArray());
+    } catch (final IOException ioex) {
+      throw new EjbException("Could not encode the keyset token.", ioex);
+    }
+  }
+
+  /**
+   * Decodes the given opaque token.
+   *
+   * @param token the given opaque token.
+   * @return the <tt>KeysetToken</tt> instance.
+   * @throws EjbException if the given token is not valid.
+   */
+  public static KeysetToken decode(final String token) throws EjbException {
+    try {
+      final DataInputStream input =
+        new DataInputStream(new ByteArrayInputStream(StringUtils.hexStringToBytes(token)));
+      if (input.readByte() != VERSION) {
+        throw new EjbException("Unsupported keyset token {" + token + "}.");
+      }
+
+      final String property = input.readUTF();
+      final boolean ascending = input.readBoolean();
+      final Object value = readValue(input);
+      final Object key = readValue(input);
+
+      return new KeysetToken(property, ascending, value, key);
+    } catch (final IOException ioex) {
+      throw new EjbException("Invalid keyset token {" + token + "}.", ioex);
+    } catch (final NumberFormatException nfex) {
+      throw new EjbException("Invalid keyset token {" + token + "}.", nfex);
+    }
+  }
+
+  /**
+   * Writes the given tagged value.
+   *
+   * @param output the given output.
+   * @param v the given value.
+   * @throws IOException if the value type is not supported.
+   */
+  private static void writeValue(final DataOutputStream output, final Object v)
+    throws IOException {
+    if (v instanceof String) {
+      output.writeByte('S');
+      output.writeUTF((String) v);
+    } else if (v instanceof Integer) {
+      output.writeByte('I');
+      output.writeInt(((Integer) v).intValue());
+    } else if (v instanceof Long) {
+      output.writeByte('J');
+      output.writeLong(((Long) v).longValue());
+    } else if (v instanceof Short) {
+      output.writeByte('H');
+      output.writeShort(((Short) v).shortValue());
+    } else if (v instanceof Byte) {
+      output.writeByte('B');
+      output.writeByte(((Byte) v).byteValue());
+    } else if (v instanceof Double) {
+      output.writeByte('D');
+      output.writeDouble(((Double) v).doubleValue());
+    } else if (v instanceof Float) {
+      output.writeByte('F');
+      output.writeFloat(((Float) v).floatValue());
+    } else if (v instanceof BigDecimal) {
+      output.writeByte('M');
+      output.writeUTF(v.toString());
+    } else if (v instanceof BigInteger) {
+      output.writeByte('N');
+      output.writeUTF(v.toString());
+    } else if (v instanceof Boolean) {
+      output.writeByte('Z');
+      output.writeBoolean(((Boolean) v).booleanValue());
+    } else if (v instanceof Character) {
+      output.writeByte('C');
+      output.writeChar(((Character) v).charValue());
+    } else if (v instanceof Timestamp) {
+      output.writeByte('P');
+      output.writeLong(((Timestamp) v).getTime());
+      output.writeInt(((Timestamp) v).getNanos());
+    } else if (v instanceof java.sql.Date) {
+      output.writeByte('d');
+      output.writeLong(((Date) v).getTime());
+    } else if (v instanceof Date) {
+      output.writeByte('T');
+      output.writeLong(((Date) v).getTime());
+    } else {
+      throw new IOException("Unsupported keyset value {" + v + "}.");
+    }
+  }
+
+  /**
+   * Reads the next tagged value.
+   *
+   * @param input the given input.
+   * @return the value.
+   * @throws IOException if the value is not valid.
+   */
+  private static Object readValue(final DataInputStream input) throws IOException {
+    final byte tag = input.readByte();
+    switch (tag) {
+      case 'S':
+        return input.readUTF();
+      case 'I':
+        return Integer.valueOf(input.readInt());
+      case 'J':
+        return Long.valueOf(input.readLong());
+      case 'H':
+        return Short.valueOf(input.readShort());
+      case 'B':
+        return Byte.valueOf(input.readByte());
+      case 'D':
+        return Double.valueOf(input.readDouble());
+      case 'F':
+        return Float.valueOf(input.readFloat());
+      case 'M':
+        return new BigDecimal(input.readUTF());
+      case 'N':
+        return new BigInteger(input.readUTF());
+      case 'Z':
+        return Boolean.valueOf(input.readBoolean());
+      case 'C':
+        return Character.valueOf(input.readChar());
+      case 'P':
+        final Timestamp timestamp = new Timestamp(input.readLong());
+        timestamp.setNanos(input.readInt());
+        return timestamp;
+      case 'd':
+        return new java.sql.Date(input.readLong());
+      case 'T':
+        return new Date(input.readLong());
+      default:
+        throw new IOException("Unknown keyset value tag {" + tag + "}.");
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * BulkFormatTests.
+ * <pre>
+ *  Checks the round trip of the {@link BulkFormat bulk format}, and the rejection of the
+ *  corrupt and truncated data.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: BulkFormatTests.java 2010-02-15 10:04:18z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class BulkFormatTests extends TestCase {
+  /** the data following the bulk data on the channel. */
+  private static final byte[] TRAILER = { 1, 2, 3 };
+
+  /**
+   * The mappings read back equal the written ones, and the following data is not consumed.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRoundTrip() throws Exception {
+    final Map<String, String> map = sample();
+    final byte[] data = write(map);
+
+    final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(data));
+    final Map<String, String> read = new LinkedHashMap<String, String>();
+    assertEquals(map.size(), BulkFormat.readMap(channel, read, Codecs.STRING, Codecs.STRING));
+    assertEquals(map, read);
+
+    final ByteBuffer trailer = ByteBuffer.allocate(TRAILER.length + 1);
+    assertEquals(TRAILER.length, channel.read(trailer));
+    assertTrue(Arrays.equals(TRAILER, Arrays.copyOf(trailer.array(), TRAILER.length)));
+  }
+
+  /**
+   * A file channel is positioned right after the bulk data.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRoundTripFile() throws Exception {
+    final Map<String, String> map = sample();
+    final byte[] data = write(map);
+    final File file = File.createTempFile("bulk", ".dat");
+    try {
+      final FileOutputStream output = new FileOutputStream(file);
+      try {
+        output.write(data);
+      } finally {
+        output.close();
+      }
+
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = raf.getChannel();
+        final Map<String, String> read = new HashMap<String, String>();
+        BulkFormat.readMap(channel, read, Codecs.STRING, Codecs.STRING);
+        assertEquals(map, read);
+        assertEquals(TRAILER.length, channel.size() - channel.position());
+      } finally {
+        raf.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * The data of another format is rejected.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRejectMagic() throws Exception {
+    final byte[] data = write(sample());
+    data[0] ^= 0xFF;
+    assertRejected(data, StreamCorruptedException.class);
+  }
+
+  /**
+   * The data of another format version is rejected.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRejectVersion() throws Exception {
+    final byte[] data = write(sample());
+    data[4] = (byte) (BulkFormat.VERSION + 1);
+    assertRejected(data, StreamCorruptedException.class);
+  }
+
+  /**
+   * A negative number of mappings is rejected.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRejectCount() throws Exception {
+    final byte[] data = write(sample());
+    ByteBuffer.wrap(data).putInt(5, -1);
+    assertRejected(data, StreamCorruptedException.class);
+  }
+
+  /**
+   * A header claiming more mappings than the data holds fails at the end of the stream,
+   * without allocating them.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRejectTruncated() throws Exception {
+    final byte[] data = write(sample());
+    ByteBuffer.wrap(data).putInt(5, Integer.MAX_VALUE);
+    assertRejected(Arrays.copyOf(data, data.length - TRAILER.length), EOFException.class);
+  }
+
+  /**
+   * Returns the sample mappings: small, null and large keys and values.
+   *
+   * @return the sample mappings.
+   */
+  private static Map<String, String> sample() {
+    final Map<String, String> map = new LinkedHashMap<String, String>();
+    for (int index = 0; index < 10000; index++) {
+      map.put("key" + index, "value" + index);
+    }
+    map.put(null, "null key");
+    map.put("null value", null);
+
+    final char[] large = new char[200 * 1024];
+    Arrays.fill(large, 'x');
+    map.put("large", new String(large));
+    return map;
+  }
+
+  /**
+   * Writes the given mappings in the bulk format, followed by the trailer.
+   *
+   * @param map the given mappings.
+   * @return the written data.
+   * @throws IOException if the mappings could not be written.
+   */
+  private static byte[] write(final Map<String, String> map) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(map.size(),
+        BulkFormat.writeMap(map, Channels.newChannel(output), Codecs.STRING, Codecs.STRING));
+    output.write(TRAILER);
+    return output.toByteArray();
+  }
+
+  /**
+   * Asserts the given data is rejected with the given exception.
+   *
+   * @param data the given data.
+   * @param expected the given expected exception class.
+   */
+  private static void assertRejected(final byte[] data,
+      final Class<? extends IOException> expected) {
+    try {
+      BulkFormat.readMap(Channels.newChannel(new ByteArrayInputStream(data)),
+          new HashMap<String, String>(), Codecs.STRING, Codecs.STRING);
+      fail("The data must be rejected.");
+    } catch (final IOException ioex) {
+      assertEquals(expected, ioex.getClass());
+    }
+  }
+}
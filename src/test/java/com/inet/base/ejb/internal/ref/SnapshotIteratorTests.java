@@ -0,0 +1,140 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * SnapshotIteratorTests.
+ * <pre>
+ *  Checks the weakly consistent iterator of the {@link ReferenceHashMap reference map} against
+ *  the bin chains a concurrent resize may leave behind: it must terminate on a cycle and never
+ *  return an entry twice.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: SnapshotIteratorTests.java 2010-02-15 09:31:06z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class SnapshotIteratorTests extends TestCase {
+  /**
+   * The snapshot holds every mapping once.
+   */
+  public void testSnapshot() {
+    final SoftHashMap<String, Integer> map = new SoftHashMap<String, Integer>();
+    map.setWeaklyConsistent(true);
+    for (int index = 0; index < 100; index++) {
+      map.put("key" + index, Integer.valueOf(index));
+    }
+
+    final Set<String> keys = new HashSet<String>();
+    for (final String key : map.keySet()) {
+      assertTrue("returned twice: " + key, keys.add(key));
+    }
+    assertEquals(100, keys.size());
+  }
+
+  /**
+   * A cycle in a bin chain ends the walk of the bin, each entry is returned once.
+   */
+  @SuppressWarnings({ "unchecked" })
+  public void testCycleGuard() {
+    final SoftHashMap<Key, String> map = new SoftHashMap<Key, String>();
+    final List<Key> keys = new ArrayList<Key>();
+    for (int index = 0; index < 3; index++) {
+      keys.add(new Key(index));
+      map.put(keys.get(index), "value" + index);
+    }
+
+    // the colliding keys share one bin: link its last entry back to the second one.
+    final List<ReferenceHashMap.Entry<Key, String>> chain =
+      new ArrayList<ReferenceHashMap.Entry<Key, String>>();
+    for (final Map.Entry<Key, String> entry : map.entrySet()) {
+      chain.add((ReferenceHashMap.Entry<Key, String>) entry);
+    }
+    assertEquals(3, chain.size());
+    final ReferenceHashMap.Entry<Key, String> last = chain.get(2);
+    assertNull(last.next());
+    last.setNext(chain.get(1));
+
+    try {
+      map.setWeaklyConsistent(true);
+      final Set<Key> returned = new HashSet<Key>();
+      for (final Key key : map.keySet()) {
+        assertTrue("returned twice: " + key, returned.add(key));
+      }
+      assertEquals(new HashSet<Key>(keys), returned);
+    } finally {
+      last.setNext(null);
+    }
+  }
+
+  /**
+   * Key.
+   * <pre>
+   *  A key whose instances all collide in the same bin.
+   * </pre>
+   */
+  private static final class Key {
+    private final int id;
+
+    /**
+     * Create <tt>Key</tt> instance.
+     *
+     * @param i the given key id.
+     */
+    Key(final int i) {
+      this.id = i;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return 42;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof Key && ((Key) obj).id == id;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return "key" + id;
+    }
+  }
+}
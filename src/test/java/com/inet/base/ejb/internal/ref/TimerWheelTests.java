@@ -0,0 +1,112 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.internal.ref;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * TimerWheelTests.
+ * <pre>
+ *  Checks the expiration of the mappings driven by the {@link TimerWheel timer wheel}. The
+ *  durations are short but the waits are several ticks longer, so a slow machine only delays
+ *  the expiration checks, it never makes them fail.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: TimerWheelTests.java 2010-02-15 09:12:40z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class TimerWheelTests extends TestCase {
+  /** the expire duration (in milliseconds). */
+  private static final long DURATION = 100;
+
+  /**
+   * A mapping expires after its write duration.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testExpireAfterWrite() throws Exception {
+    final SoftHashMap<String, String> map = new SoftHashMap<String, String>();
+    map.setExpireAfterWrite(DURATION, TimeUnit.MILLISECONDS);
+    map.put("key", "value");
+    assertEquals("value", map.get("key"));
+
+    Thread.sleep(3 * DURATION);
+    assertNull(map.get("key"));
+    assertEquals(0, map.size());
+  }
+
+  /**
+   * The reads of a mapping move its access deadline.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testExpireAfterAccess() throws Exception {
+    final SoftHashMap<String, String> map = new SoftHashMap<String, String>();
+    map.setExpireAfterAccess(4 * DURATION, TimeUnit.MILLISECONDS);
+    map.put("read", "value");
+    map.put("idle", "value");
+
+    for (int index = 0; index < 6; index++) {
+      Thread.sleep(DURATION);
+      assertEquals("value", map.get("read"));
+    }
+    assertNull(map.get("idle"));
+    assertEquals(1, map.size());
+  }
+
+  /**
+   * A mapping removed and written again expires from its new write time.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testRewrittenMappingIsRescheduled() throws Exception {
+    final SoftHashMap<String, String> map = new SoftHashMap<String, String>();
+    map.setExpireAfterWrite(4 * DURATION, TimeUnit.MILLISECONDS);
+    map.put("key", "old");
+
+    Thread.sleep(3 * DURATION);
+    map.remove("key");
+    map.put("key", "new");
+
+    Thread.sleep(2 * DURATION);
+    assertEquals("new", map.get("key"));
+
+    Thread.sleep(4 * DURATION);
+    assertNull(map.get("key"));
+  }
+
+  /**
+   * Clearing the map drops the scheduled mappings, the later writes still expire.
+   *
+   * @throws Exception if the test fails.
+   */
+  public void testClear() throws Exception {
+    final WeakHashMap<String, String> map = new WeakHashMap<String, String>();
+    map.setExpireAfterWrite(DURATION, TimeUnit.MILLISECONDS);
+    final String key = "key";
+    map.put(key, "value");
+    map.clear();
+    assertEquals(0, map.size());
+
+    map.put(key, "value");
+    Thread.sleep(3 * DURATION);
+    assertNull(map.get(key));
+  }
+}
@@ -0,0 +1,167 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.AbstractComponentType;
+import org.hibernate.type.ManyToOneType;
+import org.hibernate.type.Type;
+
+/**
+ * FetchPlanTests.
+ * <pre>
+ *  Checks the resolution of the association paths fetched by a {@link FetchPlan fetch plan}:
+ *  Order.customer (to-one) -> Customer.address (component) -> Address.city;
+ *  Order.lines and Customer.orders (collections).
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: FetchPlanTests.java 2010-02-15 11:34:08z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class FetchPlanTests extends TestCase {
+  /** the session factory knowing the order and customer metadata. */
+  private SessionFactoryImplementor factory;
+  /** the order metadata. */
+  private ClassMetadata order;
+
+  /**
+   * @see junit.framework.TestCase#setUp()
+   */
+  @Override
+  protected void setUp() throws Exception {
+    final Type city = type(false);
+    final Type address = component(new String[] { "city" }, new Type[] { city });
+
+    final Map<String, Type> customerProperties = new HashMap<String, Type>();
+    customerProperties.put("name", type(false));
+    customerProperties.put("address", address);
+    customerProperties.put("orders", type(true));
+
+    final Map<String, Type> orderProperties = new HashMap<String, Type>();
+    orderProperties.put("customer", new ManyToOneType("Customer"));
+    orderProperties.put("lines", type(true));
+
+    order = metadata(orderProperties);
+    final Map<String, ClassMetadata> metadata = new HashMap<String, ClassMetadata>();
+    metadata.put("Order", order);
+    metadata.put("Customer", metadata(customerProperties));
+    factory = proxy(SessionFactoryImplementor.class, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        return "getClassMetadata".equals(method.getName()) ? metadata.get(args[0]) : null;
+      }
+    });
+  }
+
+  /**
+   * The paths through the to-one associations and the components are resolved.
+   */
+  public void testToOnePath() {
+    assertTrue(FetchPlan.isToOnePath(factory, order, "customer"));
+    assertTrue(FetchPlan.isToOnePath(factory, order, "customer.name"));
+    assertTrue(FetchPlan.isToOnePath(factory, order, "customer.address"));
+    assertTrue(FetchPlan.isToOnePath(factory, order, "customer.address.city"));
+  }
+
+  /**
+   * The paths holding a collection are not to-one paths.
+   */
+  public void testCollectionPath() {
+    assertFalse(FetchPlan.isToOnePath(factory, order, "lines"));
+    assertFalse(FetchPlan.isToOnePath(factory, order, "customer.orders"));
+  }
+
+  /**
+   * The unknown properties and the paths through a basic property are not resolved.
+   */
+  public void testUnknownPath() {
+    assertFalse(FetchPlan.isToOnePath(factory, order, "unknown"));
+    assertFalse(FetchPlan.isToOnePath(factory, order, "customer.unknown"));
+    assertFalse(FetchPlan.isToOnePath(factory, order, "customer.address.street"));
+    assertFalse(FetchPlan.isToOnePath(factory, order, "customer.name.first"));
+  }
+
+  /**
+   * Returns the metadata of an entity holding the given properties.
+   *
+   * @param properties the given property types by name.
+   * @return the {@link ClassMetadata metadata}.
+   */
+  private static ClassMetadata metadata(final Map<String, Type> properties) {
+    return proxy(ClassMetadata.class, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        return "getPropertyType".equals(method.getName()) ? properties.get(args[0]) : null;
+      }
+    });
+  }
+
+  /**
+   * Returns a component type holding the given properties.
+   *
+   * @param names the given property names.
+   * @param subtypes the given property types.
+   * @return the {@link AbstractComponentType component type}.
+   */
+  private static Type component(final String[] names, final Type[] subtypes) {
+    return proxy(AbstractComponentType.class, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        if ("getPropertyNames".equals(method.getName())) {
+          return names;
+        } else if ("getSubtypes".equals(method.getName())) {
+          return subtypes;
+        }
+        return Boolean.valueOf("isComponentType".equals(method.getName()));
+      }
+    });
+  }
+
+  /**
+   * Returns a collection or a basic type.
+   *
+   * @param collection whether the type is a collection type.
+   * @return the {@link Type type}.
+   */
+  private static Type type(final boolean collection) {
+    return proxy(Type.class, new InvocationHandler() {
+      public Object invoke(final Object proxy, final Method method, final Object[] args) {
+        return Boolean.valueOf(collection && "isCollectionType".equals(method.getName()));
+      }
+    });
+  }
+
+  /**
+   * Returns a proxy of the given interface.
+   *
+   * @param <T> the interface type.
+   * @param type the given interface.
+   * @param handler the given invocation handler.
+   * @return the proxy.
+   */
+  private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(FetchPlanTests.class.getClassLoader(),
+        new Class<?>[] { type }, handler));
+  }
+}
@@ -0,0 +1,112 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.query;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * QueryMetricsTests.
+ * <pre>
+ *  Checks the query labels and the redaction of the slow query parameters.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: QueryMetricsTests.java 2010-02-15 11:02:17z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class QueryMetricsTests extends TestCase {
+  /**
+   * The string and numeric literals are replaced by <tt>?</tt>.
+   */
+  public void testLabelLiterals() {
+    assertEquals("select u from User u where u.name = ? and u.age > ?",
+        QueryMetrics.labelOf("select u from User u where u.name = 'bob' and u.age > 18"));
+    assertEquals("where u.name = ? and u.rate = ?",
+        QueryMetrics.labelOf("where u.name = 'bob''s' and u.rate = 1.5"));
+    assertEquals("where u.name = ?", QueryMetrics.labelOf("where u.name = \"it\"\"s\""));
+    assertEquals(QueryMetrics.labelOf("where u.id = 1"), QueryMetrics.labelOf("where u.id = 2"));
+  }
+
+  /**
+   * The parameters and the names keep their digits.
+   */
+  public void testLabelParameters() {
+    assertEquals("from User2 u where u.id = :p1 or u.id = ?1 or u.code_2 = ?",
+        QueryMetrics.labelOf("from User2 u where u.id = :p1 or u.id = ?1 or u.code_2 = 3"));
+  }
+
+  /**
+   * The white spaces are collapsed and trimmed.
+   */
+  public void testLabelWhitespaces() {
+    assertEquals("select u from User u",
+        QueryMetrics.labelOf("  select\n\tu   from\r\nUser u \n"));
+    assertEquals("query", QueryMetrics.labelOf(null));
+  }
+
+  /**
+   * The long label is cut after {@link QueryMetrics#MAX_LABEL_LENGTH} characters.
+   */
+  public void testLabelLength() {
+    final StringBuilder query = new StringBuilder();
+    while (query.length() <= QueryMetrics.MAX_LABEL_LENGTH) {
+      query.append("from User u ");
+    }
+
+    final String label = QueryMetrics.labelOf(query.toString());
+    assertEquals(QueryMetrics.MAX_LABEL_LENGTH + 3, label.length());
+    assertTrue(label.endsWith("..."));
+  }
+
+  /**
+   * The parameter values are only logged when configured, and never the redacted ones.
+   */
+  public void testRedaction() {
+    final String[] redacted = { "password", "secret", "token" };
+    assertTrue(QueryMetrics.isRedacted("userPassword", redacted));
+    assertTrue(QueryMetrics.isRedacted("API_TOKEN", redacted));
+    assertFalse(QueryMetrics.isRedacted("login", redacted));
+    assertFalse(QueryMetrics.isRedacted(null, redacted));
+    assertFalse(QueryMetrics.isRedacted("password", null));
+
+    assertEquals("[]", QueryMetrics.format(null, null));
+    assertEquals("[login=****, 2=null]",
+        QueryMetrics.format(new String[] { "login" }, new Object[] { "bob", null }));
+  }
+
+  /**
+   * The labels above {@link QueryMetrics#MAX_LABELS} share the {@link QueryMetrics#OTHER_LABEL}
+   * timer.
+   */
+  public void testLabelBound() {
+    final QueryMetrics metrics = QueryMetrics.getInstance();
+    metrics.reset();
+    try {
+      for (int index = 0; index < QueryMetrics.MAX_LABELS + 10; index++) {
+        metrics.record("test", "label" + index, 1L);
+      }
+
+      final Map<String, QueryMetrics.Timer> timers = metrics.getTimers();
+      assertEquals(QueryMetrics.MAX_LABELS + 1, timers.size());
+      assertEquals(10, timers.get("test:" + QueryMetrics.OTHER_LABEL).getExecutions());
+    } finally {
+      metrics.reset();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*****************************************************************
+   Copyright 2006 by Dung Nguyen (dungnguyen@truthinet.com)
+
+   Licensed under the iNet Solutions Corp.,;
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.truthinet.com/licenses
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*****************************************************************/
+package com.inet.base.ejb.search;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import com.inet.base.ejb.exception.EjbException;
+
+/**
+ * KeysetTokenTests.
+ * <pre>
+ *  Checks the encoding of the {@link KeysetToken keyset tokens}.
+ * </pre>
+ *
+ * @author <a href="mailto:dungnguyen@truthinet.com">Dung Nguyen</a>
+ * @version $Id: KeysetTokenTests.java 2010-02-15 10:26:51z nguyen_dv $
+ *
+ * @since 1.0
+ */
+public class KeysetTokenTests extends TestCase {
+  /**
+   * Every supported value type is decoded to an equal value of the same type.
+   */
+  public void testRoundTrip() {
+    final Timestamp timestamp = new Timestamp(1265000000123L);
+    timestamp.setNanos(123456789);
+    final Object[] values = {
+      "name", Integer.valueOf(-7), Long.valueOf(Long.MAX_VALUE), Short.valueOf((short) 3),
+      Byte.valueOf((byte) -1), Double.valueOf(1.5), Float.valueOf(-2.25f),
+      new BigDecimal("12345.6789"), new BigInteger("123456789012345678901234567890"),
+      Boolean.TRUE, Character.valueOf('x'), timestamp, new java.sql.Date(1265000000000L),
+      new Date(1265000000456L)
+    };
+
+    for (final Object value : values) {
+      final KeysetToken token = KeysetToken.decode(
+          new KeysetToken("property", false, value, Long.valueOf(42)).encode());
+      assertEquals("property", token.getProperty());
+      assertFalse(token.isAscending());
+      assertEquals(value.getClass(), token.getValue().getClass());
+      assertEquals(value, token.getValue());
+      assertEquals(Long.valueOf(42), token.getKey());
+    }
+  }
+
+  /**
+   * The token is an opaque hexadecimal string.
+   */
+  public void testOpaque() {
+    final String token = new KeysetToken("name", true, "value", Integer.valueOf(1)).encode();
+    assertTrue(token, token.matches("[0-9a-fA-F]+"));
+  }
+
+  /**
+   * A value of another type is not encoded.
+   */
+  public void testRejectUnsupportedValue() {
+    try {
+      new KeysetToken("name", true, new Object(), Integer.valueOf(1)).encode();
+      fail("The value type must not be supported.");
+    } catch (final EjbException ejbex) {
+      // expected.
+    }
+  }
+
+  /**
+   * A token which was not encoded by the keyset token is rejected.
+   */
+  public void testRejectInvalidToken() {
+    final String token = new KeysetToken("name", true, "value", Integer.valueOf(1)).encode();
+    final String[] invalids = { "zz", "00", token.substring(0, token.length() - 2),
+                                "02" + token.substring(2) };
+    for (final String invalid : invalids) {
+      try {
+        KeysetToken.decode(invalid);
+        fail("The token {" + invalid + "} must be rejected.");
+      } catch (final EjbException ejbex) {
+        // expected.
+      }
+    }
+  }
+}